@@ -2,6 +2,11 @@
 #
 # Train models for all the corpora we have obtained and evaluate each
 # corpora against each of these models.
+#
+# CrossCorpusEvaluator computes the same results in a single JVM, reading
+# each corpus once and training the models concurrently:
+#   java -mx3000m -cp classes cs224n.assignments.CrossCorpusEvaluator \
+#     -data ../data/parsed -corporaFile ../models_list
 
 for m in $(cat ../models_list | tr "," " ")
 do
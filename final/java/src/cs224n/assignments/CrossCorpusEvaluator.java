@@ -0,0 +1,258 @@
+package cs224n.assignments;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import cs224n.langmodel.LanguageModel;
+import cs224n.langmodel.NGram;
+import cs224n.langmodel.NGramScorer;
+import cs224n.langmodel.TunableModel;
+import cs224n.util.CommandLineUtils;
+import cs224n.util.EncodedSentences;
+import cs224n.util.Index;
+import cs224n.util.Sentences;
+
+/**
+ * Computes in one JVM the matrix of perplexities that run_all_models.sh
+ * computes with one LanguageModelTester per corpus: for every corpus c, a
+ * model is trained on c.train, tuned on c.tune, and evaluated on every
+ * corpus. Each file is read once into EncodedSentences sharing one index of
+ * words; the models are then trained concurrently on a thread pool, and
+ * each trained model scores all the corpora in parallel, through its
+ * NGramScorer with the word indices mapped once to ids of the scorer.
+ * Perplexities are the same as those of LanguageModelTester.
+ * <p>
+ * Writes for each model the .result file LanguageModelTester writes, and
+ * the whole matrix to [model].matrix.csv, one row per model.
+ *
+ * Usage: CrossCorpusEvaluator -data dir [-corpora a,b,... | -corporaFile
+ * file] [-model class] [-threads k] [-output dir]
+ */
+public class CrossCorpusEvaluator {
+
+  private final String modelClass;
+  private final List<String> corpora;
+  private final List<EncodedSentences> trainSets;
+  private final List<EncodedSentences> tuneSets;
+  private final List<EncodedSentences> testSets;
+  private final Index<String> words;
+  private final double[][] perplexities;
+
+  public CrossCorpusEvaluator(String modelClass, String dataPath,
+      List<String> corpora) {
+    this.modelClass = modelClass;
+    this.corpora = corpora;
+    this.words = new Index<String>();
+    this.trainSets = new ArrayList<EncodedSentences>();
+    this.tuneSets = new ArrayList<EncodedSentences>();
+    this.testSets = new ArrayList<EncodedSentences>();
+    for (String corpus : corpora) {
+      trainSets.add(read(dataPath + "/" + corpus + ".train"));
+      tuneSets.add(read(dataPath + "/" + corpus + ".tune"));
+      testSets.add(read(dataPath + "/" + corpus));
+    }
+    this.perplexities = new double[corpora.size()][corpora.size()];
+  }
+
+  private EncodedSentences read(String filename) {
+    return new EncodedSentences(new Sentences(filename), words);
+  }
+
+  /**
+   * Trains the models and fills the matrix, using the given number of
+   * threads.
+   */
+  public double[][] evaluate(int threads) {
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      List<ModelTask> tasks = new ArrayList<ModelTask>();
+      for (int i = 0; i < corpora.size(); i++) {
+        tasks.add(new ModelTask(i));
+      }
+      for (ModelTask task : tasks) {
+        pool.execute(task);
+      }
+      for (ModelTask task : tasks) {
+        task.join();
+      }
+    } finally {
+      pool.shutdown();
+    }
+    return perplexities;
+  }
+
+  /**
+   * Trains the model of one corpus, then scores every corpus with it.
+   */
+  private class ModelTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+    private final int corpus;
+
+    ModelTask(int corpus) {
+      this.corpus = corpus;
+    }
+
+    @Override
+    protected void compute() {
+      LanguageModel model;
+      try {
+        model = (LanguageModel) Class.forName(modelClass)
+            .getDeclaredConstructor().newInstance();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+      long start = System.currentTimeMillis();
+      model.train(trainSets.get(corpus));
+      if (model instanceof TunableModel) {
+        ((TunableModel) model).tune(tuneSets.get(corpus));
+      }
+      System.out.println("Trained model of " + corpora.get(corpus) + " in "
+          + (System.currentTimeMillis() - start) + "ms");
+
+      NGramScorer scorer = null;
+      int[] ids = null;
+      if (model instanceof NGram) {
+        scorer = ((NGram) model).getScorer();
+        ids = new int[words.size()];
+        for (int i = 0; i < ids.length; i++) {
+          ids[i] = scorer.getId(words.get(i));
+        }
+      }
+      List<ScoreTask> tasks = new ArrayList<ScoreTask>();
+      for (int j = 0; j < corpora.size(); j++) {
+        tasks.add(new ScoreTask(model, scorer, ids, corpus, j));
+      }
+      invokeAll(tasks);
+    }
+  }
+
+  /**
+   * Computes the perplexity of one corpus according to one model.
+   */
+  private class ScoreTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+    private final LanguageModel model;
+    private final NGramScorer scorer;
+    private final int[] ids;
+    private final int modelCorpus;
+    private final int testCorpus;
+
+    ScoreTask(LanguageModel model, NGramScorer scorer, int[] ids,
+        int modelCorpus, int testCorpus) {
+      this.model = model;
+      this.scorer = scorer;
+      this.ids = ids;
+      this.modelCorpus = modelCorpus;
+      this.testCorpus = testCorpus;
+    }
+
+    @Override
+    protected void compute() {
+      EncodedSentences sentences = testSets.get(testCorpus);
+      double logProbability = 0.0;
+      double numSymbols = 0.0;
+      for (int s = 0; s < sentences.size(); s++) {
+        logProbability += (scorer == null) ? model
+            .getSentenceProbability(sentences.get(s)) : score(sentences, s);
+        numSymbols += sentences.length(s);
+      }
+      assert numSymbols > 0;
+      perplexities[modelCorpus][testCorpus] = Math.pow(0.5, logProbability
+          / numSymbols);
+    }
+
+    /**
+     * Same as scorer.scoreSentence(sentences.get(s)), without looking up
+     * the words.
+     */
+    private double score(EncodedSentences sentences, int s) {
+      double logProbability = 0.0;
+      long state = scorer.startState();
+      for (int i = 0; i < sentences.length(s); i++) {
+        int word = ids[sentences.wordIndex(s, i)];
+        logProbability += scorer.score(state, word);
+        state = scorer.nextState(state, word);
+      }
+      return logProbability + scorer.score(state, scorer.getId(NGram.STOP));
+    }
+  }
+
+  /**
+   * Writes the .result file of each model, as LanguageModelTester does, and
+   * the matrix of all of them.
+   */
+  public void write(String outputPath) throws IOException {
+    NumberFormat nf = new DecimalFormat("0.0000");
+    StringBuilder header = new StringBuilder();
+    for (String corpus : corpora) {
+      header.append(corpus).append(",");
+    }
+    FileWriter matrix = new FileWriter(outputPath + "/" + modelClass
+        + ".matrix.csv");
+    matrix.write("name," + header.substring(0, header.length() - 1) + "\n");
+    for (int i = 0; i < corpora.size(); i++) {
+      String name = modelClass + ":" + corpora.get(i) + ".train:"
+          + corpora.get(i) + ".tune.result";
+      StringBuilder row = new StringBuilder();
+      for (int j = 0; j < corpora.size(); j++) {
+        row.append(nf.format(perplexities[i][j])).append(",");
+      }
+      FileWriter result = new FileWriter(outputPath + "/" + name);
+      result.write(header + "\n" + row);
+      result.close();
+      matrix.write(name + "," + row.substring(0, row.length() - 1) + "\n");
+    }
+    matrix.close();
+  }
+
+  public static void main(String[] args) throws IOException {
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("-data", "../data/parsed");
+    options.put("-corporaFile", "../models_list");
+    options.put("-model",
+        "cs224n.langmodel.ZipfChimeraInterpolatedTriGramModel");
+    options.put("-output", "models");
+    options.put("-threads",
+        Integer.toString(Runtime.getRuntime().availableProcessors()));
+    options.putAll(CommandLineUtils.simpleCommandLineParser(args));
+
+    String corporaList = options.get("-corpora");
+    if (corporaList == null) {
+      BufferedReader reader = new BufferedReader(new FileReader(options
+          .get("-corporaFile")));
+      corporaList = reader.readLine();
+      reader.close();
+    }
+    List<String> corpora = new ArrayList<String>();
+    for (String corpus : corporaList.trim().split(",")) {
+      if (!corpus.equals("")) {
+        corpora.add(corpus);
+      }
+    }
+
+    long start = System.currentTimeMillis();
+    CrossCorpusEvaluator evaluator = new CrossCorpusEvaluator(options
+        .get("-model"), options.get("-data"), corpora);
+    System.out.println("Read " + corpora.size() + " corpora ("
+        + evaluator.words.size() + " word types) in "
+        + (System.currentTimeMillis() - start) + "ms");
+    start = System.currentTimeMillis();
+    evaluator.evaluate(Integer.parseInt(options.get("-threads")));
+    System.out.println("Trained and evaluated " + corpora.size()
+        + " models in " + (System.currentTimeMillis() - start) + "ms");
+    evaluator.write(options.get("-output"));
+  }
+
+}
@@ -21,7 +21,8 @@ public class LanguageModelTester {
    * 2 to the power of the cross entropy, which in turn is defined as the
    * negative of the average (over the dataset) of the log (base 2) of the
    * probability, according to the model, of each datum. Lower perplexity
-   * indicates a better fit.
+   * indicates a better fit. This is the serial reference for
+   * {@link PerplexityEvaluator}, which main uses.
    */
   public static double computePerplexity(LanguageModel languageModel,
       Collection<List<String>> sentences) {
@@ -90,7 +91,21 @@ public class LanguageModelTester {
     // construct model, using reflection ...................................
     System.out.println();
     LanguageModel model;
-    if ("true".equals(options.get("-loadserial"))) {
+    if ("true".equals(options.get("-loadBinary"))) {
+      System.out.print("Mapping binary model [" + serialName + ".bin] ...");
+      long now = System.currentTimeMillis();
+      model = BinaryNGramModel.open(serialName + ".bin");
+      System.out
+          .println(" Done! " + (System.currentTimeMillis() - now) + "ms ");
+
+    } else if ("true".equals(options.get("-loadArpa"))) {
+      System.out.print("Reading ARPA model [" + serialName + ".arpa] ...");
+      long now = System.currentTimeMillis();
+      model = ArpaReader.read(serialName + ".arpa", serialName + ".arpa.bin");
+      System.out
+          .println(" Done! " + (System.currentTimeMillis() - now) + "ms ");
+
+    } else if ("true".equals(options.get("-loadserial"))) {
       System.out.print("Deserializing model [" + serialName + "] ...");
       long now = System.currentTimeMillis();
       FileInputStream fis = new FileInputStream(serialName);
@@ -122,11 +137,17 @@ public class LanguageModelTester {
 
     // evaluate on training and test data ..................................
     NumberFormat nf = new DecimalFormat("0.0000");
+    PerplexityEvaluator evaluator = (options.get("-threads") == null)
+        ? new PerplexityEvaluator()
+        : new PerplexityEvaluator(Integer.parseInt(options.get("-threads")));
+    PerplexityEvaluator.Result result;
     System.out.printf("%-30s", "Training set perplexity: ");
-    System.out.println(nf.format(computePerplexity(model, trainSentences)));
+    result = evaluator.evaluate(model, trainSentences);
+    System.out.println(nf.format(result.perplexity()) + "  (" + result + ")");
 
     System.out.printf("%-30s", "Validation set perplexity: ");
-    System.out.println(nf.format(computePerplexity(model, validSentences)));
+    result = evaluator.evaluate(model, validSentences);
+    System.out.println(nf.format(result.perplexity()) + "  (" + result + ")");
 
     // generate sentences from model .......................................
     List<Double> perplexities = new ArrayList<Double>();
@@ -139,12 +160,14 @@ public class LanguageModelTester {
         Collection<List<String>> testSentences = Sentences.Reader
             .readSentences(testFile);
         System.out.printf("%-30s", "Test set perplexity: ");
-        double perp = computePerplexity(model, testSentences);
+        result = evaluator.evaluate(model, testSentences);
+        double perp = result.perplexity();
         perplexities.add(perp);
         labels.add(oneTest);
-        System.out.println(nf.format(perp));   
+        System.out.println(nf.format(perp) + "  (" + result + ")");
       }
     }
+    evaluator.shutdown();
     FileWriter fw = new FileWriter(serialName + ".result");
     for (String label : labels) {
       fw.write(label +",");
@@ -157,11 +180,19 @@ public class LanguageModelTester {
     if ("true".equals(options.get("-generate"))) {
       System.out.println();
       System.out.println("Generated sentences:");
-      for (int i = 0; i < 10; i++) {
-        List<String> sentence = model.generateSentence();
-        System.out.println("  " + sentence);
-        if (model instanceof NGram) {
-          // SentencePrinter.print(sentence, (NGram) model);
+      if (model instanceof NGram && options.containsKey("-seed")) {
+        // Reproducible: the same seed generates the same sentences.
+        long seed = Long.parseLong(options.get("-seed"));
+        for (List<String> sentence : ((NGram) model).generateSentences(10, seed)) {
+          System.out.println("  " + sentence);
+        }
+      } else {
+        for (int i = 0; i < 10; i++) {
+          List<String> sentence = model.generateSentence();
+          System.out.println("  " + sentence);
+          if (model instanceof NGram) {
+            // SentencePrinter.print(sentence, (NGram) model);
+          }
         }
       }
     }
@@ -183,12 +214,36 @@ public class LanguageModelTester {
     System.out.println("Created model: " + model);
 
     // train model .........................................................
+    // trainSentences.size() comes from the line index of the file
     System.out.print("Training model" +
-    // trainSentences.size() is slow, because disk-backed!!!
-    // " on " + trainSentences.size() + " sentences" +
+        " on " + trainSentences.size() + " sentences" +
         " from " + trainFile + " ... ");
     long startTrain = System.currentTimeMillis();
-    model.train(trainSentences);
+    // count out of core if asked to (-countMemory and -countTempLimit in MB):
+    // the components of the model get their counts from the store of the
+    // training sentences, opened here for as long as the model trains
+    NGramCountStore store = null;
+    if (options.get("-countMemory") != null) {
+      String tempDir = options.get("-countTempDir");
+      String tempLimit = options.get("-countTempLimit");
+      long memoryBudget = Long.parseLong(options.get("-countMemory")) << 20;
+      long maxTempBytes = tempLimit == null ? Long.MAX_VALUE
+          : Long.parseLong(tempLimit) << 20;
+      File tempFile = tempDir == null ? null : new File(tempDir);
+      store = NGramCountStore.open(trainSentences, 0);
+      store.setExternalCounting(memoryBudget, tempFile, maxTempBytes);
+      if (model instanceof EmpiricalNGramModel) {
+        ((EmpiricalNGramModel) model).setExternalCounting(memoryBudget,
+            tempFile, maxTempBytes);
+      }
+    }
+    try {
+      model.train(trainSentences);
+    } finally {
+      if (store != null) {
+        store.release();
+      }
+    }
     System.out.println("done\n");
 
     // tune model....
@@ -211,6 +266,22 @@ public class LanguageModelTester {
       System.out
           .println(" Done! " + (System.currentTimeMillis() - now) + "ms ");
     }
+
+    if ("true".equals(options.get("-saveBinary"))) {
+      System.out.print("Writing binary model [" + serialName + ".bin] ...");
+      long now = System.currentTimeMillis();
+      BinaryNGramModel.write((NGram) model, serialName + ".bin");
+      System.out
+          .println(" Done! " + (System.currentTimeMillis() - now) + "ms ");
+    }
+
+    if ("true".equals(options.get("-saveArpa"))) {
+      System.out.print("Writing ARPA model [" + serialName + ".arpa] ...");
+      long now = System.currentTimeMillis();
+      ArpaWriter.write((NGram) model, serialName + ".arpa");
+      System.out
+          .println(" Done! " + (System.currentTimeMillis() - now) + "ms ");
+    }
     return model;
   }
 
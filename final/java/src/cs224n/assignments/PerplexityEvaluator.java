@@ -0,0 +1,160 @@
+package cs224n.assignments;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import cs224n.langmodel.LanguageModel;
+import cs224n.langmodel.NGram;
+import cs224n.langmodel.NGramScorer;
+
+/**
+ * Computes perplexities like LanguageModelTester.computePerplexity, scoring
+ * the sentences on a pool of threads. Sentences are read in batches; the
+ * sentences of a batch are split in ranges scored in parallel, each
+ * sentence log-probability being stored at its index, and the batch is then
+ * summed in order. The sums are thus the same, bit for bit, as those of the
+ * serial loop.
+ * <p>
+ * NGram models are scored through their NGramScorer, which keeps its state
+ * on the stack of each thread; other models are scored on the calling
+ * thread only, since they may not be safe to share.
+ */
+public class PerplexityEvaluator {
+
+  private static final int BATCH_SIZE = 1 << 14;
+  private static final int MIN_RANGE = 64;
+
+  private final ForkJoinPool pool;
+
+  /**
+   * The sums over a collection of sentences, and the time they took.
+   */
+  public static class Result {
+    public final long numSentences;
+    public final long numSymbols;
+    public final double logProbability;
+    public final long nanos;
+
+    Result(long numSentences, long numSymbols, double logProbability,
+        long nanos) {
+      this.numSentences = numSentences;
+      this.numSymbols = numSymbols;
+      this.logProbability = logProbability;
+      this.nanos = nanos;
+    }
+
+    public double perplexity() {
+      assert numSymbols > 0;
+      double avgLogProbability = logProbability / (double) numSymbols;
+      return Math.pow(0.5, avgLogProbability);
+    }
+
+    public double sentencesPerSecond() {
+      return numSentences * 1e9 / Math.max(nanos, 1);
+    }
+
+    public double tokensPerSecond() {
+      return numSymbols * 1e9 / Math.max(nanos, 1);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%.0f sentences/s, %.0f tokens/s",
+          sentencesPerSecond(), tokensPerSecond());
+    }
+  }
+
+  /**
+   * An evaluator using the given number of threads.
+   */
+  public PerplexityEvaluator(int threads) {
+    this.pool = new ForkJoinPool(threads);
+  }
+
+  /**
+   * An evaluator using one thread per processor.
+   */
+  public PerplexityEvaluator() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  public Result evaluate(LanguageModel languageModel,
+      Collection<List<String>> sentences) {
+    long start = System.nanoTime();
+    NGramScorer scorer = (languageModel instanceof NGram) ? ((NGram) languageModel)
+        .getScorer() : null;
+    long numSentences = 0;
+    double logProbability = 0.0;
+    double numSymbols = 0.0;
+    List<List<String>> batch = new ArrayList<List<String>>(BATCH_SIZE);
+    double[] scores = new double[BATCH_SIZE];
+    Iterator<List<String>> iterator = sentences.iterator();
+    while (iterator.hasNext()) {
+      batch.clear();
+      while (batch.size() < BATCH_SIZE && iterator.hasNext()) {
+        batch.add(iterator.next());
+      }
+      if (scorer == null) {
+        for (int i = 0; i < batch.size(); i++) {
+          scores[i] = languageModel.getSentenceProbability(batch.get(i));
+        }
+      } else {
+        pool.invoke(new ScoreRange(scorer, batch, scores, 0, batch.size()));
+      }
+      for (int i = 0; i < batch.size(); i++) {
+        logProbability += scores[i];
+        numSymbols += batch.get(i).size();
+      }
+      numSentences += batch.size();
+    }
+    return new Result(numSentences, (long) numSymbols, logProbability,
+        System.nanoTime() - start);
+  }
+
+  /**
+   * Stops the threads of the evaluator.
+   */
+  public void shutdown() {
+    pool.shutdown();
+  }
+
+  /**
+   * Scores a range of a batch, splitting it in halves down to MIN_RANGE.
+   */
+  private static class ScoreRange extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+    private final NGramScorer scorer;
+    private final List<List<String>> batch;
+    private final double[] scores;
+    private final int from;
+    private final int to;
+
+    ScoreRange(NGramScorer scorer, List<List<String>> batch, double[] scores,
+        int from, int to) {
+      this.scorer = scorer;
+      this.batch = batch;
+      this.scores = scores;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= MIN_RANGE) {
+        for (int i = from; i < to; i++) {
+          scores[i] = scorer.scoreSentence(batch.get(i));
+        }
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(new ScoreRange(scorer, batch, scores, from, middle),
+          new ScoreRange(scorer, batch, scores, middle, to));
+    }
+  }
+
+}
@@ -0,0 +1,125 @@
+package cs224n.assignments;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cs224n.langmodel.BinaryNGramModel;
+import cs224n.langmodel.NGram;
+import cs224n.langmodel.NGramScorer;
+import cs224n.langmodel.TunableModel;
+import cs224n.util.CommandLineUtils;
+import cs224n.util.Sentences;
+
+/**
+ * Compares scoring test sentences word by word through
+ * NGram.getWordProbability, the way getSentenceProbability used to, with
+ * scoring them through the NGramScorer of the model. Reports the time and,
+ * when the JVM can measure it, the memory allocated per word.
+ *
+ * Usage: ScoringBenchmark -data dir -train file -valid file -test file
+ * [-model class | -loadBinary file] [-iterations k]
+ */
+public class ScoringBenchmark {
+
+  public static void main(String[] args) throws IOException {
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("-data", "/afs/ir/class/cs224n/pa1/data");
+    options.put("-train", "europarl-train.sent.txt");
+    options.put("-valid", "europarl-validate.sent.txt");
+    options.put("-test", "europarl-test.sent.txt");
+    options.put("-model",
+        "cs224n.langmodel.ZipfChimeraInterpolatedTriGramModel");
+    options.put("-iterations", "5");
+    options.putAll(CommandLineUtils.simpleCommandLineParser(args));
+    String dataPath = options.get("-data");
+
+    NGram model;
+    if (options.get("-loadBinary") != null) {
+      model = BinaryNGramModel.open(options.get("-loadBinary"));
+    } else {
+      try {
+        model = (NGram) Class.forName(options.get("-model"))
+            .getDeclaredConstructor().newInstance();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+      model.train(new Sentences(dataPath + "/" + options.get("-train")));
+      if (model instanceof TunableModel) {
+        ((TunableModel) model).tune(new Sentences(dataPath + "/"
+            + options.get("-valid")));
+      }
+    }
+    List<List<String>> sentences = new ArrayList<List<String>>();
+    for (List<String> sentence : new Sentences(dataPath + "/"
+        + options.get("-test"))) {
+      sentences.add(sentence);
+    }
+    long words = 0;
+    for (List<String> sentence : sentences) {
+      words += sentence.size() + 1;
+    }
+    System.out.println("Scoring " + sentences.size() + " sentences, " + words
+        + " words, with " + model);
+
+    int iterations = Integer.parseInt(options.get("-iterations"));
+    NGramScorer scorer = model.getScorer();
+    for (int i = 0; i < iterations; i++) {
+      measure("getWordProbability", model, null, sentences, words);
+      measure("NGramScorer", model, scorer, sentences, words);
+    }
+  }
+
+  private static void measure(String name, NGram model, NGramScorer scorer,
+      Collection<List<String>> sentences, long words) {
+    long startBytes = allocatedBytes();
+    long start = System.nanoTime();
+    double logProbability = 0.0;
+    for (List<String> sentence : sentences) {
+      logProbability += (scorer == null) ? wordByWord(model, sentence)
+          : scorer.scoreSentence(sentence);
+    }
+    long nanos = System.nanoTime() - start;
+    long bytes = allocatedBytes() - startBytes;
+    System.out.printf("  %-20s %8.1f ns/word %10s bytes/word  (log2 P = %.4f)%n",
+        name, nanos / (double) words, startBytes < 0 ? "?" : String.format(
+            "%.1f", bytes / (double) words), logProbability);
+  }
+
+  /**
+   * Scores the sentence the way NGram.getSentenceProbability did before
+   * scorers: padding a copy of the sentence and looking up a copied prefix
+   * for every word.
+   */
+  private static double wordByWord(NGram model, List<String> sentence) {
+    List<String> stoppedSentence = new ArrayList<String>(sentence);
+    stoppedSentence.add(NGram.STOP);
+    for (int i = 0; i < model.getN() - 1; i++) {
+      stoppedSentence.add(0, NGram.START);
+    }
+    double probability = 0.0;
+    for (int index = model.getN() - 1; index < stoppedSentence.size(); index++) {
+      probability += Math.log(model.getWordProbability(stoppedSentence, index))
+          / Math.log(2.0);
+    }
+    return probability;
+  }
+
+  /**
+   * Bytes allocated so far by this thread, or -1 if the JVM cannot tell.
+   */
+  private static long allocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+}
@@ -0,0 +1,126 @@
+package cs224n.assignments;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cs224n.util.BinarySentences;
+import cs224n.util.CommandLineUtils;
+import cs224n.util.Sentences;
+
+/**
+ * Compares the throughput of iterating a corpus through the readers of
+ * cs224n.util: the text file through Sentences (and, for reference, the
+ * BufferedReader and regular expression it used to be read with), and its
+ * binary conversion through BinarySentences, both as lists of words and as
+ * ids. The binary file is written next to the text file if it does not
+ * exist yet.
+ *
+ * Usage: SentencesBenchmark -file corpus [-iterations k]
+ */
+public class SentencesBenchmark {
+
+  public static void main(String[] args) throws IOException {
+    Map<String, String> options = new HashMap<String, String>();
+    options.put("-iterations", "5");
+    options.putAll(CommandLineUtils.simpleCommandLineParser(args));
+    String filename = options.get("-file");
+    int iterations = Integer.parseInt(options.get("-iterations"));
+
+    String binaryFilename = filename + BinarySentences.EXTENSION;
+    if (!new File(binaryFilename).exists()) {
+      long start = System.nanoTime();
+      BinarySentences.write(new Sentences(filename), binaryFilename);
+      System.out.printf("Converted %s in %.1f ms%n", filename,
+          (System.nanoTime() - start) / 1e6);
+    }
+    Sentences text = new Sentences(filename);
+    BinarySentences binary = new BinarySentences(binaryFilename);
+    for (int i = 0; i < iterations; i++) {
+      long start = System.nanoTime();
+      long tokens = iterateLines(filename);
+      report("readLine and split", tokens, System.nanoTime() - start);
+      start = System.nanoTime();
+      tokens = iterate(text);
+      report("Sentences", tokens, System.nanoTime() - start);
+      start = System.nanoTime();
+      tokens = iterate(binary);
+      report("BinarySentences", tokens, System.nanoTime() - start);
+      start = System.nanoTime();
+      tokens = iterateIds(binary);
+      report("BinarySentences ids", tokens, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Reads every word of every sentence, returning the number of tokens.
+   */
+  private static long iterate(Collection<List<String>> sentences) {
+    long tokens = 0;
+    long characters = 0;
+    for (List<String> sentence : sentences) {
+      for (String word : sentence) {
+        characters += word.length();
+      }
+      tokens += sentence.size();
+    }
+    assert characters >= tokens;
+    return tokens;
+  }
+
+  /**
+   * Reads the file the way Sentences did before SentenceTokenizer: a
+   * BufferedReader line by line, split on a regular expression and
+   * lowercased word by word.
+   */
+  private static long iterateLines(String filename) throws IOException {
+    long tokens = 0;
+    long characters = 0;
+    BufferedReader reader = new BufferedReader(new FileReader(filename));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        List<String> sentence = new ArrayList<String>();
+        for (String word : line.split("\\s+")) {
+          if (!word.equals("")) {
+            sentence.add(word.toLowerCase());
+          }
+        }
+        for (String word : sentence) {
+          characters += word.length();
+        }
+        tokens += sentence.size();
+      }
+    } finally {
+      reader.close();
+    }
+    assert characters >= tokens;
+    return tokens;
+  }
+
+  private static long iterateIds(BinarySentences sentences) {
+    long tokens = 0;
+    long ids = 0;
+    for (int s = 0; s < sentences.size(); s++) {
+      int length = sentences.length(s);
+      for (int i = 0; i < length; i++) {
+        ids += sentences.wordId(s, i);
+      }
+      tokens += length;
+    }
+    assert ids >= 0;
+    return tokens;
+  }
+
+  private static void report(String name, long tokens, long nanos) {
+    System.out.printf("  %-20s %8.1f ms %12.0f tokens/s%n", name, nanos / 1e6,
+        tokens * 1e9 / nanos);
+  }
+
+}
@@ -0,0 +1,76 @@
+package cs224n.langmodel;
+
+import java.util.Random;
+
+/**
+ * Walker's alias table for drawing from a discrete distribution in
+ * constant time: each of the k outcomes owns a column of height 1/k, split
+ * between itself (a fraction probabilities[i] of the column) and one
+ * alias. Built in O(k) with Vose's method.
+ */
+class AliasTable {
+
+  private final float[] probabilities;
+  private final int[] aliases;
+
+  /**
+   * Builds the table of the distribution proportional to the weights, which
+   * must not be negative and must not all be zero.
+   */
+  AliasTable(double[] weights) {
+    int k = weights.length;
+    double total = 0.0;
+    for (double weight : weights) {
+      total += weight;
+    }
+    assert total > 0.0;
+    probabilities = new float[k];
+    aliases = new int[k];
+    double[] scaled = new double[k];
+    int[] small = new int[k];
+    int[] large = new int[k];
+    int numSmall = 0;
+    int numLarge = 0;
+    for (int i = 0; i < k; i++) {
+      scaled[i] = weights[i] * k / total;
+      if (scaled[i] < 1.0) {
+        small[numSmall++] = i;
+      } else {
+        large[numLarge++] = i;
+      }
+    }
+    while (numSmall > 0 && numLarge > 0) {
+      int less = small[--numSmall];
+      int more = large[--numLarge];
+      probabilities[less] = (float) scaled[less];
+      aliases[less] = more;
+      scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+      if (scaled[more] < 1.0) {
+        small[numSmall++] = more;
+      } else {
+        large[numLarge++] = more;
+      }
+    }
+    // Whatever is left is full up to rounding errors.
+    while (numLarge > 0) {
+      int i = large[--numLarge];
+      probabilities[i] = 1.0f;
+      aliases[i] = i;
+    }
+    while (numSmall > 0) {
+      int i = small[--numSmall];
+      probabilities[i] = 1.0f;
+      aliases[i] = i;
+    }
+  }
+
+  /**
+   * Draws an outcome.
+   */
+  int sample(Random random) {
+    int column = random.nextInt(probabilities.length);
+    return (random.nextFloat() < probabilities[column]) ? column
+        : aliases[column];
+  }
+
+}
@@ -0,0 +1,474 @@
+package cs224n.langmodel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads ARPA backoff language model files into a query-only
+ * BinaryNGramModel. The file is streamed one order at a time: the n-grams
+ * of the current order are kept as packed keys and log-probabilities (never
+ * the text), sorted, and written as the table of a backoff node of the
+ * binary model. The tables are then assembled, highest order first, into
+ * the binary model file, which is opened through FileChannel.map.
+ * <p>
+ * Only one order is held in memory at a time, but all of it is: 16 bytes
+ * per n-gram announced in the \data\ section and per backoff weight as it
+ * is read, and up to about 40 bytes per n-gram while its table is written,
+ * besides the backoff weights of the order below. The heap needed thus
+ * grows with the size of the largest order; unlike ExternalNGramCounter,
+ * nothing is spilled to disk.
+ */
+public class ArpaReader {
+
+  private static final double LN_10 = Math.log(10.0);
+
+  private BufferedReader in;
+  private String line;
+  private int lineNumber;
+
+  private ArpaReader(BufferedReader in) {
+    this.in = in;
+    this.lineNumber = 0;
+  }
+
+  /**
+   * Converts arpaFile into the binary model binaryFile and opens it.
+   */
+  public static BinaryNGramModel read(String arpaFile, String binaryFile)
+      throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+        new FileInputStream(arpaFile), "UTF-8"), 1 << 16);
+    try {
+      new ArpaReader(in).convert(binaryFile);
+    } finally {
+      in.close();
+    }
+    return BinaryNGramModel.open(binaryFile);
+  }
+
+  private String nextLine() throws IOException {
+    line = in.readLine();
+    lineNumber++;
+    return line;
+  }
+
+  private IOException error(String message) {
+    return new IOException("ARPA line " + lineNumber + ": " + message);
+  }
+
+  private void convert(String binaryFile) throws IOException {
+    while (nextLine() != null && !line.trim().equals("\\data\\")) {
+    }
+    List<Long> sizes = new ArrayList<Long>();
+    while (nextLine() != null && line.trim().startsWith("ngram ")) {
+      String[] fields = line.trim().substring(6).split("=");
+      if (Integer.parseInt(fields[0].trim()) != sizes.size() + 1) {
+        throw error("expected counts of consecutive orders");
+      }
+      sizes.add(Long.parseLong(fields[1].trim()));
+    }
+    int n = sizes.size();
+    if (n == 0) {
+      throw error("no \\data\\ section");
+    }
+
+    Vocabulary vocabulary = new Vocabulary();
+    File[] tables = new File[n + 1];
+    try {
+      // Unigrams define the vocabulary.
+      Level unigrams = readLevel(1, n, sizes.get(0), null);
+      int lexiconSize = buildVocabulary(unigrams, vocabulary);
+      double unknownLogProbability = unigrams.unknownLogProbability;
+      long[] backoffKeys = unigrams.backoffKeys(vocabulary);
+      double[] backoffValues = unigrams.backoffValues;
+      tables[1] = writeTable(1, unigrams.unigramKeys(vocabulary),
+          unigrams.logProbabilities, null,
+          new double[] { unknownLogProbability });
+      unigrams = null;
+
+      for (int k = 2; k <= n; k++) {
+        Level level = readLevel(k, n, sizes.get(k - 1), vocabulary);
+        tables[k] = writeTable(k, level.keys, level.logProbabilities,
+            backoffKeys, backoffValues);
+        backoffKeys = level.backoffKeys;
+        backoffValues = level.backoffValues;
+      }
+
+      BinaryNGramModel.Output out = new BinaryNGramModel.Output(binaryFile);
+      try {
+        BinaryNGramModel.writeHeader(out, n, vocabulary, lexiconSize);
+        for (int k = n; k >= 1; k--) {
+          out.writeInt(k == 1 ? BinaryNGramModel.LEAF : BinaryNGramModel.BACKOFF);
+          out.writeInt(k);
+          copy(tables[k], out);
+        }
+        out.writeDouble(unknownLogProbability);
+      } finally {
+        out.close();
+      }
+    } finally {
+      for (File table : tables) {
+        if (table != null) {
+          table.delete();
+        }
+      }
+    }
+  }
+
+  /**
+   * The entries of one order as read from the file. Unigram words are kept
+   * as strings until the vocabulary is built, and the words of higher orders
+   * are packed into keys right away.
+   */
+  private static class Level {
+    int order;
+    int size;
+    List<String> unigrams;
+    long[] keys;
+    double[] logProbabilities;
+    // Backoff weights, keyed as prefixes of the next order. For unigrams
+    // backoffValues holds the weight of each word; for higher orders the
+    // arrays grow as weights are read.
+    long[] backoffKeys;
+    double[] backoffValues;
+    int numBackoffs;
+    double unknownLogProbability = ArpaWriter.LOG_ZERO * LN_10;
+
+    Level(int order, long expectedSize) {
+      if (expectedSize > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Too many " + order + "-grams");
+      }
+      this.order = order;
+      int capacity = (int) expectedSize;
+      if (order == 1) {
+        unigrams = new ArrayList<String>(capacity);
+      } else {
+        keys = new long[capacity];
+      }
+      logProbabilities = new double[capacity];
+      backoffKeys = new long[0];
+      backoffValues = new double[order == 1 ? capacity : 0];
+    }
+
+    void addBackoff(long key, double value) {
+      if (numBackoffs == backoffKeys.length) {
+        // There are fewer backoff weights than n-grams.
+        int capacity = (int) Math.min(Math.max(16, 2L * numBackoffs),
+            keys.length);
+        backoffKeys = Arrays.copyOf(backoffKeys, capacity);
+        backoffValues = Arrays.copyOf(backoffValues, capacity);
+      }
+      backoffKeys[numBackoffs] = key;
+      backoffValues[numBackoffs] = value;
+      numBackoffs++;
+    }
+
+    long[] unigramKeys(Vocabulary vocabulary) {
+      long[] packed = new long[size];
+      for (int i = 0; i < size; i++) {
+        packed[i] = vocabulary.getId(unigrams.get(i));
+      }
+      return packed;
+    }
+
+    /**
+     * Packs the unigrams with a backoff weight as bigram prefixes, keeping
+     * only their weights in backoffValues.
+     */
+    long[] backoffKeys(Vocabulary vocabulary) {
+      long[] packed = new long[size];
+      int[] ids = new int[1];
+      int bits = NGramCountTable.bitsPerWord(2);
+      numBackoffs = 0;
+      for (int i = 0; i < size; i++) {
+        if (backoffValues[i] != 0.0) {
+          ids[0] = vocabulary.getId(unigrams.get(i));
+          packed[numBackoffs] = NGramCountTable.pack(ids, 0, 1, bits);
+          backoffValues[numBackoffs] = backoffValues[i];
+          numBackoffs++;
+        }
+      }
+      backoffValues = Arrays.copyOf(backoffValues, numBackoffs);
+      return Arrays.copyOf(packed, numBackoffs);
+    }
+  }
+
+  /**
+   * Reads the n-grams of one order of a model of order n. Backoff weights
+   * of the highest order have no n-grams to back off from and are ignored.
+   */
+  private Level readLevel(int order, int n, long size, Vocabulary vocabulary)
+      throws IOException {
+    String header = "\\" + order + "-grams:";
+    if (line == null || !line.trim().equals(header)) {
+      while (nextLine() != null && !line.trim().equals(header)) {
+      }
+    }
+    if (line == null) {
+      throw error("missing \\" + order + "-grams: section");
+    }
+    Level level = new Level(order, size);
+    int[] ids = new int[order];
+    int bits = NGramCountTable.bitsPerWord(order);
+    int nextBits = NGramCountTable.bitsPerWord(order + 1);
+    String[] fields = new String[order + 2];
+    while (nextLine() != null && !line.trim().startsWith("\\")) {
+      int numFields = split(line, fields);
+      if (numFields == 0) {
+        continue;
+      }
+      if (level.size == level.logProbabilities.length) {
+        throw error("more " + order + "-grams than announced");
+      }
+      if (numFields < order + 1) {
+        throw error("expected " + order + " words");
+      }
+      double logProbability = Double.parseDouble(fields[0]) * LN_10;
+      boolean hasBackoff = order < n && numFields > order + 1;
+      double backoff = hasBackoff ? Double.parseDouble(fields[order + 1]) * LN_10 : 0.0;
+      if (order == 1) {
+        String word = fromArpa(fields[1]);
+        if (word == null) {
+          level.unknownLogProbability = logProbability;
+          continue;
+        }
+        level.unigrams.add(word);
+        level.logProbabilities[level.size] = logProbability;
+        level.backoffValues[level.size] = backoff;
+        level.size++;
+        continue;
+      }
+      boolean known = true;
+      for (int i = 0; i < order; i++) {
+        String word = fromArpa(fields[i + 1]);
+        ids[i] = word == null ? -1 : vocabulary.getId(word);
+        known &= ids[i] >= 0;
+      }
+      if (!known) {
+        // Unknown words always back off, so these cannot be looked up.
+        continue;
+      }
+      level.keys[level.size] = NGramCountTable.pack(ids, 0, order, bits);
+      level.logProbabilities[level.size] = logProbability;
+      level.size++;
+      if (hasBackoff) {
+        level.addBackoff(NGramCountTable.pack(ids, 0, order, nextBits),
+            backoff);
+      }
+    }
+    // The arrays are only copied if the header announced more n-grams than
+    // were kept.
+    if (level.size < level.logProbabilities.length) {
+      level.logProbabilities = Arrays.copyOf(level.logProbabilities,
+          level.size);
+      if (order == 1) {
+        level.backoffValues = Arrays.copyOf(level.backoffValues, level.size);
+      } else {
+        level.keys = Arrays.copyOf(level.keys, level.size);
+      }
+    }
+    if (order > 1 && level.numBackoffs < level.backoffKeys.length) {
+      level.backoffKeys = Arrays.copyOf(level.backoffKeys, level.numBackoffs);
+      level.backoffValues = Arrays.copyOf(level.backoffValues,
+          level.numBackoffs);
+    }
+    return level;
+  }
+
+  /**
+   * Splits the line on spaces and tabs into fields, returning their number
+   * (at most fields.length).
+   */
+  private static int split(String line, String[] fields) {
+    int numFields = 0;
+    int start = -1;
+    for (int i = 0; i <= line.length(); i++) {
+      boolean space = i == line.length() || line.charAt(i) == ' '
+          || line.charAt(i) == '\t';
+      if (space && start >= 0) {
+        if (numFields == fields.length) {
+          break;
+        }
+        fields[numFields++] = line.substring(start, i);
+        start = -1;
+      } else if (!space && start < 0) {
+        start = i;
+      }
+    }
+    return numFields;
+  }
+
+  /**
+   * Maps ARPA tokens to ours; returns null for the unknown word.
+   */
+  private static String fromArpa(String word) {
+    if (word.equals(ArpaWriter.ARPA_START)) {
+      return NGram.START;
+    } else if (word.equals(ArpaWriter.ARPA_STOP)) {
+      return NGram.STOP;
+    } else if (word.equals(ArpaWriter.ARPA_UNKNOWN)) {
+      return null;
+    }
+    return word;
+  }
+
+  /**
+   * Gives the lexicon (every unigram but the sentence start) the first ids,
+   * and returns its size.
+   */
+  private static int buildVocabulary(Level unigrams, Vocabulary vocabulary) {
+    for (String word : unigrams.unigrams) {
+      if (!word.equals(NGram.START)) {
+        vocabulary.add(word);
+      }
+    }
+    int lexiconSize = vocabulary.size();
+    for (String word : unigrams.unigrams) {
+      vocabulary.add(word);
+    }
+    return lexiconSize;
+  }
+
+  /**
+   * Sorts the n-grams of one order and writes them to a temporary file as a
+   * binary model table. For unigrams the only prefix (the empty one) gets
+   * backoffValues[0], the unknown word log-probability, as its value;
+   * otherwise prefixes are the contexts of the n-grams and of the backoff
+   * weights.
+   */
+  private File writeTable(int order, long[] keys, double[] logProbabilities,
+      long[] backoffKeys, double[] backoffValues) throws IOException {
+    sort(keys, logProbabilities, 0, keys.length);
+    int bits = NGramCountTable.bitsPerWord(order);
+    long[] prefixKeys;
+    double[] prefixValues;
+    int[] offsets;
+    int[] words = new int[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      words[i] = NGramCountTable.unpack(keys[i], order - 1, order, bits);
+    }
+    if (order == 1) {
+      prefixKeys = new long[] { 0L };
+      prefixValues = backoffValues;
+      offsets = new int[] { 0, keys.length };
+    } else {
+      sort(backoffKeys, backoffValues, 0, backoffKeys.length);
+      // Merge the contexts of the n-grams with the backoff contexts, once
+      // to count them and once to fill arrays of the right size.
+      prefixKeys = null;
+      prefixValues = null;
+      offsets = null;
+      for (int pass = 0; pass < 2; pass++) {
+        boolean fill = pass == 1;
+        int numPrefixes = 0;
+        int i = 0, j = 0;
+        while (i < keys.length || j < backoffKeys.length) {
+          long key = Long.MAX_VALUE;
+          if (i < keys.length) {
+            key = keys[i] >>> bits;
+          }
+          if (j < backoffKeys.length) {
+            key = Math.min(key, backoffKeys[j]);
+          }
+          if (fill) {
+            prefixKeys[numPrefixes] = key;
+            offsets[numPrefixes] = i;
+          }
+          if (j < backoffKeys.length && backoffKeys[j] == key) {
+            if (fill) {
+              prefixValues[numPrefixes] = backoffValues[j];
+            }
+            j++;
+          }
+          while (i < keys.length && (keys[i] >>> bits) == key) {
+            i++;
+          }
+          numPrefixes++;
+        }
+        if (fill) {
+          offsets[numPrefixes] = keys.length;
+        } else {
+          prefixKeys = new long[numPrefixes];
+          prefixValues = new double[numPrefixes];
+          offsets = new int[numPrefixes + 1];
+        }
+      }
+    }
+
+    File file = File.createTempFile("arpa" + order + "-", ".table");
+    BinaryNGramModel.Output out = new BinaryNGramModel.Output(file.getPath());
+    try {
+      BinaryNGramModel.writeTable(out, prefixKeys, prefixValues,
+          logProbabilities, offsets, words);
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  /**
+   * Sorts keys[from, to), applying the same permutation to values.
+   */
+  static void sort(long[] keys, double[] values, int from, int to) {
+    while (to - from > 16) {
+      int middle = (from + to) >>> 1;
+      long pivot = keys[middle];
+      int i = from, j = to - 1;
+      while (i <= j) {
+        while (keys[i] < pivot) {
+          i++;
+        }
+        while (keys[j] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          swap(keys, values, i++, j--);
+        }
+      }
+      // Recurse into the smaller half to bound the stack depth.
+      if (j - from < to - i) {
+        sort(keys, values, from, j + 1);
+        from = i;
+      } else {
+        sort(keys, values, i, to);
+        to = j + 1;
+      }
+    }
+    for (int i = from + 1; i < to; i++) {
+      for (int j = i; j > from && keys[j - 1] > keys[j]; j--) {
+        swap(keys, values, j - 1, j);
+      }
+    }
+  }
+
+  private static void swap(long[] keys, double[] values, int i, int j) {
+    long key = keys[i];
+    keys[i] = keys[j];
+    keys[j] = key;
+    double value = values[i];
+    values[i] = values[j];
+    values[j] = value;
+  }
+
+  private static void copy(File file, BinaryNGramModel.Output out)
+      throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[1 << 16];
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+}
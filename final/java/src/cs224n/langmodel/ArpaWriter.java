@@ -0,0 +1,522 @@
+package cs224n.langmodel;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Writes trained models as ARPA backoff language model files, which other
+ * toolkits can read. Entries are generated from the models' own tables as
+ * they are written, so the writer keeps no copy of the model.
+ *
+ * A BackoffModel chain (e.g. BackoffZipfTriGramModel) is written exactly:
+ * the n-grams of each primary model with their probabilities, and its alphas
+ * as backoff weights. A ConstantEMInterpolatedNGramModel is flattened: every
+ * n-gram seen by one of its models gets its interpolated probability, the
+ * lower orders interpolate the lower orders of the models, and the backoff
+ * weights renormalize each context. Probabilities of unseen n-grams are then
+ * approximations of the interpolated ones.
+ */
+public class ArpaWriter {
+
+  static final String ARPA_START = "<s>";
+  static final String ARPA_STOP = "</s>";
+  static final String ARPA_UNKNOWN = "<unk>";
+  // ARPA files use -99 for log10(0).
+  static final double LOG_ZERO = -99.0;
+  // Entry of the unigram giving the probability of unknown words.
+  private static final List<String> UNKNOWN_ENTRY = Collections
+      .singletonList(NGram.UNKNOWN);
+
+  /**
+   * Writes the (trained and tuned) model to filename in ARPA format.
+   */
+  public static void write(NGram model, String filename) throws IOException {
+    Level[] levels = new Level[model.getN() + 1];
+    levels[model.getN()] = level(model, model.getN());
+    for (int k = model.getN(); k > 1; k--) {
+      levels[k - 1] = levels[k].lower;
+    }
+
+    Writer out = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(filename), "UTF-8"), 1 << 16);
+    try {
+      out.write("\n\\data\\\n");
+      for (int k = 1; k < levels.length; k++) {
+        long entries = 0;
+        Iterator<List<String>> it = entries(levels, k);
+        while (it.hasNext()) {
+          it.next();
+          entries++;
+        }
+        out.write("ngram " + k + "=" + entries + "\n");
+      }
+      for (int k = 1; k < levels.length; k++) {
+        out.write("\n\\" + k + "-grams:\n");
+        Iterator<List<String>> it = entries(levels, k);
+        while (it.hasNext()) {
+          List<String> ngram = it.next();
+          List<String> context = ngram.subList(0, k - 1);
+          if (ngram == UNKNOWN_ENTRY) {
+            out.write(format(levels[k].probability(context, NGram.UNKNOWN)));
+            out.write('\t' + ARPA_UNKNOWN + '\n');
+            continue;
+          }
+          out.write(format(levels[k].arpaProbability(context, ngram.get(k - 1))));
+          for (int i = 0; i < k; i++) {
+            out.write(i == 0 ? '\t' : ' ');
+            out.write(toArpa(ngram.get(i)));
+          }
+          if (k + 1 < levels.length && levels[k + 1].isContext(ngram)) {
+            out.write('\t');
+            out.write(format(levels[k + 1].backoffWeight(ngram)));
+          }
+          out.write('\n');
+        }
+      }
+      out.write("\n\\end\\\n");
+    } finally {
+      out.close();
+    }
+  }
+
+  private static String format(double probability) {
+    if (probability <= 0.0) {
+      return Double.toString(LOG_ZERO);
+    }
+    return Double.toString(Math.log10(probability));
+  }
+
+  private static String toArpa(String word) {
+    if (word.equals(NGram.START)) {
+      return ARPA_START;
+    } else if (word.equals(NGram.STOP)) {
+      return ARPA_STOP;
+    }
+    return word;
+  }
+
+  /**
+   * Iterates over the entries of order k: the n-grams listed by levels[k],
+   * then the contexts of levels[k + 1] which are not listed (so they can
+   * carry their backoff weight), and for unigrams UNKNOWN_ENTRY.
+   */
+  private static Iterator<List<String>> entries(final Level[] levels, final int k) {
+    final Iterator<List<String>> listed = levels[k].listed();
+    final Iterator<List<String>> contexts = k + 1 < levels.length
+        ? levels[k + 1].contexts()
+        : Collections.<List<String>> emptyList().iterator();
+    return new Iterator<List<String>>() {
+      List<String> next = advance();
+      boolean unknownDone = (k != 1);
+
+      private List<String> advance() {
+        if (listed.hasNext()) {
+          return listed.next();
+        }
+        while (contexts.hasNext()) {
+          List<String> context = contexts.next();
+          if (!levels[k].isListed(context)) {
+            return context;
+          }
+        }
+        return null;
+      }
+
+      public boolean hasNext() {
+        return next != null || !unknownDone;
+      }
+
+      public List<String> next() {
+        if (next != null) {
+          List<String> result = next;
+          next = advance();
+          return result;
+        }
+        if (!unknownDone) {
+          unknownDone = true;
+          return UNKNOWN_ENTRY;
+        }
+        throw new NoSuchElementException();
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  // -----------------------------------------------------------------------
+
+  /**
+   * Returns the level of order k of the model: the model itself if k is its
+   * order, otherwise the distribution it backs off to.
+   */
+  private static Level level(NGram model, int k) {
+    Level lower = null;
+    if (k > 1) {
+      lower = lowerLevel(model, k - 1);
+      if (lower == null) {
+        throw new IllegalArgumentException(model + " has no order " + (k - 1)
+            + " model to back off to, so it cannot be written as ARPA");
+      }
+    }
+    if (model instanceof ConstantEMInterpolatedNGramModel) {
+      return new MixtureLevel(k, (ConstantEMInterpolatedNGramModel) model, lower);
+    }
+    assert model.getN() == k;
+    return new ModelLevel(model, lower);
+  }
+
+  /**
+   * Level of order k below the given model, or null if the model has none.
+   */
+  private static Level lowerLevel(NGram model, int k) {
+    if (model.getN() <= k) {
+      if (model.getN() == k) {
+        return level(model, k);
+      }
+      // Skipped order: nothing listed, everything backs off.
+      return new PassThroughLevel(k, lowerLevel(model, k - 1));
+    }
+    if (model instanceof BackoffModel) {
+      return lowerLevel(((BackoffModel) model).getBackoffModel(), k);
+    }
+    if (model instanceof ConstantEMInterpolatedNGramModel) {
+      for (NGram component : ((ConstantEMInterpolatedNGramModel) model)
+          .getModels()) {
+        if (lowerLevel(component, k) != null) {
+          return level(model, k);
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The order k distribution of a model flattened to backoff form.
+   */
+  private static abstract class Level {
+    int order;
+    Level lower;
+
+    Level(int order, Level lower) {
+      this.order = order;
+      this.lower = lower;
+    }
+
+    /**
+     * Contexts (of length order - 1) which have listed words.
+     */
+    abstract Iterator<List<String>> contexts();
+
+    abstract boolean isContext(List<String> context);
+
+    abstract Set<String> listedWords(List<String> context);
+
+    abstract boolean isListed(List<String> context, String word);
+
+    /**
+     * The probability of the word given the context, according to the
+     * model. It equals arpaProbability for listed n-grams.
+     */
+    abstract double probability(List<String> context, String word);
+
+    abstract double backoffWeight(List<String> context);
+
+    boolean isListed(List<String> ngram) {
+      return isListed(ngram.subList(0, order - 1), ngram.get(order - 1));
+    }
+
+    /**
+     * Iterates over the listed n-grams, context by context.
+     */
+    Iterator<List<String>> listed() {
+      final Iterator<List<String>> contexts = contexts();
+      return new Iterator<List<String>>() {
+        List<String> context;
+        Iterator<String> words = Collections.<String> emptyList().iterator();
+
+        public boolean hasNext() {
+          while (!words.hasNext() && contexts.hasNext()) {
+            context = contexts.next();
+            words = listedWords(context).iterator();
+          }
+          return words.hasNext();
+        }
+
+        public List<String> next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          List<String> ngram = new ArrayList<String>(context);
+          ngram.add(words.next());
+          return ngram;
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    /**
+     * The probability a reader of the ARPA file will compute.
+     */
+    double arpaProbability(List<String> context, String word) {
+      if (isListed(context, word)) {
+        return probability(context, word);
+      }
+      if (lower == null) {
+        return probability(context, NGram.UNKNOWN);
+      }
+      return backoffWeight(context)
+          * lower.arpaProbability(context.subList(1, context.size()), word);
+    }
+  }
+
+  /**
+   * A BackoffModel, or a leaf model at the bottom of a chain.
+   */
+  private static class ModelLevel extends Level {
+    private NGram model;
+
+    ModelLevel(NGram model, Level lower) {
+      super(model.getN(), lower);
+      this.model = model;
+      if (!(model instanceof BackoffModel) && model.getN() > 1) {
+        throw new IllegalArgumentException(model + " of order "
+            + model.getN() + " does not back off, so it cannot be written as ARPA");
+      }
+    }
+
+    @Override
+    Iterator<List<String>> contexts() {
+      return model.knownPrefixes().iterator();
+    }
+
+    @Override
+    boolean isContext(List<String> context) {
+      return model.knownPrefixes().contains(context);
+    }
+
+    @Override
+    Set<String> listedWords(List<String> context) {
+      if (!isContext(context)) {
+        return Collections.emptySet();
+      }
+      return model.knownWords(context);
+    }
+
+    @Override
+    boolean isListed(List<String> context, String word) {
+      return isContext(context) && model.knownWords(context).contains(word);
+    }
+
+    @Override
+    double probability(List<String> context, String word) {
+      return model.getWordProbability(context, word);
+    }
+
+    @Override
+    double backoffWeight(List<String> context) {
+      return ((BackoffModel) model).getAlpha(context);
+    }
+  }
+
+  /**
+   * An order no model provides: nothing is listed and everything backs off.
+   */
+  private static class PassThroughLevel extends Level {
+
+    PassThroughLevel(int order, Level lower) {
+      super(order, lower);
+    }
+
+    @Override
+    Iterator<List<String>> contexts() {
+      return Collections.<List<String>> emptyList().iterator();
+    }
+
+    @Override
+    boolean isContext(List<String> context) {
+      return false;
+    }
+
+    @Override
+    Set<String> listedWords(List<String> context) {
+      return Collections.emptySet();
+    }
+
+    @Override
+    boolean isListed(List<String> context, String word) {
+      return false;
+    }
+
+    @Override
+    double probability(List<String> context, String word) {
+      return lower.probability(context.subList(1, context.size()), word);
+    }
+
+    @Override
+    double backoffWeight(List<String> context) {
+      return 1.0;
+    }
+  }
+
+  /**
+   * The order k interpolation of the order k levels of the models of a
+   * ConstantEMInterpolatedNGramModel, with the weights of the models which
+   * have such a level renormalized.
+   */
+  private static class MixtureLevel extends Level {
+    private List<Level> components;
+    private List<Double> weights;
+    private double totalWeight;
+
+    MixtureLevel(int order, ConstantEMInterpolatedNGramModel model, Level lower) {
+      super(order, lower);
+      components = new ArrayList<Level>();
+      weights = new ArrayList<Double>();
+      List<NGram> models = model.getModels();
+      List<Double> modelWeights = model.modelWeigths();
+      assert modelWeights.size() == models.size() : "model must be tuned";
+      for (int i = 0; i < models.size(); i++) {
+        // Models of lower order take part through a PassThroughLevel.
+        Level component = lowerLevel(models.get(i), order);
+        if (component != null) {
+          components.add(component);
+          weights.add(modelWeights.get(i));
+          totalWeight += modelWeights.get(i);
+        }
+      }
+    }
+
+    private List<String> chop(List<String> context, Level component) {
+      return context.subList(context.size() - component.order + 1,
+          context.size());
+    }
+
+    /**
+     * Components listing words at this order.
+     */
+    private boolean lists(Level component) {
+      return component.order == order;
+    }
+
+    @Override
+    Iterator<List<String>> contexts() {
+      final List<Level> listing = new ArrayList<Level>();
+      for (Level component : components) {
+        if (lists(component)) {
+          listing.add(component);
+        }
+      }
+      return new Iterator<List<String>>() {
+        int current = -1;
+        Iterator<List<String>> contexts = Collections.<List<String>> emptyList().iterator();
+        List<String> next = advance();
+
+        private List<String> advance() {
+          while (true) {
+            while (!contexts.hasNext()) {
+              if (++current == listing.size()) {
+                return null;
+              }
+              contexts = listing.get(current).contexts();
+            }
+            List<String> context = contexts.next();
+            // Skip contexts already returned for an earlier component.
+            boolean seen = false;
+            for (int i = 0; i < current && !seen; i++) {
+              seen = listing.get(i).isContext(context);
+            }
+            if (!seen) {
+              return context;
+            }
+          }
+        }
+
+        public boolean hasNext() {
+          return next != null;
+        }
+
+        public List<String> next() {
+          if (next == null) {
+            throw new NoSuchElementException();
+          }
+          List<String> result = next;
+          next = advance();
+          return result;
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    @Override
+    boolean isContext(List<String> context) {
+      for (Level component : components) {
+        if (lists(component) && component.isContext(context)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    Set<String> listedWords(List<String> context) {
+      Set<String> words = new HashSet<String>();
+      for (Level component : components) {
+        if (lists(component)) {
+          words.addAll(component.listedWords(context));
+        }
+      }
+      return words;
+    }
+
+    @Override
+    boolean isListed(List<String> context, String word) {
+      for (Level component : components) {
+        if (lists(component) && component.isListed(context, word)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    double probability(List<String> context, String word) {
+      double probability = 0.0;
+      for (int i = 0; i < components.size(); i++) {
+        Level component = components.get(i);
+        probability += component.probability(chop(context, component), word)
+            * weights.get(i);
+      }
+      return probability / totalWeight;
+    }
+
+    @Override
+    double backoffWeight(List<String> context) {
+      double sumProbability = 0.0, sumLowerProbability = 0.0;
+      List<String> lowerContext = context.subList(1, context.size());
+      for (String word : listedWords(context)) {
+        sumProbability += probability(context, word);
+        sumLowerProbability += lower.arpaProbability(lowerContext, word);
+      }
+      return (1 - sumProbability) / (1 - sumLowerProbability);
+    }
+  }
+
+}
@@ -24,8 +24,14 @@ public class BackoffModel extends NGram {
 
   @Override
   public void train(Collection<List<String>> trainingSentences) {
-    primaryModel.train(trainingSentences);
-    backoffModel.train(trainingSentences);
+    resetScorer();
+    NGramCountStore store = NGramCountStore.open(trainingSentences, n);
+    try {
+      primaryModel.train(trainingSentences);
+      backoffModel.train(trainingSentences);
+    } finally {
+      store.release();
+    }
     calculateAlpha();
   }
 
@@ -55,6 +61,15 @@ public class BackoffModel extends NGram {
 
   @Override
   public double getWordProbability(List<String> prefix, String word) {
+    NGramScorer scorer = getScorer();
+    if (scorer instanceof BackoffTrie) {
+      // Look the word up in the compiled chain.
+      long state = 0L;
+      for (String prefixWord : prefix) {
+        state = scorer.nextState(state, scorer.getId(prefixWord));
+      }
+      return scorer.probability(state, scorer.getId(word));
+    }
     if (!knownPrefixes().contains(prefix)) {
       // Must back off with implicit alpha = 1;
       return backoffModel.getWordProbability(getBackoffModelPrefix(prefix), word);
@@ -66,6 +81,55 @@ public class BackoffModel extends NGram {
     return primaryModel.getWordProbability(prefix, word);
   }
 
+  /**
+   * The seen words plus alpha times the mass the backoff model leaves them,
+   * or the mass of the backoff model after an unknown prefix.
+   */
+  @Override
+  protected double probabilityMass(List<String> prefix) {
+    List<String> backoffPrefix = getBackoffModelPrefix(prefix);
+    double backoffMass = backoffModel.cachedProbabilityMass(backoffPrefix);
+    if (!knownPrefixes().contains(prefix)) {
+      return backoffMass;
+    }
+    double seenMass = 0.0;
+    double seenBackoffMass = 0.0;
+    for (String word : knownWords(prefix)) {
+      seenMass += getWordProbability(prefix, word);
+      seenBackoffMass += backoffModel.getWordProbability(backoffPrefix, word);
+    }
+    return seenMass + alpha.get(prefix) * (backoffMass - seenBackoffMass);
+  }
+
+  @Override
+  protected NGramScorer createScorer(Vocabulary vocabulary) {
+    BackoffTrie trie = BackoffTrie.compile(this, vocabulary);
+    if (trie != null) {
+      return trie;
+    }
+    NGramScorer primary = primaryModel.createScorer(vocabulary);
+    if (!(primary instanceof CountsScorer)) {
+      return super.createScorer(vocabulary);
+    }
+    return new BackoffScorer((CountsScorer) primary,
+        backoffModel.createScorer(vocabulary), vocabulary);
+  }
+
+  NGram getPrimaryModel() {
+    return primaryModel;
+  }
+
+  NGram getBackoffModel() {
+    return backoffModel;
+  }
+
+  /**
+   * Weight given to the backoff model for words unseen after a known prefix.
+   */
+  double getAlpha(List<String> prefix) {
+    return alpha.get(prefix);
+  }
+
   @Override
   public Set<List<String>> knownPrefixes() {
     return primaryModel.knownPrefixes();
@@ -81,4 +145,48 @@ public class BackoffModel extends NGram {
     return primaryModel.lexicon();
   }
 
+  /**
+   * Scores through the scorers of the primary and backoff models, with the
+   * alphas indexed by the contexts of the primary scorer.
+   */
+  private class BackoffScorer extends NGramScorer {
+
+    private CountsScorer primary;
+    private NGramScorer backoff;
+    private double[] alphas;
+
+    BackoffScorer(CountsScorer primary, NGramScorer backoff,
+        Vocabulary vocabulary) {
+      super(primary.getN(), vocabulary);
+      this.primary = primary;
+      this.backoff = backoff;
+      this.alphas = new double[primary.getCounts().numPrefixes()];
+      for (Map.Entry<List<String>, Double> entry : alpha.entrySet()) {
+        long state = 0L;
+        for (String word : entry.getKey()) {
+          state = nextState(state, getId(word));
+        }
+        int context = primary.context(state);
+        if (context >= 0) {
+          alphas[context] = entry.getValue();
+        }
+      }
+    }
+
+    @Override
+    public double probability(long state, int word) {
+      int context = primary.context(state);
+      if (context < 0) {
+        // Must back off with implicit alpha = 1;
+        return backoff.probability(state, word);
+      }
+      int position = primary.find(context, word);
+      if (position < 0) {
+        // Backoff with alpha.
+        return backoff.probability(state, word) * alphas[context];
+      }
+      return primary.probability(context, position);
+    }
+  }
+
 }
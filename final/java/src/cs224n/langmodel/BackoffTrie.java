@@ -0,0 +1,345 @@
+package cs224n.langmodel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A trained chain of BackoffModels (e.g. BackoffZipfTriGramModel) compiled
+ * into one trie of reversed contexts: the children of the root are the
+ * most recent context words, their children the words before them, and so
+ * on. Each node stores inline the sorted ids of the words seen after its
+ * context by the model of the matching order, their log-probabilities, and
+ * the log of its backoff weight (for the lowest model of the chain, the
+ * log-probability of each unseen word instead).
+ * <p>
+ * A lookup walks down from the root once, following the context from the
+ * most recent word, and at each depth either replaces the log-probability
+ * with the one listed at the node or adds the node's backoff weight. This
+ * gives the probability of BackoffModel.getWordProbability, where unknown
+ * contexts back off with a weight of one, without recursion or maps. All
+ * arrays are flat and indexed by node, nodes being numbered depth by depth
+ * in order of their reversed contexts, so the children of a node are
+ * contiguous; the root, which has about one child per word, is also
+ * indexed by word.
+ */
+class BackoffTrie extends NGramScorer {
+
+  private static final double LN_2 = Math.log(2.0);
+
+  private int leafDepth;
+  // Log-probability of any word when the context of the lowest model is
+  // unknown.
+  private float leafUnknownContext;
+  // Per node: the context word leading to it, its children and its words.
+  private int[] edgeWords;
+  private int[] childStart;
+  private int[] childEnd;
+  private int[] wordStart;
+  private float[] values;
+  // Per listed word, in node order.
+  private int[] words;
+  private float[] logProbabilities;
+  // The root indexed directly by word: its child for each word (-1 if
+  // none), and the log-probability of each word if the root is the lowest
+  // model.
+  private int[] rootChildren;
+  private float[] rootLogProbabilities;
+
+  private BackoffTrie(int n, Vocabulary vocabulary) {
+    super(n, vocabulary);
+  }
+
+  /**
+   * One model of the chain, whose contexts have depth = order - 1.
+   */
+  private static class Layer {
+    BackoffModel backoff;
+    CountsScorer scorer;
+    int depth;
+    // Scorer id of each id of the counts, -1 if not in the vocabulary.
+    int[] scorerIds;
+
+    Layer(BackoffModel backoff, CountsScorer scorer, int numWords) {
+      this.backoff = backoff;
+      this.scorer = scorer;
+      this.depth = scorer.getN() - 1;
+      int numCountIds = 0;
+      for (int id = 0; id < numWords; id++) {
+        numCountIds = Math.max(numCountIds, scorer.countsId(id) + 1);
+      }
+      scorerIds = new int[numCountIds];
+      Arrays.fill(scorerIds, -1);
+      for (int id = 0; id < numWords; id++) {
+        if (scorer.countsId(id) >= 0) {
+          scorerIds[scorer.countsId(id)] = id;
+        }
+      }
+    }
+
+    int scorerId(int countsId) {
+      return countsId < scorerIds.length ? scorerIds[countsId] : -1;
+    }
+
+    /**
+     * Fills reversed with the scorer ids of the context, most recent first,
+     * returning false if one is not in the vocabulary.
+     */
+    boolean reversedContext(int context, int[] reversed) {
+      NGramCounts counts = scorer.getCounts();
+      for (int i = 0; i < depth; i++) {
+        reversed[i] = scorerId(counts.prefixWord(context, depth - 1 - i));
+        if (reversed[i] < 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Compiles the chain of the model, or returns null if some model of it is
+   * not backed by counts or the orders do not decrease strictly.
+   */
+  static BackoffTrie compile(BackoffModel model, Vocabulary vocabulary) {
+    List<Layer> layers = new ArrayList<Layer>();
+    NGram current = model;
+    while (current instanceof BackoffModel) {
+      BackoffModel backoff = (BackoffModel) current;
+      NGramScorer scorer = backoff.getPrimaryModel().createScorer(vocabulary);
+      if (!(scorer instanceof CountsScorer)) {
+        return null;
+      }
+      layers.add(new Layer(backoff, (CountsScorer) scorer, vocabulary.size()));
+      current = backoff.getBackoffModel();
+    }
+    NGramScorer leafScorer = current.createScorer(vocabulary);
+    if (!(leafScorer instanceof CountsScorer)) {
+      return null;
+    }
+    layers.add(new Layer(null, (CountsScorer) leafScorer, vocabulary.size()));
+    for (int i = 1; i < layers.size(); i++) {
+      if (layers.get(i).depth >= layers.get(i - 1).depth) {
+        return null;
+      }
+    }
+    BackoffTrie trie = new BackoffTrie(model.getN(), vocabulary);
+    trie.build(layers);
+    return trie;
+  }
+
+  private void build(List<Layer> layers) {
+    int maxDepth = n - 1;
+    Layer leaf = layers.get(layers.size() - 1);
+    leafDepth = leaf.depth;
+    leafUnknownContext = (float) leaf.scorer.logProbability(-1, -1);
+
+    // The nodes of each depth, as sorted reversed context keys.
+    long[][] levels = new long[maxDepth + 1][];
+    int[] sizes = new int[maxDepth + 1];
+    for (int depth = 1; depth <= maxDepth; depth++) {
+      int size = 0;
+      for (Layer layer : layers) {
+        if (layer.depth >= depth) {
+          size += layer.scorer.getCounts().numPrefixes();
+        }
+      }
+      levels[depth] = new long[size];
+    }
+    levels[0] = new long[] { 0L };
+    sizes[0] = 1;
+    int[] reversed = new int[Math.max(maxDepth, 1)];
+    for (Layer layer : layers) {
+      NGramCounts counts = layer.scorer.getCounts();
+      for (int context = 0; context < counts.numPrefixes(); context++) {
+        if (layer.reversedContext(context, reversed)) {
+          for (int depth = 1; depth <= layer.depth; depth++) {
+            levels[depth][sizes[depth]++] = NGramCountTable.pack(reversed, 0,
+                depth, bits);
+          }
+        }
+      }
+    }
+    int numNodes = 0;
+    int[] levelStart = new int[maxDepth + 2];
+    for (int depth = 0; depth <= maxDepth; depth++) {
+      levels[depth] = sortedUnique(levels[depth], sizes[depth]);
+      levelStart[depth] = numNodes;
+      numNodes += levels[depth].length;
+    }
+    levelStart[maxDepth + 1] = numNodes;
+
+    // Link the nodes to their children.
+    edgeWords = new int[numNodes];
+    childStart = new int[numNodes];
+    childEnd = new int[numNodes];
+    long wordMask = (1L << bits) - 1;
+    for (int depth = 1; depth <= maxDepth; depth++) {
+      long[] level = levels[depth];
+      for (int i = 0; i < level.length; i++) {
+        int node = levelStart[depth] + i;
+        int parent = levelStart[depth - 1]
+            + Arrays.binarySearch(levels[depth - 1], level[i] >>> bits);
+        edgeWords[node] = (int) (level[i] & wordMask);
+        if (childEnd[parent] == 0) {
+          childStart[parent] = node;
+        }
+        childEnd[parent] = node + 1;
+      }
+    }
+
+    // Words listed at each node, and the node values.
+    values = new float[numNodes];
+    int[] numWords = new int[numNodes];
+    int[][] contextNodes = new int[layers.size()][];
+    for (int l = 0; l < layers.size(); l++) {
+      Layer layer = layers.get(l);
+      NGramCounts counts = layer.scorer.getCounts();
+      contextNodes[l] = new int[counts.numPrefixes()];
+      for (int context = 0; context < counts.numPrefixes(); context++) {
+        int node = -1;
+        if (layer.reversedContext(context, reversed)) {
+          node = levelStart[layer.depth] + Arrays.binarySearch(
+              levels[layer.depth], NGramCountTable.pack(reversed, 0,
+                  layer.depth, bits));
+          for (int i = counts.wordStart(context); i < counts.wordEnd(context); i++) {
+            if (layer.scorerId(counts.wordAt(i)) >= 0) {
+              numWords[node]++;
+            }
+          }
+        }
+        contextNodes[l][context] = node;
+      }
+    }
+    for (int node = levelStart[leafDepth]; node < levelStart[leafDepth + 1]; node++) {
+      // Contexts of the lowest model it has not seen.
+      values[node] = leafUnknownContext;
+    }
+    wordStart = new int[numNodes + 1];
+    for (int node = 0; node < numNodes; node++) {
+      wordStart[node + 1] = wordStart[node] + numWords[node];
+    }
+    words = new int[wordStart[numNodes]];
+    logProbabilities = new float[wordStart[numNodes]];
+    for (int l = 0; l < layers.size(); l++) {
+      Layer layer = layers.get(l);
+      NGramCounts counts = layer.scorer.getCounts();
+      for (int context = 0; context < counts.numPrefixes(); context++) {
+        int node = contextNodes[l][context];
+        if (node < 0) {
+          continue;
+        }
+        long[] entries = new long[numWords[node]];
+        int next = 0;
+        for (int i = counts.wordStart(context); i < counts.wordEnd(context); i++) {
+          int word = layer.scorerId(counts.wordAt(i));
+          if (word >= 0) {
+            float logProbability = (float) layer.scorer.logProbability(context, i);
+            entries[next++] = ((long) word << 32)
+                | (Float.floatToIntBits(logProbability) & 0xFFFFFFFFL);
+          }
+        }
+        Arrays.sort(entries);
+        for (int i = 0; i < entries.length; i++) {
+          words[wordStart[node] + i] = (int) (entries[i] >>> 32);
+          logProbabilities[wordStart[node] + i] = Float.intBitsToFloat((int) entries[i]);
+        }
+        if (layer.backoff == null) {
+          values[node] = (float) layer.scorer.logProbability(context, -1);
+        } else {
+          List<String> prefix = new ArrayList<String>(layer.depth);
+          for (int i = 0; i < layer.depth; i++) {
+            prefix.add(getWord(layer.scorerId(counts.prefixWord(context, i))));
+          }
+          values[node] = (float) Math.log(layer.backoff.getAlpha(prefix));
+        }
+      }
+    }
+
+    rootChildren = new int[unknownId + 1];
+    Arrays.fill(rootChildren, -1);
+    for (int node = childStart[0]; node < childEnd[0]; node++) {
+      rootChildren[edgeWords[node]] = node;
+    }
+    if (leafDepth == 0) {
+      rootLogProbabilities = new float[unknownId + 1];
+      Arrays.fill(rootLogProbabilities, values[0]);
+      for (int i = wordStart[0]; i < wordStart[1]; i++) {
+        rootLogProbabilities[words[i]] = logProbabilities[i];
+      }
+    }
+  }
+
+  /**
+   * Returns the distinct values among the first size of keys, sorted.
+   */
+  private static long[] sortedUnique(long[] keys, int size) {
+    long[] sorted = Arrays.copyOf(keys, size);
+    Arrays.sort(sorted);
+    int unique = 0;
+    for (int i = 0; i < sorted.length; i++) {
+      if (unique == 0 || sorted[unique - 1] != sorted[i]) {
+        sorted[unique++] = sorted[i];
+      }
+    }
+    return Arrays.copyOf(sorted, unique);
+  }
+
+  private static int search(int[] array, int from, int to, int key) {
+    int low = from;
+    int high = to - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (array[middle] < key) {
+        low = middle + 1;
+      } else if (array[middle] > key) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Natural log of the probability of the word after the context of the
+   * state.
+   */
+  double logProbability(long state, int word) {
+    double logProbability = (leafDepth == 0) ? rootLogProbabilities[word]
+        : leafUnknownContext;
+    if (n == 1) {
+      return logProbability;
+    }
+    int node = rootChildren[contextWord(state, n - 2)];
+    for (int depth = 1; node >= 0; depth++) {
+      if (depth >= leafDepth) {
+        int position = search(words, wordStart[node], wordStart[node + 1], word);
+        if (position >= 0) {
+          logProbability = logProbabilities[position];
+        } else if (depth == leafDepth) {
+          logProbability = values[node];
+        } else {
+          logProbability += values[node];
+        }
+      }
+      if (depth == n - 1) {
+        break;
+      }
+      node = search(edgeWords, childStart[node], childEnd[node],
+          contextWord(state, n - 2 - depth));
+    }
+    return logProbability;
+  }
+
+  @Override
+  public double probability(long state, int word) {
+    return Math.exp(logProbability(state, word));
+  }
+
+  @Override
+  public double score(long state, int word) {
+    return logProbability(state, word) / LN_2;
+  }
+
+}
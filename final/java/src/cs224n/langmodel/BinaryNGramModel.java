@@ -0,0 +1,937 @@
+package cs224n.langmodel;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A query-only NGram read from a binary model file through
+ * FileChannel.map, so opening a model only reads its vocabulary and several
+ * processes share the mapped tables through the page cache.
+ *
+ * The file describes the structure of the model it was written from:
+ * <ul>
+ * <li>leaf models (e.g. ZipfSmoothNGramModel) store, for each known prefix,
+ * the log-probabilities of the words seen after it and the log-probability
+ * of each unseen word, plus the log-probability of any word after an unknown
+ * prefix;</li>
+ * <li>BackoffModels store the log-probabilities of their primary model and
+ * the log of the backoff weight of each known prefix, followed by the
+ * backoff model;</li>
+ * <li>ConstantEMInterpolatedNGramModels store their weights followed by each
+ * of their models.</li>
+ * </ul>
+ * Each table holds the packed prefix keys (see {@link NGramCountTable#pack})
+ * in increasing order and, per prefix, the sorted ids of the words seen
+ * after it, so a lookup is two binary searches.
+ */
+public class BinaryNGramModel extends NGram {
+
+  private static final long serialVersionUID = 1983405811238432876L;
+  private static final int MAGIC = 0x4e47524d; // "NGRM"
+  private static final int VERSION = 1;
+  static final int LEAF = 0;
+  static final int BACKOFF = 1;
+  static final int INTERPOLATED = 2;
+  // Tokens are split on whitespace, so this can never be a trained word.
+  private static final String UNSEEN = "<UNSEEN WORD/>";
+
+  private static final double LN_2 = Math.log(2.0);
+
+  private transient String filename;
+  private transient String[] words;
+  private transient Map<String, Integer> ids;
+  private transient int lexiconSize;
+  // Contexts pack the ids of the last n - 1 words, the most recent in the
+  // lowest bits, with words.length standing for words out of the vocabulary.
+  private transient int contextBits;
+  private transient Node root;
+  private transient Set<String> lexiconView;
+  private transient Set<List<String>> prefixesView;
+
+  private BinaryNGramModel(int n) {
+    super(n);
+  }
+
+  @Override
+  public void train(Collection<List<String>> trainingSentences) {
+    throw new UnsupportedOperationException("Binary models are query-only");
+  }
+
+  private int getId(String word) {
+    Integer id = ids.get(word);
+    return id == null ? -1 : id;
+  }
+
+  /**
+   * Packs the ids of the words of the prefix into a context.
+   */
+  private long getContext(List<?> prefix) {
+    long context = 0L;
+    for (Object word : prefix) {
+      int id = (word instanceof String) ? getId((String) word) : -1;
+      context = (context << contextBits) | (id < 0 ? words.length : id);
+    }
+    return context;
+  }
+
+  @Override
+  public double getWordProbability(List<String> prefix, String word) {
+    assert prefix.size() == n - 1;
+    return Math.exp(root.logProbability(getContext(prefix), getId(word)));
+  }
+
+  @Override
+  protected NGramScorer createScorer(Vocabulary vocabulary) {
+    return new BinaryScorer(vocabulary);
+  }
+
+  @Override
+  public Set<List<String>> knownPrefixes() {
+    if (prefixesView == null) {
+      prefixesView = new PrefixSet(root.knownTable());
+    }
+    return prefixesView;
+  }
+
+  @Override
+  public Set<String> knownWords(List<String> prefix) {
+    assert prefix.size() == n - 1;
+    Table table = root.knownTable();
+    return new WordSet(table, table.prefixIndex(getContext(prefix)));
+  }
+
+  @Override
+  protected Set<String> lexicon() {
+    if (lexiconView == null) {
+      lexiconView = new LexiconSet();
+    }
+    return lexiconView;
+  }
+
+  // -----------------------------------------------------------------------
+  // Reading
+
+  /**
+   * Opens a model written by {@link #write}.
+   */
+  public static BinaryNGramModel open(String filename) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(filename, "r");
+    try {
+      Input in = new Input(file.getChannel());
+      if (in.readInt() != MAGIC) {
+        throw new IOException(filename + " is not a binary model file");
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported binary model version " + version
+            + " in " + filename + ", expected " + VERSION);
+      }
+      BinaryNGramModel model = new BinaryNGramModel(in.readInt());
+      model.filename = new File(filename).getAbsolutePath();
+      model.words = new String[in.readInt()];
+      model.lexiconSize = in.readInt();
+      model.ids = new HashMap<String, Integer>();
+      ByteBuffer vocabulary = in.map(in.readLong());
+      for (int i = 0; i < model.words.length; i++) {
+        byte[] bytes = new byte[vocabulary.getInt()];
+        vocabulary.get(bytes);
+        model.words[i] = new String(bytes, "UTF-8");
+        model.ids.put(model.words[i], i);
+      }
+      in.align();
+      model.contextBits = contextBits(model.words.length);
+      model.root = readNode(in, model.words.length);
+      return model;
+    } finally {
+      // The mappings stay valid after the file is closed.
+      file.close();
+    }
+  }
+
+  /**
+   * A model is serialized as the path of its file, which is opened again
+   * when it is deserialized.
+   */
+  private Object writeReplace() throws ObjectStreamException {
+    return new SerializedForm(filename);
+  }
+
+  private static class SerializedForm implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final String filename;
+
+    SerializedForm(String filename) {
+      this.filename = filename;
+    }
+
+    private Object readResolve() throws ObjectStreamException {
+      try {
+        return open(filename);
+      } catch (IOException e) {
+        InvalidObjectException error = new InvalidObjectException(
+            "Cannot reopen binary model " + filename + ": " + e.getMessage());
+        error.initCause(e);
+        throw error;
+      }
+    }
+  }
+
+  /**
+   * Number of bits per word id in contexts, which also hold the id
+   * vocabularySize of unknown words.
+   */
+  private static int contextBits(int vocabularySize) {
+    return Math.max(1, 32 - Integer.numberOfLeadingZeros(vocabularySize));
+  }
+
+  private static Node readNode(Input in, int vocabularySize)
+      throws IOException {
+    int type = in.readInt();
+    int order = in.readInt();
+    if (type == LEAF) {
+      Table table = readTable(in, order, vocabularySize);
+      return new LeafNode(table, in.readDouble());
+    } else if (type == BACKOFF) {
+      Table table = readTable(in, order, vocabularySize);
+      return new BackoffNode(table, readNode(in, vocabularySize));
+    } else if (type == INTERPOLATED) {
+      int numModels = in.readInt();
+      double[] weights = new double[numModels];
+      Node[] models = new Node[numModels];
+      for (int i = 0; i < numModels; i++) {
+        weights[i] = in.readDouble();
+      }
+      for (int i = 0; i < numModels; i++) {
+        models[i] = readNode(in, vocabularySize);
+      }
+      return new InterpolatedNode(order, weights, models);
+    }
+    throw new IOException("Unknown node type " + type);
+  }
+
+  private static Table readTable(Input in, int order, int vocabularySize)
+      throws IOException {
+    int numPrefixes = in.readInt();
+    int numNgrams = in.readInt();
+    Table table = new Table(order, vocabularySize);
+    in.align();
+    table.prefixKeys = new MappedArray(in, numPrefixes, 8);
+    table.prefixValues = new MappedArray(in, numPrefixes, 8);
+    table.logProbabilities = new MappedArray(in, numNgrams, 8);
+    table.offsets = new MappedArray(in, numPrefixes + 1, 4);
+    table.words = new MappedArray(in, numNgrams, 4);
+    in.align();
+    return table;
+  }
+
+  /**
+   * Reads scalars and maps arrays from consecutive positions of the file.
+   */
+  private static class Input {
+    private FileChannel channel;
+    private long position;
+    private ByteBuffer scalar;
+
+    Input(FileChannel channel) {
+      this.channel = channel;
+      this.position = 0L;
+      this.scalar = ByteBuffer.allocate(8);
+    }
+
+    private ByteBuffer read(int length) throws IOException {
+      scalar.clear();
+      scalar.limit(length);
+      while (scalar.hasRemaining()) {
+        if (channel.read(scalar, position + scalar.position()) < 0) {
+          throw new IOException("Truncated binary model file");
+        }
+      }
+      position += length;
+      scalar.flip();
+      return scalar;
+    }
+
+    int readInt() throws IOException {
+      return read(4).getInt();
+    }
+
+    long readLong() throws IOException {
+      return read(8).getLong();
+    }
+
+    double readDouble() throws IOException {
+      return read(8).getDouble();
+    }
+
+    ByteBuffer map(long length) throws IOException {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+          length);
+      position += length;
+      return buffer;
+    }
+
+    void align() {
+      position = (position + 7) & ~7L;
+    }
+  }
+
+  /**
+   * An array of longs, doubles or ints mapped from the file in chunks of
+   * at most 1GB, since a single mapping cannot exceed 2GB.
+   */
+  private static class MappedArray {
+    private static final int CHUNK_BITS = 27;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+    private final ByteBuffer[] chunks;
+    private final int length;
+    private final int shift;
+
+    MappedArray(Input in, int length, int elementSize) throws IOException {
+      this.length = length;
+      this.shift = Integer.numberOfTrailingZeros(elementSize);
+      chunks = new ByteBuffer[(length + CHUNK_MASK) >>> CHUNK_BITS];
+      for (int c = 0; c < chunks.length; c++) {
+        int elements = Math.min(CHUNK_MASK + 1, length - (c << CHUNK_BITS));
+        chunks[c] = in.map((long) elements << shift);
+      }
+    }
+
+    int length() {
+      return length;
+    }
+
+    long getLong(int index) {
+      return chunks[index >>> CHUNK_BITS]
+          .getLong((index & CHUNK_MASK) << shift);
+    }
+
+    double getDouble(int index) {
+      return chunks[index >>> CHUNK_BITS]
+          .getDouble((index & CHUNK_MASK) << shift);
+    }
+
+    int getInt(int index) {
+      return chunks[index >>> CHUNK_BITS]
+          .getInt((index & CHUNK_MASK) << shift);
+    }
+  }
+
+  // -----------------------------------------------------------------------
+  // Querying
+
+  private static abstract class Node {
+    int order;
+
+    Node(int order) {
+      this.order = order;
+    }
+
+    /**
+     * Natural log of the probability of word after the last order - 1 words
+     * of the context. The id of a word which is not in the vocabulary is -1.
+     */
+    abstract double logProbability(long context, int word);
+
+    /**
+     * The table defining the known prefixes and words of this model.
+     */
+    abstract Table knownTable();
+  }
+
+  private static class LeafNode extends Node {
+    private Table table;
+    private double unknownPrefixLogProbability;
+
+    LeafNode(Table table, double unknownPrefixLogProbability) {
+      super(table.order);
+      this.table = table;
+      this.unknownPrefixLogProbability = unknownPrefixLogProbability;
+    }
+
+    @Override
+    double logProbability(long context, int word) {
+      int prefix = table.prefixIndex(context);
+      if (prefix < 0) {
+        return unknownPrefixLogProbability;
+      }
+      int position = table.find(prefix, word);
+      if (position < 0) {
+        return table.prefixValues.getDouble(prefix);
+      }
+      return table.logProbabilities.getDouble(position);
+    }
+
+    @Override
+    Table knownTable() {
+      return table;
+    }
+  }
+
+  private static class BackoffNode extends Node {
+    private Table table;
+    private Node backoff;
+
+    BackoffNode(Table table, Node backoff) {
+      super(table.order);
+      this.table = table;
+      this.backoff = backoff;
+    }
+
+    @Override
+    double logProbability(long context, int word) {
+      int prefix = table.prefixIndex(context);
+      if (prefix < 0) {
+        return backoff.logProbability(context, word);
+      }
+      int position = table.find(prefix, word);
+      if (position < 0) {
+        return table.prefixValues.getDouble(prefix)
+            + backoff.logProbability(context, word);
+      }
+      return table.logProbabilities.getDouble(position);
+    }
+
+    @Override
+    Table knownTable() {
+      return table;
+    }
+  }
+
+  private static class InterpolatedNode extends Node {
+    private double[] weights;
+    private Node[] models;
+
+    InterpolatedNode(int order, double[] weights, Node[] models) {
+      super(order);
+      this.weights = weights;
+      this.models = models;
+    }
+
+    @Override
+    double logProbability(long context, int word) {
+      double probability = 0.0;
+      for (int i = 0; i < models.length; i++) {
+        probability += Math.exp(models[i].logProbability(context, word))
+            * weights[i];
+      }
+      return Math.log(probability);
+    }
+
+    @Override
+    Table knownTable() {
+      return models[models.length - 1].knownTable();
+    }
+  }
+
+  /**
+   * Mapped arrays of one model: per prefix its packed key, its value (the
+   * unseen word log-probability for leaves, the log backoff weight for
+   * backoff models) and the range of its words.
+   */
+  private static class Table {
+    int order;
+    int bits;
+    int unknownId;
+    int contextBits;
+    MappedArray prefixKeys;
+    MappedArray prefixValues;
+    MappedArray offsets;
+    MappedArray words;
+    MappedArray logProbabilities;
+
+    Table(int order, int vocabularySize) {
+      this.order = order;
+      this.bits = NGramCountTable.bitsPerWord(order);
+      this.unknownId = vocabularySize;
+      this.contextBits = contextBits(vocabularySize);
+    }
+
+    int numPrefixes() {
+      return prefixKeys.length();
+    }
+
+    /**
+     * Returns the index of the prefix made of the last order - 1 words of
+     * the context, or -1 if it is unknown.
+     */
+    int prefixIndex(long context) {
+      long wordMask = (1L << contextBits) - 1;
+      long key = 0L;
+      for (int i = order - 2; i >= 0; i--) {
+        long id = (context >>> (i * contextBits)) & wordMask;
+        if (id == unknownId) {
+          return -1;
+        }
+        key = (key << bits) | id;
+      }
+      int low = 0;
+      int high = prefixKeys.length() - 1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        long middleKey = prefixKeys.getLong(middle);
+        if (middleKey < key) {
+          low = middle + 1;
+        } else if (middleKey > key) {
+          high = middle - 1;
+        } else {
+          return middle;
+        }
+      }
+      return -1;
+    }
+
+    int find(int prefix, int word) {
+      if (prefix < 0 || word < 0) {
+        return -1;
+      }
+      int low = offsets.getInt(prefix);
+      int high = offsets.getInt(prefix + 1) - 1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        int middleWord = words.getInt(middle);
+        if (middleWord < word) {
+          low = middle + 1;
+        } else if (middleWord > word) {
+          high = middle - 1;
+        } else {
+          return middle;
+        }
+      }
+      return -1;
+    }
+
+    int prefixWord(int prefix, int position) {
+      return NGramCountTable.unpack(prefixKeys.getLong(prefix), position,
+          order - 1, bits);
+    }
+  }
+
+  // -----------------------------------------------------------------------
+  // Writing
+
+  /**
+   * Writes a trained (and tuned) model. The model is described in terms of
+   * BackoffModels, ConstantEMInterpolatedNGramModels and leaf models, which
+   * must give every unseen word after a known prefix the same probability.
+   */
+  public static void write(NGram model, String filename) throws IOException {
+    Vocabulary vocabulary = new Vocabulary();
+    // The lexicon takes the first ids so it can be read back as a range.
+    for (String word : model.lexicon()) {
+      vocabulary.add(word);
+    }
+    int lexiconSize = vocabulary.size();
+    addWords(model, vocabulary);
+
+    Output out = new Output(filename);
+    try {
+      writeHeader(out, model.getN(), vocabulary, lexiconSize);
+      writeNode(out, model, vocabulary);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes the file header and the vocabulary, whose first lexiconSize words
+   * form the lexicon of the model. It must be followed by the root node.
+   */
+  static void writeHeader(Output out, int n, Vocabulary vocabulary,
+      int lexiconSize) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(n);
+    out.writeInt(vocabulary.size());
+    out.writeInt(lexiconSize);
+    List<byte[]> encodedWords = new ArrayList<byte[]>();
+    long vocabularyBytes = 0;
+    for (int i = 0; i < vocabulary.size(); i++) {
+      byte[] bytes = vocabulary.getWord(i).getBytes("UTF-8");
+      encodedWords.add(bytes);
+      vocabularyBytes += 4 + bytes.length;
+    }
+    out.writeLong(vocabularyBytes);
+    for (byte[] bytes : encodedWords) {
+      out.writeInt(bytes.length);
+      out.write(bytes, 0, bytes.length);
+    }
+    out.align();
+  }
+
+  private static void addWords(NGram model, Vocabulary vocabulary) {
+    if (model instanceof ConstantEMInterpolatedNGramModel) {
+      for (NGram component : ((ConstantEMInterpolatedNGramModel) model)
+          .getModels()) {
+        addWords(component, vocabulary);
+      }
+      return;
+    }
+    for (List<String> prefix : model.knownPrefixes()) {
+      for (String word : prefix) {
+        vocabulary.add(word);
+      }
+      for (String word : model.knownWords(prefix)) {
+        vocabulary.add(word);
+      }
+    }
+    if (model instanceof BackoffModel) {
+      addWords(((BackoffModel) model).getBackoffModel(), vocabulary);
+    }
+  }
+
+  private static void writeNode(Output out, NGram model, Vocabulary vocabulary)
+      throws IOException {
+    if (model instanceof ConstantEMInterpolatedNGramModel) {
+      ConstantEMInterpolatedNGramModel interpolated = (ConstantEMInterpolatedNGramModel) model;
+      List<NGram> models = interpolated.getModels();
+      List<Double> weights = interpolated.modelWeigths();
+      assert weights.size() == models.size() : "model must be tuned";
+      out.writeInt(INTERPOLATED);
+      out.writeInt(model.getN());
+      out.writeInt(models.size());
+      for (double weight : weights) {
+        out.writeDouble(weight);
+      }
+      for (NGram component : models) {
+        writeNode(out, component, vocabulary);
+      }
+    } else if (model instanceof BackoffModel) {
+      out.writeInt(BACKOFF);
+      out.writeInt(model.getN());
+      writeTable(out, model, vocabulary);
+      writeNode(out, ((BackoffModel) model).getBackoffModel(), vocabulary);
+    } else {
+      out.writeInt(LEAF);
+      out.writeInt(model.getN());
+      writeTable(out, model, vocabulary);
+      List<String> unknownPrefix = Collections.nCopies(model.getN() - 1, UNSEEN);
+      out.writeDouble(Math.log(model.getWordProbability(unknownPrefix, UNSEEN)));
+    }
+  }
+
+  /**
+   * A known prefix of the model being written, ordered by packed key.
+   */
+  private static class PrefixEntry implements Comparable<PrefixEntry> {
+    long key;
+    List<String> prefix;
+
+    PrefixEntry(long key, List<String> prefix) {
+      this.key = key;
+      this.prefix = prefix;
+    }
+
+    public int compareTo(PrefixEntry other) {
+      return key < other.key ? -1 : (key == other.key ? 0 : 1);
+    }
+  }
+
+  private static void writeTable(Output out, NGram model, Vocabulary vocabulary)
+      throws IOException {
+    int order = model.getN();
+    int bits = NGramCountTable.bitsPerWord(order);
+    PrefixEntry[] prefixes = new PrefixEntry[model.knownPrefixes().size()];
+    int numNgrams = 0;
+    int[] prefixIds = new int[order];
+    int next = 0;
+    for (List<String> prefix : model.knownPrefixes()) {
+      vocabulary.getIds(prefix, prefixIds);
+      prefixes[next++] = new PrefixEntry(NGramCountTable.pack(prefixIds, 0,
+          order - 1, bits), prefix);
+      numNgrams += model.knownWords(prefix).size();
+    }
+    Arrays.sort(prefixes);
+
+    double[] prefixValues = new double[prefixes.length];
+    int[] offsets = new int[prefixes.length + 1];
+    int[] wordIds = new int[numNgrams];
+    double[] logProbabilities = new double[numNgrams];
+    int position = 0;
+    for (int p = 0; p < prefixes.length; p++) {
+      List<String> prefix = prefixes[p].prefix;
+      offsets[p] = position;
+      for (String word : model.knownWords(prefix)) {
+        wordIds[position++] = vocabulary.getId(word);
+      }
+      Arrays.sort(wordIds, offsets[p], position);
+      for (int i = offsets[p]; i < position; i++) {
+        logProbabilities[i] = Math.log(model.getWordProbability(prefix,
+            vocabulary.getWord(wordIds[i])));
+      }
+      if (model instanceof BackoffModel) {
+        prefixValues[p] = Math.log(((BackoffModel) model).getAlpha(prefix));
+      } else {
+        prefixValues[p] = Math.log(model.getWordProbability(prefix, UNSEEN));
+      }
+    }
+    offsets[prefixes.length] = position;
+
+    long[] prefixKeys = new long[prefixes.length];
+    for (int p = 0; p < prefixes.length; p++) {
+      prefixKeys[p] = prefixes[p].key;
+    }
+    writeTable(out, prefixKeys, prefixValues, logProbabilities, offsets,
+        wordIds);
+  }
+
+  /**
+   * Writes the table of a leaf or backoff node. Prefix keys must be sorted,
+   * and so must the word ids within each prefix.
+   */
+  static void writeTable(Output out, long[] prefixKeys,
+      double[] prefixValues, double[] logProbabilities, int[] offsets,
+      int[] wordIds) throws IOException {
+    out.writeInt(prefixKeys.length);
+    out.writeInt(wordIds.length);
+    out.align();
+    for (long key : prefixKeys) {
+      out.writeLong(key);
+    }
+    for (double value : prefixValues) {
+      out.writeDouble(value);
+    }
+    for (double logProbability : logProbabilities) {
+      out.writeDouble(logProbability);
+    }
+    for (int offset : offsets) {
+      out.writeInt(offset);
+    }
+    for (int wordId : wordIds) {
+      out.writeInt(wordId);
+    }
+    out.align();
+  }
+
+  /**
+   * A DataOutputStream which keeps track of its (long) position so arrays
+   * can be aligned for mapping.
+   */
+  static class Output {
+    private DataOutputStream out;
+    private long position;
+
+    Output(String filename) throws IOException {
+      out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(filename), 1 << 16));
+      position = 0L;
+    }
+
+    void writeInt(int value) throws IOException {
+      out.writeInt(value);
+      position += 4;
+    }
+
+    void writeLong(long value) throws IOException {
+      out.writeLong(value);
+      position += 8;
+    }
+
+    void writeDouble(double value) throws IOException {
+      out.writeDouble(value);
+      position += 8;
+    }
+
+    void write(byte[] bytes, int offset, int length) throws IOException {
+      out.write(bytes, offset, length);
+      position += length;
+    }
+
+    void align() throws IOException {
+      while ((position & 7L) != 0) {
+        out.writeByte(0);
+        position++;
+      }
+    }
+
+    void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /**
+   * Scores through the mapped tables, translating the words of the state
+   * into ids of the model file.
+   */
+  private class BinaryScorer extends NGramScorer {
+
+    // Ids of the model file for each scorer id, -1 for unknown words.
+    private int[] modelIds;
+
+    BinaryScorer(Vocabulary vocabulary) {
+      super(BinaryNGramModel.this.n, vocabulary);
+      modelIds = new int[unknownId + 1];
+      for (int id = 0; id < unknownId; id++) {
+        modelIds[id] = BinaryNGramModel.this.getId(vocabulary.getWord(id));
+      }
+      modelIds[unknownId] = -1;
+    }
+
+    private long modelContext(long state) {
+      long context = 0L;
+      for (int i = 0; i < n - 1; i++) {
+        int id = modelIds[contextWord(state, i)];
+        context = (context << contextBits) | (id < 0 ? words.length : id);
+      }
+      return context;
+    }
+
+    @Override
+    public double probability(long state, int word) {
+      return Math.exp(root.logProbability(modelContext(state), modelIds[word]));
+    }
+
+    @Override
+    public double score(long state, int word) {
+      return root.logProbability(modelContext(state), modelIds[word]) / LN_2;
+    }
+  }
+
+  // -----------------------------------------------------------------------
+  // Views
+
+  private class PrefixSet extends AbstractSet<List<String>> {
+    private Table table;
+
+    PrefixSet(Table table) {
+      this.table = table;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof List)) {
+        return false;
+      }
+      List<?> list = (List<?>) o;
+      if (list.size() != n - 1) {
+        return false;
+      }
+      return table.prefixIndex(getContext(list)) >= 0;
+    }
+
+    @Override
+    public Iterator<List<String>> iterator() {
+      return new Iterator<List<String>>() {
+        int next = 0;
+
+        public boolean hasNext() {
+          return next < table.numPrefixes();
+        }
+
+        public List<String> next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          List<String> prefix = new ArrayList<String>(n - 1);
+          for (int i = 0; i < n - 1; i++) {
+            prefix.add(words[table.prefixWord(next, i)]);
+          }
+          next++;
+          return prefix;
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return table.numPrefixes();
+    }
+  }
+
+  private class WordSet extends AbstractSet<String> {
+    private Table table;
+    private int prefix;
+
+    WordSet(Table table, int prefix) {
+      this.table = table;
+      this.prefix = prefix;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof String)) {
+        return false;
+      }
+      return table.find(prefix, getId((String) o)) >= 0;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+      final int start = prefix < 0 ? 0 : table.offsets.getInt(prefix);
+      final int end = prefix < 0 ? 0 : table.offsets.getInt(prefix + 1);
+      return new Iterator<String>() {
+        int next = start;
+
+        public boolean hasNext() {
+          return next < end;
+        }
+
+        public String next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          return words[table.words.getInt(next++)];
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      if (prefix < 0) {
+        return 0;
+      }
+      return table.offsets.getInt(prefix + 1) - table.offsets.getInt(prefix);
+    }
+  }
+
+  private class LexiconSet extends AbstractSet<String> {
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof String)) {
+        return false;
+      }
+      int id = getId((String) o);
+      return id >= 0 && id < lexiconSize;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+      return Arrays.asList(words).subList(0, lexiconSize).iterator();
+    }
+
+    @Override
+    public int size() {
+      return lexiconSize;
+    }
+  }
+
+}
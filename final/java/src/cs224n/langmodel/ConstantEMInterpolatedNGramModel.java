@@ -4,12 +4,11 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-
-import cs224n.util.Counter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 public class ConstantEMInterpolatedNGramModel extends NGram implements TunableModel, Serializable {
 
@@ -39,101 +38,54 @@ public class ConstantEMInterpolatedNGramModel extends NGram implements TunableMo
     ngram = new EmpiricalNGramModel(n);
   }
 
+  /**
+   * Fits the weights of the models by EM on the n-grams of the tuning
+   * sentences. The probabilities of each n-gram under each model do not
+   * change between iterations, so they are computed once into a matrix,
+   * which each iteration then reads in parallel.
+   */
   @Override
   public void tune(Collection<List<String>> trainingSentences) {
+    resetScorer();
     modelTuned = true;
     ngram.train(trainingSentences);
 
     // Initialize weights.
+    weight.clear();
     weight.addAll(Collections.nCopies(models.size(), 1.0 / models.size()));
 
-    // Initialize intermediate probabilities;
-    // P(ngram, Y)
-    Map<List<String>, List<Double>> jointProbability = new HashMap<List<String>, List<Double>>();
-    // P(Y | word)
-    Map<List<String>, List<Double>> reverseConditional = new HashMap<List<String>, List<Double>>();
-    for (List<String> prefix : ngram.knownPrefixes()) {
-      Set<String> wordSet = ngram.knownWords(prefix);
-      for (String word : wordSet) {
-        List<String> ng = new ArrayList<String>(prefix);
-        ng.add(word);
-        jointProbability.put(ng, new ArrayList<Double>());
-        jointProbability.get(ng)
-            .addAll(Collections.nCopies(models.size(), 0.0));
-        reverseConditional.put(ng, new ArrayList<Double>());
-        reverseConditional.get(ng).addAll(
-            Collections.nCopies(models.size(), 0.0));
-      }
-    }
-
-    // Initialize the fractional counts;
-    // E[N(word, Y)]
-    List<Counter<List<String>>> fractionalCount = new ArrayList<Counter<List<String>>>();
-    for (int i = 0; i < models.size(); i++) {
-      fractionalCount.add(new Counter<List<String>>());
+    // P(word | prefix, Y) of every tuning n-gram, and its count.
+    NGramCounts counts = ngram.getCounts();
+    double[][] probabilities = new double[counts.size()][];
+    int[] ngramCounts = new int[counts.size()];
+    for (int i = 0; i < ngramCounts.length; i++) {
+      ngramCounts[i] = counts.countAt(i);
     }
+    ForkJoinPool.commonPool().invoke(new ProbabilityRows(counts, probabilities,
+        0, counts.numPrefixes()));
 
     double previousEntropy = Double.NEGATIVE_INFINITY;
+    double[] weights = new double[models.size()];
     for (int iteration = 0; iteration < NUMBER_ITERATIONS; iteration++) {
-      // E-Step 1- Compute P(word, Y) = P(word|Y) * P(Y)
-      for (List<String> prefix : ngram.knownPrefixes()) {
-        Set<String> wordSet = ngram.knownWords(prefix);
-        for (String word : wordSet) {
-          List<String> ng = new ArrayList<String>(prefix);
-          ng.add(word);
-          for (int i = 0; i < models.size(); i++) {
-            jointProbability.get(ng).set(
-                i,
-                models.get(i).getWordProbability(
-                    models.get(i).chopPrefix(prefix), word)
-                    * weight.get(i));
-          }
-        }
-      }
-
-      // E-step 2- Compute P(Y | word) by normalizing per word.
-      // Compute entropy at the same time: H = SUM(Count(word) * P(word))
-      double entropy = 0.0;
-      for (List<String> prefix : ngram.knownPrefixes()) {
-        Set<String> wordSet = ngram.knownWords(prefix);
-        for (String word : wordSet) {
-          List<String> ng = new ArrayList<String>(prefix);
-          ng.add(word);
-          double total = 0.0;
-          for (int i = 0; i < models.size(); i++) {
-            total += jointProbability.get(ng).get(i);
-          }
-          for (int i = 0; i < models.size(); i++) {
-            reverseConditional.get(ng).set(i,
-                jointProbability.get(ng).get(i) / total);
-          }
-          entropy += ngram.getCount(prefix, word) * Math.log(total);
-        }
-      }
-
-      // E-step 3- Distribute observed count according to P(Y| word)
-      for (List<String> prefix : ngram.knownPrefixes()) {
-        Set<String> wordSet = ngram.knownWords(prefix);
-        for (String word : wordSet) {
-          List<String> ng = new ArrayList<String>(prefix);
-          ng.add(word);
-          for (int i = 0; i < models.size(); i++) {
-            fractionalCount.get(i).setCount(
-                ng,
-                ngram.getCount(prefix, word)
-                    * reverseConditional.get(ng).get(i));
-          }
-        }
+      for (int i = 0; i < weights.length; i++) {
+        weights[i] = weight.get(i);
       }
+      // E-step: distribute the count of each n-gram over the models in
+      // proportion to P(word, Y) = P(word | Y) * P(Y), and sum the
+      // log-likelihood H = SUM(Count(word) * log P(word)).
+      double[] expected = ForkJoinPool.commonPool().invoke(
+          new ExpectedCounts(probabilities, ngramCounts, weights, 0,
+              ngramCounts.length));
+      double entropy = expected[weights.length];
 
       // M-step- Sum the above per model, divide by total word count.
       // that is the new P(Y).
       double total = 0.0;
-      for (int i = 0; i < models.size(); i++) {
-        total += fractionalCount.get(i).totalCount();
+      for (int i = 0; i < weights.length; i++) {
+        total += expected[i];
       }
-      for (int i = 0; i < models.size(); i++) {
-        weight.set(i, fractionalCount.get(i).totalCount() / total);
+      for (int i = 0; i < weights.length; i++) {
+        weight.set(i, expected[i] / total);
       }
 
       checkWeights(weight);
@@ -148,6 +100,121 @@ public class ConstantEMInterpolatedNGramModel extends NGram implements TunableMo
 
   }
 
+  /**
+   * Fills the rows of probabilities of the n-grams of a range of prefixes
+   * of the tuning counts with the probability of the n-gram under each
+   * model, read through the scorers of the models, splitting the range in
+   * halves while it is large.
+   */
+  private class ProbabilityRows extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+    private static final int MIN_PREFIXES = 256;
+    private final NGramCounts counts;
+    private final double[][] probabilities;
+    private final int from;
+    private final int to;
+
+    ProbabilityRows(NGramCounts counts, double[][] probabilities, int from,
+        int to) {
+      this.counts = counts;
+      this.probabilities = probabilities;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > MIN_PREFIXES) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new ProbabilityRows(counts, probabilities, from, middle),
+            new ProbabilityRows(counts, probabilities, middle, to));
+        return;
+      }
+      Vocabulary vocabulary = ngram.getVocabulary();
+      NGramScorer[] scorers = new NGramScorer[models.size()];
+      for (int i = 0; i < scorers.length; i++) {
+        scorers[i] = models.get(i).getScorer();
+      }
+      long[] states = new long[scorers.length];
+      for (int p = from; p < to; p++) {
+        // The scorers keep as much of the prefix as their model uses.
+        for (int i = 0; i < scorers.length; i++) {
+          states[i] = 0L;
+          for (int j = 0; j < n - 1; j++) {
+            String word = vocabulary.getWord(counts.prefixWord(p, j));
+            states[i] = scorers[i].nextState(states[i], scorers[i].getId(word));
+          }
+        }
+        for (int position = counts.wordStart(p); position < counts.wordEnd(p); position++) {
+          String word = vocabulary.getWord(counts.wordAt(position));
+          double[] row = new double[scorers.length];
+          for (int i = 0; i < row.length; i++) {
+            row[i] = scorers[i].probability(states[i], scorers[i].getId(word));
+          }
+          probabilities[position] = row;
+        }
+      }
+    }
+  }
+
+  /**
+   * Sums over a range of rows the expected count of each model, followed by
+   * the log-likelihood of the rows. The range is split in halves while it
+   * is large, at the same points whatever the number of threads, so the
+   * sums are reproducible.
+   */
+  private static class ExpectedCounts extends RecursiveTask<double[]> {
+
+    private static final long serialVersionUID = 1L;
+    private static final int MIN_ROWS = 1 << 12;
+    private final double[][] probabilities;
+    private final int[] counts;
+    private final double[] weights;
+    private final int from;
+    private final int to;
+
+    ExpectedCounts(double[][] probabilities, int[] counts, double[] weights,
+        int from, int to) {
+      this.probabilities = probabilities;
+      this.counts = counts;
+      this.weights = weights;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected double[] compute() {
+      int numModels = weights.length;
+      if (to - from > MIN_ROWS) {
+        int middle = (from + to) >>> 1;
+        ExpectedCounts second = new ExpectedCounts(probabilities, counts,
+            weights, middle, to);
+        second.fork();
+        double[] sums = new ExpectedCounts(probabilities, counts, weights,
+            from, middle).compute();
+        double[] secondSums = second.join();
+        for (int i = 0; i <= numModels; i++) {
+          sums[i] += secondSums[i];
+        }
+        return sums;
+      }
+      double[] sums = new double[numModels + 1];
+      for (int row = from; row < to; row++) {
+        double[] probability = probabilities[row];
+        double total = 0.0;
+        for (int i = 0; i < numModels; i++) {
+          total += probability[i] * weights[i];
+        }
+        for (int i = 0; i < numModels; i++) {
+          sums[i] += counts[row] * (probability[i] * weights[i] / total);
+        }
+        sums[numModels] += counts[row] * Math.log(total);
+      }
+      return sums;
+    }
+  }
+
   private void checkWeights(List<Double> weightList) {
     double sum = 0.0;
     for (Double d : weightList) {
@@ -160,8 +227,14 @@ public class ConstantEMInterpolatedNGramModel extends NGram implements TunableMo
 
   @Override
   public void train(Collection<List<String>> trainingSentences) {
-    for (NGram model : models) {
-      model.train(trainingSentences);
+    resetScorer();
+    NGramCountStore store = NGramCountStore.open(trainingSentences, n);
+    try {
+      for (NGram model : models) {
+        model.train(trainingSentences);
+      }
+    } finally {
+      store.release();
     }
   }
 
@@ -178,6 +251,18 @@ public class ConstantEMInterpolatedNGramModel extends NGram implements TunableMo
     return probability;
   }
 
+  @Override
+  protected NGramScorer createScorer(Vocabulary vocabulary) {
+    assert modelTuned == true;
+    NGramScorer[] scorers = new NGramScorer[models.size()];
+    double[] weights = new double[models.size()];
+    for (int i = 0; i < models.size(); i++) {
+      scorers[i] = models.get(i).createScorer(vocabulary);
+      weights[i] = weight.get(i);
+    }
+    return new InterpolatedScorer(n, vocabulary, scorers, weights);
+  }
+
   @Override
   public double checkModel() {
     assert modelTuned == true;
@@ -189,9 +274,24 @@ public class ConstantEMInterpolatedNGramModel extends NGram implements TunableMo
     return sum / (models.size() + 1);
   }
 
+  @Override
+  protected double probabilityMass(List<String> prefix) {
+    assert modelTuned == true;
+    double mass = 0.0;
+    for (int i = 0; i < models.size(); i++) {
+      mass += models.get(i).cachedProbabilityMass(
+          models.get(i).chopPrefix(prefix)) * weight.get(i);
+    }
+    return mass;
+  }
+
   @Override
   public List<Double> modelWeigths() {
-    return new ArrayList<Double>();
+    return new ArrayList<Double>(weight);
+  }
+
+  List<NGram> getModels() {
+    return models;
   }
 
   @Override
@@ -209,4 +309,29 @@ public class ConstantEMInterpolatedNGramModel extends NGram implements TunableMo
     return lastModel.lexicon();
   }
 
+  /**
+   * Mixes the probabilities of the scorers of the models.
+   */
+  private static class InterpolatedScorer extends NGramScorer {
+
+    private NGramScorer[] scorers;
+    private double[] weights;
+
+    InterpolatedScorer(int n, Vocabulary vocabulary, NGramScorer[] scorers,
+        double[] weights) {
+      super(n, vocabulary);
+      this.scorers = scorers;
+      this.weights = weights;
+    }
+
+    @Override
+    public double probability(long state, int word) {
+      double probability = 0.0;
+      for (int i = 0; i < scorers.length; i++) {
+        probability += scorers[i].probability(state, word) * weights[i];
+      }
+      return probability;
+    }
+  }
+
 }
@@ -0,0 +1,83 @@
+package cs224n.langmodel;
+
+/**
+ * Base of the scorers of models defined over the counts of an
+ * EmpiricalNGramModel: a state is looked up as a prefix (context) of the
+ * counts, and a word as a position among the words seen after it, so the
+ * model can keep its values in arrays indexed by prefix and position.
+ */
+abstract class CountsScorer extends NGramScorer {
+
+  private NGramCounts counts;
+  private int countsBits;
+  // Ids of the counts for each scorer id, -1 for words they have not seen.
+  private int[] ids;
+
+  CountsScorer(EmpiricalNGramModel model, Vocabulary vocabulary) {
+    super(model.getN(), vocabulary);
+    this.counts = model.getCounts();
+    this.countsBits = counts.getBits();
+    this.ids = new int[unknownId + 1];
+    for (int id = 0; id < unknownId; id++) {
+      this.ids[id] = model.getVocabulary().getId(vocabulary.getWord(id));
+    }
+    this.ids[unknownId] = -1;
+  }
+
+  /**
+   * Returns the index of the prefix of the counts made of the context of
+   * the state, or -1 if it was never seen.
+   */
+  int context(long state) {
+    long key = 0L;
+    for (int i = 0; i < n - 1; i++) {
+      int id = ids[contextWord(state, i)];
+      if (id < 0) {
+        return -1;
+      }
+      key = (key << countsBits) | id;
+    }
+    return counts.prefixIndex(key);
+  }
+
+  /**
+   * Returns the position of the word among the words seen after the
+   * context, or -1 if it was never seen after it.
+   */
+  int find(int context, int word) {
+    return counts.find(context, ids[word]);
+  }
+
+  NGramCounts getCounts() {
+    return counts;
+  }
+
+  /**
+   * Returns the id in the counts of the word with the given scorer id, or
+   * -1 if the counts have not seen it.
+   */
+  int countsId(int scorerId) {
+    return ids[scorerId];
+  }
+
+  /**
+   * Probability of the word at the position after the context; the context
+   * is -1 for an unknown context and the position -1 for a word never seen
+   * after it.
+   */
+  abstract double probability(int context, int position);
+
+  /**
+   * Natural log of probability(context, position).
+   */
+  double logProbability(int context, int position) {
+    return Math.log(probability(context, position));
+  }
+
+  @Override
+  public double probability(long state, int word) {
+    int context = context(state);
+    return probability(context, context < 0 ? -1 : find(context, word));
+  }
+
+}
@@ -1,94 +1,626 @@
 package cs224n.langmodel;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import cs224n.util.Counter;
+import cs224n.util.Sentences;
 
 public class EmpiricalNGramModel extends NGram {
 
-  private Set<String> lexicon;
-  private Map<List<String>, Counter<String>> rawCount;
-  private Map<List<String>, Double> totalCount;
+  // Below these sizes the training sentences are counted in a single shard.
+  private static final long MIN_SHARD_BYTES = 1 << 16;
+  private static final int MIN_SHARD_SENTENCES = 1000;
+
+  private Vocabulary vocabulary;
+  // Ids of the words that were seen in predicted (non prefix) positions.
+  private BitSet lexiconIds;
+  private int lexiconSize;
+  private NGramCounts counts;
+  private transient Set<String> lexiconView;
+  private transient Set<List<String>> prefixesView;
+  // Set on the counts an NGramCountStore hands out, which several models
+  // may hold (also once deserialized): they are copied, not trained, see
+  // NGramCountStore.train.
+  private boolean shared;
+  // External counting settings of this model, see setExternalCounting. A
+  // deserialized model counts in memory.
+  private transient long countingMemory;
+  private transient File countingTempDir;
+  private transient long countingTempLimit;
 
   public EmpiricalNGramModel(int n) {
     super(n);
-    lexicon = new HashSet<String>();
-    rawCount = new HashMap<List<String>, Counter<String>>();
-    totalCount = new HashMap<List<String>, Double>();
+    vocabulary = new Vocabulary();
+    lexiconIds = new BitSet();
+    lexiconSize = 0;
+    counts = new NGramCounts(n, new NGramCountTable(0));
+    countingTempLimit = Long.MAX_VALUE;
+  }
+
+  /**
+   * Makes train count n-grams with an {@link ExternalNGramCounter} using
+   * about memoryBudget bytes and at most maxTempBytes of temporary files in
+   * tempDir (the default temporary directory if null), for corpora whose
+   * counts do not fit in memory. A budget of 0 restores in-memory counting.
+   * Copies of this model count the same way.
+   */
+  public void setExternalCounting(long memoryBudget, File tempDir,
+      long maxTempBytes) {
+    countingMemory = memoryBudget;
+    countingTempDir = tempDir;
+    countingTempLimit = maxTempBytes;
   }
 
   @Override
   public void train(Collection<List<String>> trainingSentences) {
-    for (List<String> sentence : trainingSentences) {
-      List<String> stoppedSentence = new ArrayList<String>(sentence);
-      for (int i = 0; i < n - 1; i++) {
-        stoppedSentence.add(0, START);
+    if (shared) {
+      throw new IllegalStateException("Counts shared by an NGramCountStore"
+          + " cannot be trained; train a copy()");
+    }
+    resetScorer();
+    if (countingMemory > 0) {
+      trainExternal(trainingSentences);
+      return;
+    }
+    List<Collection<List<String>>> shards = shard(trainingSentences);
+    List<ShardCounter> counters = new ArrayList<ShardCounter>();
+    for (Collection<List<String>> shard : shards) {
+      counters.add(new ShardCounter(shard));
+    }
+    // The first shard is counted on this thread while the others run in the
+    // common pool.
+    for (int i = 1; i < counters.size(); i++) {
+      counters.get(i).fork();
+    }
+    List<ShardCounts> shardCounts = new ArrayList<ShardCounts>();
+    shardCounts.add(counters.get(0).compute());
+    for (int i = 1; i < counters.size(); i++) {
+      shardCounts.add(counters.get(i).join());
+    }
+    // Merging the shard vocabularies in order assigns global ids in order of
+    // first appearance in the whole collection, so the result does not
+    // depend on the number of shards. The counts are then translated and
+    // added up in parallel.
+    int[][] globalIds = new int[shardCounts.size()][];
+    for (int s = 0; s < shardCounts.size(); s++) {
+      ShardCounts shard = shardCounts.get(s);
+      globalIds[s] = new int[shard.vocabulary.size()];
+      for (int id = 0; id < globalIds[s].length; id++) {
+        globalIds[s][id] = vocabulary.add(shard.vocabulary.getWord(id));
       }
-      stoppedSentence.add(STOP);
-      for (int i = n - 1; i < stoppedSentence.size(); i++) {
-        lexicon.add(stoppedSentence.get(i));
-        addNgramCount(stoppedSentence, i);
+      for (int id = shard.lexiconIds.nextSetBit(0); id >= 0;
+          id = shard.lexiconIds.nextSetBit(id + 1)) {
+        if (!lexiconIds.get(globalIds[s][id])) {
+          lexiconIds.set(globalIds[s][id]);
+          lexiconSize++;
+        }
       }
     }
-    for (List<String> prefix : rawCount.keySet()) {
-      totalCount.put(prefix, rawCount.get(prefix).totalCount());
+    NGramCountTable table = new ShardMerger(shardCounts, globalIds, 0,
+        shardCounts.size()).invoke();
+    counts.addTo(table);
+    counts = new NGramCounts(n, table);
+  }
+
+  /**
+   * Counts the training sentences with an ExternalNGramCounter, spilling
+   * counts to disk when they outgrow the memory budget.
+   */
+  private void trainExternal(Collection<List<String>> trainingSentences) {
+    ExternalNGramCounter counter = new ExternalNGramCounter(n,
+        countingMemory, countingTempDir, countingTempLimit);
+    try {
+      counter.addCounts(counts);
+      int bits = NGramCountTable.bitsPerWord(n);
+      int[] ids = new int[64];
+      for (List<String> sentence : trainingSentences) {
+        ids = sentenceIds(sentence, vocabulary, ids);
+        int length = sentence.size() + n;
+        for (int i = n - 1; i < length; i++) {
+          if (!lexiconIds.get(ids[i])) {
+            lexiconIds.set(ids[i]);
+            lexiconSize++;
+          }
+          counter.incrementCount(NGramCountTable.pack(ids, i - n + 1, n, bits), 1);
+        }
+      }
+      counts = counter.finish();
+    } catch (IOException e) {
+      throw new RuntimeException("Counting " + n + "-grams failed: " + e.getMessage(), e);
+    } finally {
+      counter.dispose();
     }
   }
 
-  private void addNgramCount(List<String> stoppedSentence, int index) {
-    assert index + 1 >= n;
-    List<String> prefix = getPrefix(stoppedSentence, index);
-    if (!rawCount.containsKey(prefix)) {
-      rawCount.put(prefix, new Counter<String>());
+  /**
+   * Fills ids (or a larger array if needed, which is returned) with the ids
+   * of the sentence padded with n - 1 START symbols and a STOP symbol,
+   * adding new words to the vocabulary.
+   */
+  private int[] sentenceIds(List<String> sentence, Vocabulary vocabulary,
+      int[] ids) {
+    int length = sentence.size() + n;
+    if (ids.length < length) {
+      ids = new int[2 * length];
+    }
+    for (int i = 0; i < n - 1; i++) {
+      ids[i] = vocabulary.add(START);
     }
-    rawCount.get(prefix).incrementCount(stoppedSentence.get(index), 1.0);
+    for (int i = 0; i < sentence.size(); i++) {
+      ids[n - 1 + i] = vocabulary.add(sentence.get(i));
+    }
+    ids[length - 1] = vocabulary.add(STOP);
+    return ids;
+  }
+
+  /**
+   * Splits the training sentences into parts that can be counted
+   * concurrently: byte ranges of a {@link Sentences} file or sublists of a
+   * list. Small or other collections are counted in one part.
+   */
+  @SuppressWarnings("unchecked")
+  private static List<Collection<List<String>>> shard(
+      Collection<List<String>> sentences) {
+    List<Collection<List<String>>> shards = new ArrayList<Collection<List<String>>>();
+    int parts = ForkJoinPool.getCommonPoolParallelism();
+    if (sentences instanceof Sentences) {
+      Sentences file = (Sentences) sentences;
+      parts = (int) Math.max(1, Math.min(parts, file.byteLength() / MIN_SHARD_BYTES));
+      shards.addAll(file.split(parts));
+    } else if (sentences instanceof List && sentences instanceof RandomAccess) {
+      List<List<String>> list = (List<List<String>>) sentences;
+      parts = Math.max(1, Math.min(parts, list.size() / MIN_SHARD_SENTENCES));
+      for (int i = 0; i < parts; i++) {
+        shards.add(list.subList(i * list.size() / parts, (i + 1) * list.size() / parts));
+      }
+    }
+    if (shards.isEmpty()) {
+      shards.add(sentences);
+    }
+    return shards;
+  }
+
+  /**
+   * Counts of one shard of the training sentences, keyed by ids local to the
+   * shard.
+   */
+  private static class ShardCounts {
+    Vocabulary vocabulary = new Vocabulary();
+    BitSet lexiconIds = new BitSet();
+    NGramCountTable table = new NGramCountTable();
+  }
+
+  /**
+   * Counts the n-grams of one shard into a table of its own.
+   */
+  private class ShardCounter extends RecursiveTask<ShardCounts> {
+
+    private static final long serialVersionUID = 1L;
+    private final Collection<List<String>> sentences;
+
+    ShardCounter(Collection<List<String>> sentences) {
+      this.sentences = sentences;
+    }
+
+    @Override
+    protected ShardCounts compute() {
+      ShardCounts shard = new ShardCounts();
+      int bits = NGramCountTable.bitsPerWord(n);
+      int[] ids = new int[64];
+      for (List<String> sentence : sentences) {
+        ids = sentenceIds(sentence, shard.vocabulary, ids);
+        int length = sentence.size() + n;
+        for (int i = n - 1; i < length; i++) {
+          shard.lexiconIds.set(ids[i]);
+          shard.table.incrementCount(NGramCountTable.pack(ids, i - n + 1, n, bits), 1);
+        }
+      }
+      return shard;
+    }
+  }
+
+  /**
+   * Translates the tables of a range of shards to global ids and adds them
+   * up, splitting the range in halves, each pair being merged into the
+   * larger of its two tables.
+   */
+  private class ShardMerger extends RecursiveTask<NGramCountTable> {
+
+    private static final long serialVersionUID = 1L;
+    private final List<ShardCounts> shards;
+    private final int[][] globalIds;
+    private final int from;
+    private final int to;
+
+    ShardMerger(List<ShardCounts> shards, int[][] globalIds, int from, int to) {
+      this.shards = shards;
+      this.globalIds = globalIds;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected NGramCountTable compute() {
+      if (to - from == 1) {
+        NGramCountTable local = shards.get(from).table;
+        shards.get(from).table = null; // no longer needed
+        return translate(local, globalIds[from]);
+      }
+      int middle = (from + to) >>> 1;
+      ShardMerger left = new ShardMerger(shards, globalIds, from, middle);
+      left.fork();
+      NGramCountTable right = new ShardMerger(shards, globalIds, middle, to)
+          .compute();
+      NGramCountTable merged = left.join();
+      if (merged.size() < right.size()) {
+        NGramCountTable smaller = merged;
+        merged = right;
+        right = smaller;
+      }
+      right.addTo(merged);
+      return merged;
+    }
+
+    private NGramCountTable translate(NGramCountTable local, int[] ids) {
+      NGramCountTable table = new NGramCountTable(local.size());
+      int bits = NGramCountTable.bitsPerWord(n);
+      int[] global = new int[n];
+      for (int slot = 0; slot < local.capacity(); slot++) {
+        long key = local.keyAt(slot);
+        if (key < 0) {
+          continue;
+        }
+        for (int j = 0; j < n; j++) {
+          global[j] = ids[NGramCountTable.unpack(key, j, n, bits)];
+        }
+        table.incrementCount(NGramCountTable.pack(global, 0, n, bits),
+            local.countAt(slot));
+      }
+      return table;
+    }
+  }
+
+  /**
+   * Returns a model of order k < n holding the counts of the last k words of
+   * the n-grams of this model. These are the counts the model would get from
+   * training on the same sentences, since the extra START padding of order n
+   * only shows up in the dropped words. The vocabulary and the external
+   * counting settings are shared.
+   */
+  EmpiricalNGramModel suffixModel(int k) {
+    assert 0 < k && k < n;
+    EmpiricalNGramModel model = new EmpiricalNGramModel(k);
+    model.vocabulary = vocabulary;
+    model.lexiconIds = (BitSet) lexiconIds.clone();
+    model.lexiconSize = lexiconSize;
+    model.setExternalCounting(countingMemory, countingTempDir,
+        countingTempLimit);
+    NGramCountTable table = new NGramCountTable(counts.numPrefixes());
+    int[] ids = new int[n];
+    for (int p = 0; p < counts.numPrefixes(); p++) {
+      for (int j = 0; j < n - 1; j++) {
+        ids[j] = counts.prefixWord(p, j);
+      }
+      for (int i = counts.wordStart(p); i < counts.wordEnd(p); i++) {
+        ids[n - 1] = counts.wordAt(i);
+        table.incrementCount(NGramCountTable.pack(ids, n - k, k,
+            NGramCountTable.bitsPerWord(k)), counts.countAt(i));
+      }
+    }
+    model.counts = new NGramCounts(k, table);
+    return model;
+  }
+
+  /**
+   * Returns the position of the word among the n-grams of the prefix in the
+   * counts, or -1 if it was never seen after it.
+   */
+  int find(int prefixIndex, String word) {
+    return counts.find(prefixIndex, vocabulary.getId(word));
+  }
+
+  NGramCounts getCounts() {
+    return counts;
+  }
+
+  Vocabulary getVocabulary() {
+    return vocabulary;
+  }
+
+  @Override
+  protected NGramScorer createScorer(Vocabulary scorerVocabulary) {
+    return new CountsScorer(this, scorerVocabulary) {
+      @Override
+      double probability(int context, int position) {
+        if (context < 0) {
+          // Missing prefix, give uniform probability.
+          return 1.0 / (lexiconSize + 1);
+        }
+        int count = position < 0 ? 0 : getCounts().countAt(position);
+        return count / (double) getCounts().prefixTotal(context);
+      }
+    };
+  }
+
+  /**
+   * Returns a model with the same counts that can be trained without
+   * changing this one.
+   */
+  EmpiricalNGramModel copy() {
+    EmpiricalNGramModel model = new EmpiricalNGramModel(n);
+    model.vocabulary = vocabulary.copy();
+    model.lexiconIds = (BitSet) lexiconIds.clone();
+    model.lexiconSize = lexiconSize;
+    model.counts = counts;
+    model.setExternalCounting(countingMemory, countingTempDir,
+        countingTempLimit);
+    return model;
+  }
+
+  void setShared() {
+    shared = true;
+  }
+
+  boolean isShared() {
+    return shared;
+  }
+
+  /**
+   * Returns true if the model has not been trained yet.
+   */
+  boolean isEmpty() {
+    return counts.size() == 0;
+  }
+
+  /**
+   * Returns the index of the prefix in the count store, or -1 if it was never
+   * seen.
+   */
+  int prefixIndex(List<String> prefix) {
+    assert prefix.size() == n - 1;
+    int[] ids = new int[n];
+    if (!vocabulary.getIds(prefix, ids)) {
+      return -1;
+    }
+    return counts.prefixIndex(ids, 0);
   }
 
   @Override
   public double getWordProbability(List<String> prefix, String word) {
     assert prefix.size() == n - 1;
-    if (!rawCount.containsKey(prefix)) {
+    int prefixIndex = prefixIndex(prefix);
+    if (prefixIndex < 0) {
       // Missing prefix, give uniform probability.
-      return 1.0 / (lexicon().size() + 1); 
+      return 1.0 / (lexicon().size() + 1);
     }
-    return rawCount.get(prefix).getCount(word) / totalCount.get(prefix);
+    return counts.getCount(prefixIndex, vocabulary.getId(word))
+        / (double) counts.prefixTotal(prefixIndex);
+  }
+
+  @Override
+  protected double probabilityMass(List<String> prefix) {
+    assert prefix.size() == n - 1;
+    int prefixIndex = prefixIndex(prefix);
+    if (prefixIndex < 0) {
+      return (lexicon().size() + 1) * (1.0 / (lexicon().size() + 1));
+    }
+    // Words never seen after the prefix have probability 0.
+    long total = 0;
+    for (int i = counts.wordStart(prefixIndex); i < counts.wordEnd(prefixIndex); i++) {
+      total += counts.countAt(i);
+    }
+    return total / (double) counts.prefixTotal(prefixIndex);
   }
 
   @Override
   public Set<List<String>> knownPrefixes() {
-    return rawCount.keySet();
+    if (prefixesView == null) {
+      prefixesView = new PrefixSet();
+    }
+    return prefixesView;
   }
 
   @Override
   public Set<String> knownWords(List<String> prefix) {
     assert prefix.size() == n - 1;
-    return rawCount.get(prefix).keySet();
+    return new WordSet(prefixIndex(prefix));
   }
 
   @Override
   protected Set<String> lexicon() {
-    return lexicon;
+    if (lexiconView == null) {
+      lexiconView = new LexiconSet();
+    }
+    return lexiconView;
   }
-  
+
   public int getCount(List<String> prefix, String word) {
     assert prefix.size() == n - 1;
-    if (!rawCount.containsKey(prefix)) {
-      return 0;
-    }
-    return (int) rawCount.get(prefix).getCount(word);
+    return counts.getCount(prefixIndex(prefix), vocabulary.getId(word));
   }
 
+  /**
+   * Returns a copy of the counts of the words seen after the prefix, or null
+   * if the prefix was never seen.
+   */
   public Counter<String> getPrefixCounter(List<String> prefix) {
     assert prefix.size() == n - 1;
-    if (!rawCount.containsKey(prefix)) {
+    int prefixIndex = prefixIndex(prefix);
+    if (prefixIndex < 0) {
       return null;
     }
-    return rawCount.get(prefix);
+    Counter<String> counter = new Counter<String>();
+    for (int i = counts.wordStart(prefixIndex); i < counts.wordEnd(prefixIndex); i++) {
+      counter.setCount(vocabulary.getWord(counts.wordAt(i)), counts.countAt(i));
+    }
+    return counter;
+  }
+
+  /**
+   * Set of the known prefixes, decoded from the count store as they are
+   * iterated.
+   */
+  private class PrefixSet extends AbstractSet<List<String>> {
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof List)) {
+        return false;
+      }
+      List<?> list = (List<?>) o;
+      if (list.size() != n - 1) {
+        return false;
+      }
+      int[] ids = new int[n];
+      for (int i = 0; i < list.size(); i++) {
+        Object word = list.get(i);
+        ids[i] = (word instanceof String) ? vocabulary.getId((String) word) : -1;
+        if (ids[i] < 0) {
+          return false;
+        }
+      }
+      return counts.prefixIndex(ids, 0) >= 0;
+    }
+
+    @Override
+    public Iterator<List<String>> iterator() {
+      return new Iterator<List<String>>() {
+        int next = 0;
+
+        public boolean hasNext() {
+          return next < counts.numPrefixes();
+        }
+
+        public List<String> next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          List<String> prefix = new ArrayList<String>(n - 1);
+          for (int i = 0; i < n - 1; i++) {
+            prefix.add(vocabulary.getWord(counts.prefixWord(next, i)));
+          }
+          next++;
+          return prefix;
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return counts.numPrefixes();
+    }
+  }
+
+  /**
+   * Set of the words seen after a prefix.
+   */
+  private class WordSet extends AbstractSet<String> {
+
+    private int prefixIndex;
+
+    WordSet(int prefixIndex) {
+      this.prefixIndex = prefixIndex;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof String)) {
+        return false;
+      }
+      return counts.find(prefixIndex, vocabulary.getId((String) o)) >= 0;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+      final int end = prefixIndex < 0 ? 0 : counts.wordEnd(prefixIndex);
+      final int start = prefixIndex < 0 ? 0 : counts.wordStart(prefixIndex);
+      return new Iterator<String>() {
+        int next = start;
+
+        public boolean hasNext() {
+          return next < end;
+        }
+
+        public String next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          return vocabulary.getWord(counts.wordAt(next++));
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      if (prefixIndex < 0) {
+        return 0;
+      }
+      return counts.wordEnd(prefixIndex) - counts.wordStart(prefixIndex);
+    }
   }
+
+  /**
+   * Set of the words seen in predicted positions.
+   */
+  private class LexiconSet extends AbstractSet<String> {
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof String)) {
+        return false;
+      }
+      int id = vocabulary.getId((String) o);
+      return id >= 0 && lexiconIds.get(id);
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+      return new Iterator<String>() {
+        int next = lexiconIds.nextSetBit(0);
+
+        public boolean hasNext() {
+          return next >= 0;
+        }
+
+        public String next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          String word = vocabulary.getWord(next);
+          next = lexiconIds.nextSetBit(next + 1);
+          return word;
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return lexiconSize;
+    }
+  }
+
 }
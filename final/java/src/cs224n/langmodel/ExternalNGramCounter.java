@@ -0,0 +1,335 @@
+package cs224n.langmodel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Counts packed n-gram keys (see {@link NGramCountTable#pack}) within a
+ * memory budget. Counts are buffered in an NGramCountTable; when it holds as
+ * many keys as the budget allows, its keys are sorted and spilled to a run
+ * file in the temporary directory. {@link #finish} merges the runs into an
+ * NGramCounts, reading them twice: once to size the arrays and once to fill
+ * them, so the counts are never held twice in memory.
+ * <p>
+ * Runs store the difference between consecutive keys and the counts as
+ * variable-length integers, usually 2 to 4 bytes per n-gram. The total size
+ * of the runs is capped, and counting fails with an IOException rather than
+ * exceeding the cap. Progress is reported on System.err after each spill.
+ */
+public class ExternalNGramCounter {
+
+  // Memory per buffered key: the table at its lowest load (12 bytes per slot
+  // at a load of 0.375) plus the sorted copy of the keys made when spilling.
+  private static final int BYTES_PER_KEY = 40;
+  // Maximum number of runs merged at once.
+  private static final int MAX_FAN_IN = 64;
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private int n;
+  private int bits;
+  private int maxBufferedKeys;
+  private File tempDir;
+  private long maxTempBytes;
+  private NGramCountTable table;
+  private List<File> runs;
+  private long tempBytes;
+  private long keysCounted;
+  private long startTime;
+
+  /**
+   * Counts keys packing n ids, using about memoryBudget bytes for buffered
+   * counts and at most maxTempBytes of run files in tempDir (the default
+   * temporary directory if null).
+   */
+  public ExternalNGramCounter(int n, long memoryBudget, File tempDir,
+      long maxTempBytes) {
+    this.n = n;
+    this.bits = NGramCountTable.bitsPerWord(n);
+    this.maxBufferedKeys = (int) Math.max(1024,
+        Math.min(Integer.MAX_VALUE / 4, memoryBudget / BYTES_PER_KEY));
+    this.tempDir = tempDir;
+    this.maxTempBytes = maxTempBytes;
+    this.table = new NGramCountTable(maxBufferedKeys);
+    this.runs = new ArrayList<File>();
+    this.tempBytes = 0;
+    this.keysCounted = 0;
+    this.startTime = System.currentTimeMillis();
+  }
+
+  public void incrementCount(long key, int increment) throws IOException {
+    table.incrementCount(key, increment);
+    keysCounted++;
+    if (table.size() >= maxBufferedKeys) {
+      spill();
+    }
+  }
+
+  /**
+   * Adds counts frozen earlier, e.g. by a previous call to train, as a run
+   * of their own.
+   */
+  public void addCounts(NGramCounts counts) throws IOException {
+    if (counts.size() == 0) {
+      return;
+    }
+    File file = newRun();
+    RunWriter writer = new RunWriter(file);
+    try {
+      for (int prefix = 0; prefix < counts.numPrefixes(); prefix++) {
+        for (int i = counts.wordStart(prefix); i < counts.wordEnd(prefix); i++) {
+          writer.write(counts.keyAt(prefix, i), counts.countAt(i));
+        }
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Merges all counts into an NGramCounts and deletes the run files.
+   */
+  public NGramCounts finish() throws IOException {
+    try {
+      if (runs.isEmpty()) {
+        return new NGramCounts(n, table);
+      }
+      spill();
+      table = null;
+      while (runs.size() > MAX_FAN_IN) {
+        List<File> merged = new ArrayList<File>(runs.subList(0, MAX_FAN_IN));
+        runs.removeAll(merged);
+        File file = newRun();
+        RunWriter writer = new RunWriter(file);
+        try {
+          merge(merged, writer, null);
+        } finally {
+          writer.close();
+        }
+        delete(merged);
+      }
+      // The first pass only counts n-grams and prefixes.
+      long[] sizes = merge(runs, null, null);
+      if (sizes[0] > Integer.MAX_VALUE) {
+        throw new IOException(sizes[0] + " distinct " + n
+            + "-grams do not fit in an NGramCounts");
+      }
+      NGramCounts counts = new NGramCounts(n, (int) sizes[0], (int) sizes[1]);
+      merge(runs, null, counts);
+      report("merged " + sizes[0] + " distinct " + n + "-grams");
+      return counts;
+    } finally {
+      delete(runs);
+      runs.clear();
+    }
+  }
+
+  /**
+   * Deletes the run files, e.g. when counting is abandoned.
+   */
+  public void dispose() {
+    delete(runs);
+    runs.clear();
+  }
+
+  private void spill() throws IOException {
+    if (table.size() == 0) {
+      return;
+    }
+    File file = newRun();
+    RunWriter writer = new RunWriter(file);
+    try {
+      for (long key : table.sortedKeys()) {
+        writer.write(key, table.getCount(key));
+      }
+    } finally {
+      writer.close();
+    }
+    report("spilled run " + runs.size() + " (" + table.size() + " " + n
+        + "-grams, " + (file.length() >> 10) + " KB)");
+    table.clear();
+  }
+
+  private File newRun() throws IOException {
+    File file = File.createTempFile("ngrams" + n + "-", ".run", tempDir);
+    file.deleteOnExit();
+    runs.add(file);
+    return file;
+  }
+
+  private void delete(List<File> files) {
+    for (File file : files) {
+      tempBytes -= file.length();
+      file.delete();
+    }
+  }
+
+  private void report(String event) {
+    double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+    System.err.printf("%s: %s; %d %d-grams counted, %.0f per second, %d MB"
+        + " of temporary files%n", getClass().getSimpleName(), event,
+        keysCounted, n, keysCounted / seconds, tempBytes >> 20);
+  }
+
+  /**
+   * Merges the runs in key order, summing the counts of equal keys, into
+   * writer and/or counts. Returns the numbers of distinct keys and distinct
+   * prefixes.
+   */
+  private long[] merge(List<File> files, RunWriter writer, NGramCounts counts)
+      throws IOException {
+    PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+    long[] sizes = new long[2];
+    try {
+      for (File file : files) {
+        RunReader reader = new RunReader(file);
+        if (reader.next()) {
+          queue.add(reader);
+        } else {
+          reader.close();
+        }
+      }
+      long lastPrefix = -1;
+      while (!queue.isEmpty()) {
+        RunReader reader = queue.poll();
+        long key = reader.key;
+        long count = 0;
+        do {
+          count += reader.count;
+          if (reader.next()) {
+            queue.add(reader);
+          } else {
+            reader.close();
+          }
+          reader = queue.peek();
+          if (reader != null && reader.key == key) {
+            queue.poll();
+          } else {
+            reader = null;
+          }
+        } while (reader != null);
+        if (count > Integer.MAX_VALUE) {
+          throw new IOException("count of n-gram " + key + " overflows");
+        }
+        if (writer != null) {
+          writer.write(key, (int) count);
+        }
+        if (counts != null) {
+          counts.append(key, (int) count);
+        }
+        long prefix = (n == 1) ? 0 : key >>> bits;
+        if (sizes[0] == 0 || prefix != lastPrefix) {
+          sizes[1]++;
+          lastPrefix = prefix;
+        }
+        sizes[0]++;
+      }
+    } finally {
+      for (RunReader reader : queue) {
+        reader.close();
+      }
+    }
+    return sizes;
+  }
+
+  /**
+   * Writes increasing keys and their counts as variable-length integers.
+   */
+  private class RunWriter {
+
+    private OutputStream out;
+    private long lastKey;
+
+    RunWriter(File file) throws IOException {
+      out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+      lastKey = 0;
+    }
+
+    void write(long key, int count) throws IOException {
+      assert key >= lastKey;
+      writeVarLong(key - lastKey);
+      writeVarLong(count);
+      lastKey = key;
+    }
+
+    private void writeVarLong(long value) throws IOException {
+      while ((value & ~0x7FL) != 0) {
+        out.write((int) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+        tempBytes++;
+      }
+      out.write((int) value);
+      tempBytes++;
+      if (tempBytes > maxTempBytes) {
+        throw new IOException("temporary n-gram runs exceed the limit of "
+            + maxTempBytes + " bytes");
+      }
+    }
+
+    void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /**
+   * Reads a run written by RunWriter; ordered by current key.
+   */
+  private static class RunReader implements Comparable<RunReader> {
+
+    private InputStream in;
+    long key;
+    int count;
+
+    RunReader(File file) throws IOException {
+      in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+      key = 0;
+    }
+
+    /**
+     * Advances to the next key, returning false at the end of the run.
+     */
+    boolean next() throws IOException {
+      int b = in.read();
+      if (b < 0) {
+        return false;
+      }
+      key += readVarLong(b);
+      count = (int) readVarLong(in.read());
+      return true;
+    }
+
+    private long readVarLong(int b) throws IOException {
+      long value = 0;
+      int shift = 0;
+      while (true) {
+        if (b < 0) {
+          throw new EOFException("truncated n-gram run");
+        }
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+        shift += 7;
+        b = in.read();
+      }
+    }
+
+    void close() throws IOException {
+      in.close();
+    }
+
+    public int compareTo(RunReader other) {
+      return key < other.key ? -1 : (key == other.key ? 0 : 1);
+    }
+  }
+
+}
@@ -0,0 +1,74 @@
+package cs224n.langmodel;
+
+import java.io.Serializable;
+
+/**
+ * Frozen log-probabilities of a model smoothed over the counts of an
+ * EmpiricalNGramModel, indexed like the NGramCounts: one per n-gram
+ * position, the log-probability of each unseen word per prefix, and one for
+ * any word after an unknown prefix. They are stored as floats, which keep
+ * log-probabilities to about 1e-7 relative error at half the memory.
+ */
+class LogProbabilityTable implements Serializable {
+
+  private static final long serialVersionUID = 3417290654189362651L;
+  private float[] logProbabilities;
+  private float[] missingLogProbabilities;
+  private float unknownPrefixLogProbability;
+
+  /**
+   * Creates a table for the counts, giving every word after an unknown
+   * prefix the probability unknownPrefixProbability.
+   */
+  LogProbabilityTable(NGramCounts counts, double unknownPrefixProbability) {
+    logProbabilities = new float[counts.size()];
+    missingLogProbabilities = new float[counts.numPrefixes()];
+    unknownPrefixLogProbability = (float) Math.log(unknownPrefixProbability);
+  }
+
+  void setProbability(int position, double probability) {
+    logProbabilities[position] = (float) Math.log(probability);
+  }
+
+  /**
+   * Sets the probability of each word never seen after the prefix.
+   */
+  void setMissingProbability(int prefix, double probability) {
+    missingLogProbabilities[prefix] = (float) Math.log(probability);
+  }
+
+  /**
+   * Natural log of the probability of the word at the position after the
+   * prefix; the prefix is -1 if unknown and the position -1 for a word never
+   * seen after it.
+   */
+  double logProbability(int prefix, int position) {
+    if (prefix < 0) {
+      return unknownPrefixLogProbability;
+    }
+    if (position < 0) {
+      return missingLogProbabilities[prefix];
+    }
+    return logProbabilities[position];
+  }
+
+  /**
+   * Sum of the probabilities after the prefix (-1 if unknown) of numWords
+   * words, the words seen after it in the counts and the others at the
+   * missing probability.
+   */
+  double probabilityMass(NGramCounts counts, int prefix, int numWords) {
+    if (prefix < 0) {
+      return numWords * Math.exp(unknownPrefixLogProbability);
+    }
+    double mass = 0.0;
+    int start = counts.wordStart(prefix);
+    int end = counts.wordEnd(prefix);
+    for (int i = start; i < end; i++) {
+      mass += Math.exp(logProbabilities[i]);
+    }
+    return mass + (numWords - (end - start))
+        * Math.exp(missingLogProbabilities[prefix]);
+  }
+
+}
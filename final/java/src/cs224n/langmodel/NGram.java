@@ -2,9 +2,17 @@ package cs224n.langmodel;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public abstract class NGram implements LanguageModel, Serializable {
   
@@ -15,8 +23,22 @@ public abstract class NGram implements LanguageModel, Serializable {
   public static final String START = "<S>";
   public static final String STOP = "</S>";
   public static final String UNKNOWN = "<UNK/>";
+
+  // Number of contexts whose samplers are kept for generation.
+  private static final int MAX_SAMPLERS = 1 << 12;
+  // Draws of the unseen words of a context resolved by a scan before their
+  // cumulative probabilities are kept.
+  private static final int UNSEEN_SCANS = 8;
+  // Largest difference from 1 accepted by checkModel, and number of failing
+  // prefixes it prints.
+  private static final double CHECK_TOLERANCE = 1e-6;
+  private static final int MAX_REPORTED = 10;
+  private static final Random random = new Random();
   
   protected int n;
+  private transient volatile NGramScorer scorer;
+  private transient Map<Long, WordSampler> samplers;
+  private transient ConcurrentHashMap<List<String>, Double> masses;
   
   public NGram(int n) {
     this.n = n;
@@ -27,16 +49,51 @@ public abstract class NGram implements LanguageModel, Serializable {
   
   @Override
   public double getSentenceProbability(List<String> sentence) {
-    List<String> stoppedSentence = new ArrayList<String>(sentence);
-    stoppedSentence.add(STOP);
-    for (int i = 0; i < n - 1; i++) {
-      stoppedSentence.add(0, START);
+    return getScorer().scoreSentence(sentence);
+  }
+
+  /**
+   * Returns a scorer for the model as it is now, whose vocabulary is START
+   * and the lexicon. It is created on first use, by a single thread, and
+   * kept until the model changes.
+   */
+  public NGramScorer getScorer() {
+    NGramScorer current = scorer;
+    if (current == null) {
+      synchronized (this) {
+        current = scorer;
+        if (current == null) {
+          Vocabulary vocabulary = new Vocabulary();
+          vocabulary.add(START);
+          for (String word : lexicon()) {
+            vocabulary.add(word);
+          }
+          current = createScorer(vocabulary);
+          scorer = current;
+        }
+      }
     }
-    double probability = 0.0;
-    for (int index = n - 1; index < stoppedSentence.size(); index++) {
-      probability += Math.log(getWordProbability(stoppedSentence, index)) / Math.log(2.0);
+    return current;
+  }
+
+  /**
+   * Creates a scorer of the model using the ids of vocabulary. Models with
+   * primitive tables override this to score without allocating; the default
+   * scorer decodes the context and calls getWordProbability.
+   */
+  protected NGramScorer createScorer(Vocabulary vocabulary) {
+    return new WordScorer(this, vocabulary);
+  }
+
+  /**
+   * Drops the scorer of the model; called when training changes the model.
+   */
+  protected void resetScorer() {
+    synchronized (this) {
+      scorer = null;
+      samplers = null;
+      masses = null;
     }
-    return probability;
   }
 
   public int getN() {
@@ -61,79 +118,379 @@ public abstract class NGram implements LanguageModel, Serializable {
   
   public abstract Set<String> knownWords(List<String> prefix);
   
+  /**
+   * Checks that the distribution of the word after every known prefix, and
+   * after a prefix of unknown words, sums to 1 over the lexicon and UNKNOWN.
+   * The prefixes are checked in parallel through probabilityMass. Returns
+   * the average sum.
+   */
   @Override
   public double checkModel() {
-    int checked = 0;
+    List<List<String>> prefixes = new ArrayList<List<String>>(knownPrefixes());
+    List<String> unknownPrefix = new ArrayList<String>();
+    for (int i = 0; i < n - 1; i++) {
+      unknownPrefix.add(UNKNOWN);
+    }
+    prefixes.add(unknownPrefix);
+    // Lazily built tables are built before the threads need them.
+    getScorer();
+    double[] sums = new double[prefixes.size()];
+    ForkJoinPool.commonPool().invoke(new CheckRange(prefixes, sums, 0, sums.length));
     double sum = 0.0;
-    for (List<String> prefix : knownPrefixes()) {
-      double sample = Math.random();
-      // We expect to check ~10 distributions
-      if (sample < 10.0 / knownPrefixes().size()) {
-        checked++;
-        sum += checkModelForPrefix(prefix);  
-      }
-    }
-    // Check random prefixes;
-    Object[] lexiconArray = lexicon().toArray();
-    for (int iteration = 0; iteration < 10; iteration++) {
-      List<String> prefix = new ArrayList<String>();
-      for (int i = 0; i < n - 1; i++) {
-        int wordIndex = (int) Math.random() * lexicon().size();
-        assert 0 <= wordIndex && wordIndex < lexicon().size();
-        prefix.add((String)lexiconArray[wordIndex]);
+    int failed = 0;
+    for (int i = 0; i < sums.length; i++) {
+      sum += sums[i];
+      if (!(Math.abs(1.0 - sums[i]) <= CHECK_TOLERANCE)) {
+        if (++failed <= MAX_REPORTED) {
+          System.err.println("Model doesn't add to 1 for prefix "
+              + prefixes.get(i) + ": " + sums[i]);
+        }
       }
-      checked++;
-      sum += checkModelForPrefix(prefix);
     }
-    System.out.println("checked " + checked + " conditional probabilities");
-    return sum / checked;
+    if (failed > MAX_REPORTED) {
+      System.err.println("... and " + (failed - MAX_REPORTED) + " more prefixes");
+    }
+    System.out.println("checked " + sums.length + " conditional probabilities");
+    return sum / sums.length;
   }
-  
-  private double checkModelForPrefix(List<String> prefix) {
+
+  /**
+   * Returns the sum of the probabilities of the words of the lexicon and
+   * UNKNOWN after the prefix. This sums getWordProbability over all of
+   * them; models whose unseen words share known probabilities override it
+   * to sum over the seen words and add the missing mass in closed form.
+   */
+  protected double probabilityMass(List<String> prefix) {
     assert prefix.size() == n - 1;
     double sum = 0.0;
     for (String word : lexicon()) {
       sum += getWordProbability(prefix, word);
     }
     sum += getWordProbability(prefix, UNKNOWN);
-   
-    if (Math.abs(1.0-sum) > 1e-6) {
-      System.err.println("Model doesn't add to 1 for prefix " + prefix + ": " + sum);
-    }
     return sum;
   }
-  
+
+  /**
+   * probabilityMass, remembered until the model changes; for the models
+   * combining this one, which need the mass of the same short prefix for
+   * many of their prefixes.
+   */
+  double cachedProbabilityMass(List<String> prefix) {
+    ConcurrentHashMap<List<String>, Double> cache;
+    synchronized (this) {
+      if (masses == null) {
+        masses = new ConcurrentHashMap<List<String>, Double>();
+      }
+      cache = masses;
+    }
+    Double mass = cache.get(prefix);
+    if (mass == null) {
+      mass = probabilityMass(prefix);
+      cache.put(new ArrayList<String>(prefix), mass);
+    }
+    return mass;
+  }
+
+  /**
+   * Computes the probability masses of a range of prefixes, splitting it in
+   * halves while it is large.
+   */
+  private class CheckRange extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+    private static final int MIN_RANGE = 64;
+    private final List<List<String>> prefixes;
+    private final double[] sums;
+    private final int from;
+    private final int to;
+
+    CheckRange(List<List<String>> prefixes, double[] sums, int from, int to) {
+      this.prefixes = prefixes;
+      this.sums = sums;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= MIN_RANGE) {
+        for (int i = from; i < to; i++) {
+          sums[i] = probabilityMass(prefixes.get(i));
+        }
+      } else {
+        int middle = (from + to) >>> 1;
+        invokeAll(new CheckRange(prefixes, sums, from, middle),
+            new CheckRange(prefixes, sums, middle, to));
+      }
+    }
+  }
   
   @Override
   public List<String> generateSentence() {
+    return generateSentence(random);
+  }
+
+  /**
+   * Generates a sentence drawing its words from random.
+   */
+  public List<String> generateSentence(Random random) {
+    NGramScorer scorer = getScorer();
     List<String> sentence = new ArrayList<String>();
-    List<String> prefix = new ArrayList<String>();
-    for (int i = 0; i < n - 1; i++) {
-      prefix.add(START);
-    }
-    String word;
+    int stop = scorer.getId(STOP);
+    long state = scorer.startState();
+    int word;
     do {
-      word = generateWord(prefix);
-      sentence.add(word);
-      prefix.add(word);
-      prefix.remove(0);
-    } while (!word.equals(STOP));
+      word = sampler(scorer, state).sample(random);
+      sentence.add(scorer.getWord(word));
+      state = scorer.nextState(state, word);
+    } while (word != stop);
     return sentence;
   }
-  
+
+  /**
+   * Generates count sentences in parallel. Sentence i is drawn from a
+   * generator seeded with seed and i only, so the sentences are the same
+   * for the same seed whatever the number of threads.
+   */
+  public List<List<String>> generateSentences(int count, long seed) {
+    List<List<String>> sentences = new ArrayList<List<String>>(
+        Collections.nCopies(count, (List<String>) null));
+    ForkJoinPool.commonPool().invoke(
+        new GenerateRange(sentences, seed, 0, count));
+    return sentences;
+  }
+
   protected abstract Set<String> lexicon();
   
   public String generateWord(List<String> prefix) {
+    return generateWord(prefix, random);
+  }
+
+  /**
+   * Draws a word following the prefix from random: a word of the lexicon,
+   * or UNKNOWN with the probability mass the lexicon leaves.
+   */
+  public String generateWord(List<String> prefix, Random random) {
     assert prefix.size() == n - 1;
-    double sample = Math.random();
-    double sum = 0.0;
-    for (String word : lexicon()) {
-      sum += getWordProbability(prefix, word);
-      if (sum > sample) {
-        return word;
+    NGramScorer scorer = getScorer();
+    long state = 0L;
+    for (String word : prefix) {
+      state = scorer.nextState(state, scorer.getId(word));
+    }
+    return scorer.getWord(sampler(scorer, state).sample(random));
+  }
+
+  /**
+   * Returns the sampler of the word following the context of state,
+   * building it on first use. The samplers of the most recently used
+   * MAX_SAMPLERS contexts are kept.
+   */
+  private WordSampler sampler(NGramScorer scorer, long state) {
+    Long key = state;
+    synchronized (this) {
+      if (samplers == null) {
+        samplers = new LinkedHashMap<Long, WordSampler>(16, 0.75f, true) {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Long, WordSampler> eldest) {
+            return size() > MAX_SAMPLERS;
+          }
+        };
+      }
+      WordSampler sampler = samplers.get(key);
+      if (sampler != null) {
+        return sampler;
+      }
+    }
+    // Built outside of the lock: two threads may both build a sampler,
+    // which is only wasted work.
+    WordSampler sampler = new WordSampler(scorer, state);
+    synchronized (this) {
+      if (scorer == this.scorer && samplers != null) {
+        samplers.put(key, sampler);
+      }
+    }
+    return sampler;
+  }
+
+  /**
+   * Draws the word following one context. The words seen after the context
+   * are drawn from an alias table in constant time; the rest of the mass
+   * (unseen words and UNKNOWN) is one more entry of the table which, when
+   * drawn, is resolved by inverting the cumulative probability of the
+   * unseen words at one uniform variate: by a scan, or by a binary search
+   * of the cumulative probabilities once it has been drawn UNSEEN_SCANS
+   * times. Both sum the same probabilities in the same order, so a draw
+   * uses the same variates and gives the same word whatever the cache
+   * holds, and a seed the same sentences.
+   */
+  private class WordSampler {
+
+    private final NGramScorer scorer;
+    private final long state;
+    // Ids of the words seen after the context, in increasing order.
+    private final int[] seen;
+    private final AliasTable table;
+    private final double unseenMass;
+    // The unseen word ids in increasing order and their cumulative
+    // probabilities, built by the scan that unseenDraws triggers.
+    private volatile UnseenWords unseen;
+    // Racy, but a lost update only delays the cumulative probabilities.
+    private int unseenDraws;
+
+    WordSampler(NGramScorer scorer, long state) {
+      this.scorer = scorer;
+      this.state = state;
+      List<String> prefix = new ArrayList<String>(n - 1);
+      for (int i = 0; i < n - 1; i++) {
+        prefix.add(scorer.getWord(scorer.contextWord(state, i)));
+      }
+      int unknownId = scorer.getId(UNKNOWN);
+      int[] ids = new int[16];
+      int size = 0;
+      for (String word : knownWords(prefix)) {
+        int id = scorer.getId(word);
+        if (id != unknownId && lexicon().contains(word)) {
+          if (size == ids.length) {
+            ids = Arrays.copyOf(ids, 2 * size);
+          }
+          ids[size++] = id;
+        }
+      }
+      seen = Arrays.copyOf(ids, size);
+      Arrays.sort(seen);
+      double[] weights = new double[size + 1];
+      double sum = 0.0;
+      for (int i = 0; i < size; i++) {
+        weights[i] = scorer.probability(state, seen[i]);
+        sum += weights[i];
+      }
+      unseenMass = Math.max(0.0, 1.0 - sum);
+      weights[size] = unseenMass;
+      table = new AliasTable(weights);
+    }
+
+    int sample(Random random) {
+      int i = table.sample(random);
+      return (i < seen.length) ? seen[i] : sampleUnseen(random);
+    }
+
+    /**
+     * Draws a word of the lexicon not seen after the context, or the unknown
+     * id with the mass the lexicon leaves.
+     */
+    private int sampleUnseen(Random random) {
+      double sample = random.nextDouble() * unseenMass;
+      int unknownId = scorer.getId(UNKNOWN);
+      UnseenWords words = unseen;
+      if (words == null && ++unseenDraws > UNSEEN_SCANS) {
+        words = new UnseenWords();
+        unseen = words;
+      }
+      if (words != null) {
+        int i = Arrays.binarySearch(words.sums, sample);
+        // The first sum above the sample, past equal ones.
+        i = (i < 0) ? -i - 1 : i + 1;
+        while (i < words.sums.length && !(words.sums[i] > sample)) {
+          i++;
+        }
+        return (i < words.ids.length) ? words.ids[i] : unknownId;
+      }
+      double sum = 0.0;
+      int next = 0;
+      for (int id = firstId(); id < unknownId; id++) {
+        if (next < seen.length && seen[next] == id) {
+          next++;
+          continue;
+        }
+        sum += scorer.probability(state, id);
+        if (sum > sample) {
+          return id;
+        }
+      }
+      return unknownId;
+    }
+
+    /**
+     * The words of the lexicon not seen after the context, by increasing id,
+     * with the sums of their probabilities up to each, as the scan of
+     * sampleUnseen adds them.
+     */
+    private class UnseenWords {
+      final int[] ids;
+      final double[] sums;
+
+      UnseenWords() {
+        int unknownId = scorer.getId(UNKNOWN);
+        int first = firstId();
+        int size = Math.max(0, unknownId - first - seen.length);
+        int[] unseenIds = new int[size];
+        double[] unseenSums = new double[size];
+        double sum = 0.0;
+        int count = 0;
+        int next = 0;
+        for (int id = first; id < unknownId; id++) {
+          if (next < seen.length && seen[next] == id) {
+            next++;
+            continue;
+          }
+          if (count == unseenIds.length) {
+            unseenIds = Arrays.copyOf(unseenIds, 2 * count + 1);
+            unseenSums = Arrays.copyOf(unseenSums, 2 * count + 1);
+          }
+          sum += scorer.probability(state, id);
+          unseenIds[count] = id;
+          unseenSums[count] = sum;
+          count++;
+        }
+        ids = Arrays.copyOf(unseenIds, count);
+        sums = Arrays.copyOf(unseenSums, count);
+      }
+    }
+
+    /**
+     * Id 0 is START, which is only generated if it is in the lexicon.
+     */
+    private int firstId() {
+      return lexicon().contains(START) ? 0 : 1;
+    }
+  }
+
+  /**
+   * Generates the sentences of a range of indices, splitting it in halves
+   * while it is large.
+   */
+  private class GenerateRange extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+    private static final int MIN_RANGE = 16;
+    private final List<List<String>> sentences;
+    private final long seed;
+    private final int from;
+    private final int to;
+
+    GenerateRange(List<List<String>> sentences, long seed, int from, int to) {
+      this.sentences = sentences;
+      this.seed = seed;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= MIN_RANGE) {
+        for (int i = from; i < to; i++) {
+          // Spread the seeds of consecutive sentences apart.
+          Random random = new Random(seed + 0x9E3779B97F4A7C15L * (i + 1));
+          sentences.set(i, generateSentence(random));
+        }
+      } else {
+        int middle = (from + to) >>> 1;
+        invokeAll(new GenerateRange(sentences, seed, from, middle),
+            new GenerateRange(sentences, seed, middle, to));
       }
     }
-    return UNKNOWN;
   }
   
   public List<String> chopPrefix(List<String> largePrefix) {
@@ -143,4 +500,27 @@ public abstract class NGram implements LanguageModel, Serializable {
     return prefix;
   }
   
+  /**
+   * Scores words through getWordProbability, decoding the context of each
+   * state into a list of words.
+   */
+  private static class WordScorer extends NGramScorer {
+
+    private NGram model;
+
+    WordScorer(NGram model, Vocabulary vocabulary) {
+      super(model.getN(), vocabulary);
+      this.model = model;
+    }
+
+    @Override
+    public double probability(long state, int word) {
+      List<String> prefix = new ArrayList<String>(n - 1);
+      for (int i = 0; i < n - 1; i++) {
+        prefix.add(getWord(contextWord(state, i)));
+      }
+      return model.getWordProbability(prefix, getWord(word));
+    }
+  }
+
 }
@@ -0,0 +1,159 @@
+package cs224n.langmodel;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of n-gram counts shared by the components of a composite model
+ * trained on the same sentences. A composite model opens the store of its
+ * training sentences for the highest order it needs before training its
+ * components, and releases it afterwards; while the store is open,
+ * components get their counts from {@link #train} instead of counting the
+ * sentences themselves. The highest order is counted in a single pass over
+ * the sentences and the lower orders are derived from it, all sharing one
+ * vocabulary.
+ * <p>
+ * Stores are reference counted, so nested composite models (e.g. the
+ * backoff models of ZipfChimeraInterpolatedTriGramModel) share the store
+ * opened by the outermost one. The store is dropped when the last reference
+ * is released; the count tables stay with the components that use them.
+ * Since several components may hold the same counts, counts handed out by a
+ * store cannot be trained again: a component trained again trains its own
+ * copy of them instead.
+ * <p>
+ * The counts of a store are counted in memory unless
+ * {@link #setExternalCounting} is called on it before they are asked for;
+ * a caller opening the store of its training sentences before training a
+ * model thus decides how all of its components count.
+ */
+public class NGramCountStore {
+
+  private static final Map<Collection<List<String>>, NGramCountStore> stores =
+      new IdentityHashMap<Collection<List<String>>, NGramCountStore>();
+
+  private Collection<List<String>> sentences;
+  private int references;
+  private int maxOrder;
+  private Map<Integer, EmpiricalNGramModel> models;
+  private long countingMemory;
+  private File countingTempDir;
+  private long countingTempLimit;
+
+  private NGramCountStore(Collection<List<String>> sentences) {
+    this.sentences = sentences;
+    this.references = 0;
+    this.maxOrder = 0;
+    this.models = new HashMap<Integer, EmpiricalNGramModel>();
+    this.countingMemory = 0;
+    this.countingTempDir = null;
+    this.countingTempLimit = Long.MAX_VALUE;
+  }
+
+  /**
+   * Opens (or references again) the store of the sentences, announcing that
+   * counts of orders up to maxOrder will be asked for. Every call must be
+   * matched by a call to {@link #release}.
+   */
+  public static synchronized NGramCountStore open(
+      Collection<List<String>> sentences, int maxOrder) {
+    NGramCountStore store = stores.get(sentences);
+    if (store == null) {
+      store = new NGramCountStore(sentences);
+      stores.put(sentences, store);
+    }
+    store.references++;
+    store.maxOrder = Math.max(store.maxOrder, maxOrder);
+    return store;
+  }
+
+  public void release() {
+    synchronized (NGramCountStore.class) {
+      assert references > 0;
+      references--;
+      if (references == 0) {
+        stores.remove(sentences);
+        models.clear();
+      }
+    }
+  }
+
+  /**
+   * Makes the store count with
+   * {@link EmpiricalNGramModel#setExternalCounting}.
+   */
+  public synchronized void setExternalCounting(long memoryBudget,
+      File tempDir, long maxTempBytes) {
+    countingMemory = memoryBudget;
+    countingTempDir = tempDir;
+    countingTempLimit = maxTempBytes;
+  }
+
+  /**
+   * Returns the counts of order n of the sentences, counting the highest
+   * order announced the first time and deriving the others from it.
+   */
+  public synchronized EmpiricalNGramModel getCounts(int n) {
+    EmpiricalNGramModel model = models.get(n);
+    if (model != null) {
+      return model;
+    }
+    if (models.isEmpty()) {
+      int order = Math.max(n, maxOrder);
+      EmpiricalNGramModel counted = new EmpiricalNGramModel(order);
+      counted.setExternalCounting(countingMemory, countingTempDir,
+          countingTempLimit);
+      counted.train(sentences);
+      counted.setShared();
+      models.put(order, counted);
+      if (order == n) {
+        return counted;
+      }
+    }
+    EmpiricalNGramModel highest = null;
+    for (EmpiricalNGramModel candidate : models.values()) {
+      if (candidate.getN() > n
+          && (highest == null || candidate.getN() < highest.getN())) {
+        highest = candidate;
+      }
+    }
+    if (highest == null) {
+      // An order above the announced ones: count it on its own.
+      model = new EmpiricalNGramModel(n);
+      model.setExternalCounting(countingMemory, countingTempDir,
+          countingTempLimit);
+      model.train(sentences);
+    } else {
+      model = highest.suffixModel(n);
+    }
+    model.setShared();
+    models.put(n, model);
+    return model;
+  }
+
+  /**
+   * Trains counts on the sentences: if counts is still empty and a store is
+   * open for the sentences, returns the shared counts of the same order;
+   * otherwise trains counts itself, or a copy of it if it came from a store,
+   * and returns it.
+   */
+  public static EmpiricalNGramModel train(EmpiricalNGramModel counts,
+      Collection<List<String>> sentences) {
+    NGramCountStore store;
+    synchronized (NGramCountStore.class) {
+      store = stores.get(sentences);
+    }
+    if (store == null || !counts.isEmpty()) {
+      if (counts.isShared()) {
+        counts = counts.copy();
+      }
+      counts.train(sentences);
+      return counts;
+    }
+    return store.getCounts(counts.getN());
+  }
+
+}
@@ -0,0 +1,187 @@
+package cs224n.langmodel;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash table from packed n-gram keys to int counts, used
+ * while counting. Keys are produced by {@link #pack} and are never negative,
+ * so -1 marks an empty slot. Once counting is done the table is frozen into
+ * an {@link NGramCounts}.
+ */
+public class NGramCountTable {
+
+  private static final long EMPTY = -1L;
+  private static final double MAX_LOAD = 0.75;
+  private long[] keys;
+  private int[] counts;
+  private int size;
+
+  public NGramCountTable() {
+    this(1024);
+  }
+
+  public NGramCountTable(int expectedSize) {
+    int capacity = 16;
+    while (capacity * MAX_LOAD < expectedSize) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    Arrays.fill(keys, EMPTY);
+    counts = new int[capacity];
+    size = 0;
+  }
+
+  /**
+   * Number of bits used for each word id in an n-gram of order n.
+   */
+  public static int bitsPerWord(int n) {
+    return 63 / Math.max(n, 1);
+  }
+
+  /**
+   * Packs ids[offset], ..., ids[offset + length - 1] into a single key, the
+   * first id taking the most significant bits. Keys of the same length sort
+   * like their id sequences, so all n-grams sharing a prefix are contiguous,
+   * and the key of the prefix is the n-gram key shifted right by bits.
+   *
+   * @throws IllegalStateException if an id is negative or does not fit in
+   *         bits, which would merge different n-grams into one key: the
+   *         vocabulary is too large for n-grams of this order
+   */
+  public static long pack(int[] ids, int offset, int length, int bits) {
+    long key = 0L;
+    for (int i = offset; i < offset + length; i++) {
+      if (ids[i] < 0 || (bits < 31 && ids[i] >= (1 << bits))) {
+        throw new IllegalStateException("Word id " + ids[i]
+            + " does not fit in the " + bits + " bits of a word in a "
+            + length + "-gram key: the vocabulary is too large");
+      }
+      key = (key << bits) | ids[i];
+    }
+    return key;
+  }
+
+  /**
+   * Returns the id at the given position (0 being the first word) of a key
+   * packing length ids.
+   */
+  public static int unpack(long key, int position, int length, int bits) {
+    return (int) ((key >>> ((length - 1 - position) * bits)) & ((1L << bits) - 1));
+  }
+
+  private static int hash(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+
+  private int slot(long key) {
+    int mask = keys.length - 1;
+    int slot = hash(key) & mask;
+    while (keys[slot] != EMPTY && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  public void incrementCount(long key, int increment) {
+    assert key >= 0;
+    int slot = slot(key);
+    if (keys[slot] == EMPTY) {
+      if (size + 1 > keys.length * MAX_LOAD) {
+        rehash(keys.length << 1);
+        slot = slot(key);
+      }
+      keys[slot] = key;
+      size++;
+    }
+    counts[slot] += increment;
+  }
+
+  public int getCount(long key) {
+    int slot = slot(key);
+    return keys[slot] == EMPTY ? 0 : counts[slot];
+  }
+
+  public boolean containsKey(long key) {
+    return keys[slot(key)] != EMPTY;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Removes all keys, keeping the current capacity.
+   */
+  public void clear() {
+    Arrays.fill(keys, EMPTY);
+    Arrays.fill(counts, 0);
+    size = 0;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    int[] oldCounts = counts;
+    allocate(capacity);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int slot = slot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        counts[slot] = oldCounts[i];
+        size++;
+      }
+    }
+  }
+
+  /**
+   * Adds the counts of this table to table.
+   */
+  public void addTo(NGramCountTable table) {
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != EMPTY) {
+        table.incrementCount(keys[i], counts[i]);
+      }
+    }
+  }
+
+  /**
+   * Number of slots of the table; together with keyAt and countAt, this
+   * visits the keys in no particular order without sorting them.
+   */
+  public int capacity() {
+    return keys.length;
+  }
+
+  /**
+   * Returns the key in the slot, or -1 if the slot is empty.
+   */
+  public long keyAt(int slot) {
+    return keys[slot];
+  }
+
+  public int countAt(int slot) {
+    return counts[slot];
+  }
+
+  /**
+   * Returns all keys in the table in increasing order.
+   */
+  public long[] sortedKeys() {
+    long[] sorted = new long[size];
+    int next = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != EMPTY) {
+        sorted[next++] = keys[i];
+      }
+    }
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+}
@@ -0,0 +1,218 @@
+package cs224n.langmodel;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Frozen n-gram counts of a single order, stored as sorted primitive arrays.
+ * Prefixes are kept as sorted packed keys (see {@link NGramCountTable#pack}),
+ * and the words seen after prefix p are words[offsets[p]] ...
+ * words[offsets[p + 1] - 1], sorted by id, with their counts alongside. This
+ * costs 8 bytes per n-gram plus 20 bytes per distinct prefix.
+ */
+public class NGramCounts implements Serializable {
+
+  private static final long serialVersionUID = -2609358532931580186L;
+  private int n;
+  private int bits;
+  private long[] prefixKeys;
+  private long[] prefixTotals;
+  private int[] offsets;
+  private int[] words;
+  private int[] counts;
+  // Fill position while the counts are appended in key order.
+  private transient int appended;
+  private transient int lastPrefix;
+
+  /**
+   * Freezes the counts accumulated in the table, whose keys pack n word ids.
+   */
+  public NGramCounts(int n, NGramCountTable table) {
+    this(n, table.sortedKeys(), null, table);
+  }
+
+  /**
+   * Builds the counts from keys packing n word ids, sorted in increasing
+   * order, and their (positive) counts.
+   */
+  public NGramCounts(int n, long[] sortedKeys, int[] keyCounts) {
+    this(n, sortedKeys, keyCounts, null);
+  }
+
+  private NGramCounts(int n, long[] sortedKeys, int[] keyCounts,
+      NGramCountTable table) {
+    this.n = n;
+    this.bits = NGramCountTable.bitsPerWord(n);
+    int numPrefixes = 0;
+    for (int i = 0; i < sortedKeys.length; i++) {
+      assert i == 0 || sortedKeys[i - 1] < sortedKeys[i];
+      if (i == 0 || prefixOf(sortedKeys[i - 1]) != prefixOf(sortedKeys[i])) {
+        numPrefixes++;
+      }
+    }
+    prefixKeys = new long[numPrefixes];
+    prefixTotals = new long[numPrefixes];
+    offsets = new int[numPrefixes + 1];
+    words = new int[sortedKeys.length];
+    counts = new int[sortedKeys.length];
+    int prefix = -1;
+    for (int i = 0; i < sortedKeys.length; i++) {
+      long key = sortedKeys[i];
+      if (prefix < 0 || prefixKeys[prefix] != prefixOf(key)) {
+        prefix++;
+        prefixKeys[prefix] = prefixOf(key);
+        offsets[prefix] = i;
+      }
+      words[i] = NGramCountTable.unpack(key, n - 1, n, bits);
+      counts[i] = (table != null) ? table.getCount(key) : keyCounts[i];
+      assert counts[i] > 0;
+      prefixTotals[prefix] += counts[i];
+    }
+    offsets[numPrefixes] = sortedKeys.length;
+  }
+
+  /**
+   * Allocates counts for the given numbers of distinct n-grams and prefixes,
+   * to be filled by calling {@link #append} with every key in increasing
+   * order. This freezes counts streamed from disk without holding them twice.
+   */
+  NGramCounts(int n, int size, int numPrefixes) {
+    this.n = n;
+    this.bits = NGramCountTable.bitsPerWord(n);
+    prefixKeys = new long[numPrefixes];
+    prefixTotals = new long[numPrefixes];
+    offsets = new int[numPrefixes + 1];
+    words = new int[size];
+    counts = new int[size];
+    offsets[numPrefixes] = size;
+    appended = 0;
+    lastPrefix = -1;
+  }
+
+  void append(long key, int count) {
+    assert count > 0;
+    if (lastPrefix < 0 || prefixKeys[lastPrefix] != prefixOf(key)) {
+      lastPrefix++;
+      prefixKeys[lastPrefix] = prefixOf(key);
+      offsets[lastPrefix] = appended;
+    }
+    words[appended] = NGramCountTable.unpack(key, n - 1, n, bits);
+    counts[appended] = count;
+    prefixTotals[lastPrefix] += count;
+    appended++;
+  }
+
+  private long prefixOf(long key) {
+    return n == 1 ? 0L : key >>> bits;
+  }
+
+  public int getN() {
+    return n;
+  }
+
+  /**
+   * Number of bits per word id in the packed keys.
+   */
+  public int getBits() {
+    return bits;
+  }
+
+  /**
+   * Number of distinct n-grams.
+   */
+  public int size() {
+    return words.length;
+  }
+
+  public int numPrefixes() {
+    return prefixKeys.length;
+  }
+
+  /**
+   * Returns the index of the prefix with the given packed key, or -1 if the
+   * prefix was never seen.
+   */
+  public int prefixIndex(long prefixKey) {
+    int index = Arrays.binarySearch(prefixKeys, prefixKey);
+    return index < 0 ? -1 : index;
+  }
+
+  /**
+   * Returns the index of the prefix made of ids[offset] ...
+   * ids[offset + n - 2], or -1 if the prefix was never seen.
+   */
+  public int prefixIndex(int[] ids, int offset) {
+    return prefixIndex(NGramCountTable.pack(ids, offset, n - 1, bits));
+  }
+
+  public long prefixKey(int prefix) {
+    return prefixKeys[prefix];
+  }
+
+  /**
+   * Returns the id at the given position of the prefix.
+   */
+  public int prefixWord(int prefix, int position) {
+    return NGramCountTable.unpack(prefixKeys[prefix], position, n - 1, bits);
+  }
+
+  public long prefixTotal(int prefix) {
+    return prefixTotals[prefix];
+  }
+
+  /**
+   * The n-grams of a prefix occupy positions [wordStart(p), wordEnd(p)).
+   */
+  public int wordStart(int prefix) {
+    return offsets[prefix];
+  }
+
+  public int wordEnd(int prefix) {
+    return offsets[prefix + 1];
+  }
+
+  public int wordAt(int position) {
+    return words[position];
+  }
+
+  public int countAt(int position) {
+    return counts[position];
+  }
+
+  /**
+   * Returns the position of the word among the n-grams of the prefix, or -1
+   * if the n-gram was never seen.
+   */
+  public int find(int prefix, int word) {
+    if (prefix < 0) {
+      return -1;
+    }
+    int position = Arrays.binarySearch(words, offsets[prefix],
+        offsets[prefix + 1], word);
+    return position < 0 ? -1 : position;
+  }
+
+  public int getCount(int prefix, int word) {
+    int position = find(prefix, word);
+    return position < 0 ? 0 : counts[position];
+  }
+
+  /**
+   * Adds all the counts into the table, e.g. to keep counting.
+   */
+  public void addTo(NGramCountTable table) {
+    for (int prefix = 0; prefix < prefixKeys.length; prefix++) {
+      for (int i = offsets[prefix]; i < offsets[prefix + 1]; i++) {
+        table.incrementCount(keyAt(prefix, i), counts[i]);
+      }
+    }
+  }
+
+  /**
+   * Returns the packed n-gram key of position i, which belongs to prefix.
+   */
+  public long keyAt(int prefix, int i) {
+    return n == 1 ? words[i] : (prefixKeys[prefix] << bits) | words[i];
+  }
+
+}
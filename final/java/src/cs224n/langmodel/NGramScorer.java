@@ -0,0 +1,121 @@
+package cs224n.langmodel;
+
+import java.util.List;
+
+/**
+ * Scores words one at a time against a trained NGram without allocating
+ * objects. Words are given by ids of a vocabulary fixed when the scorer is
+ * created; words outside of it all share one unknown id. The context of the
+ * next word is an immutable state: the ids of the last n - 1 words packed in
+ * a long, the most recent word in the lowest bits. Scoring a sentence is
+ * <pre>
+ *   long state = scorer.startState();
+ *   for (int word : ids) {
+ *     logProbability += scorer.score(state, word);
+ *     state = scorer.nextState(state, word);
+ *   }
+ * </pre>
+ * All scorers created for the components of a model share its vocabulary,
+ * so the state of a model of order n is also a valid state for any
+ * component of lower order, which reads only the words it needs.
+ * <p>
+ * Scorers are immutable and may be used by several threads. A scorer
+ * reflects the model when it was created; see {@link NGram#getScorer}.
+ */
+public abstract class NGramScorer {
+
+  private static final double LN_2 = Math.log(2.0);
+
+  protected final int n;
+  protected final Vocabulary vocabulary;
+  protected final int unknownId;
+  protected final int bits;
+  private final long contextMask;
+  private final long wordMask;
+  private final int startId;
+  private final int stopId;
+
+  protected NGramScorer(int n, Vocabulary vocabulary) {
+    this.n = n;
+    this.vocabulary = vocabulary;
+    this.unknownId = vocabulary.size();
+    this.bits = Math.max(1, 32 - Integer.numberOfLeadingZeros(unknownId));
+    assert bits * (n - 1) <= 63 : "vocabulary too large for order " + n;
+    this.contextMask = (n == 1) ? 0L : (1L << (bits * (n - 1))) - 1;
+    this.wordMask = (1L << bits) - 1;
+    this.startId = getId(NGram.START);
+    this.stopId = getId(NGram.STOP);
+  }
+
+  public int getN() {
+    return n;
+  }
+
+  /**
+   * Returns the id of the word, or the unknown id if the word is not in the
+   * vocabulary of the scorer.
+   */
+  public int getId(String word) {
+    int id = vocabulary.getId(word);
+    return id < 0 ? unknownId : id;
+  }
+
+  public String getWord(int id) {
+    return id == unknownId ? NGram.UNKNOWN : vocabulary.getWord(id);
+  }
+
+  /**
+   * The state before the first word of a sentence.
+   */
+  public long startState() {
+    long state = 0L;
+    for (int i = 0; i < n - 1; i++) {
+      state = (state << bits) | startId;
+    }
+    return state;
+  }
+
+  /**
+   * The state after word has followed the context of state.
+   */
+  public long nextState(long state, int word) {
+    return ((state << bits) | word) & contextMask;
+  }
+
+  /**
+   * Returns the id at the given position (0 being the oldest word) of the
+   * n - 1 words of context in the state.
+   */
+  protected int contextWord(long state, int position) {
+    return (int) ((state >>> ((n - 2 - position) * bits)) & wordMask);
+  }
+
+  /**
+   * Probability of the word after the context of the state, as given by
+   * NGram.getWordProbability.
+   */
+  public abstract double probability(long state, int word);
+
+  /**
+   * Log (base 2) probability of the word after the context of the state.
+   */
+  public double score(long state, int word) {
+    return Math.log(probability(state, word)) / LN_2;
+  }
+
+  /**
+   * Log (base 2) probability of the sentence followed by STOP, as given by
+   * NGram.getSentenceProbability.
+   */
+  public double scoreSentence(List<String> sentence) {
+    double logProbability = 0.0;
+    long state = startState();
+    for (int i = 0; i < sentence.size(); i++) {
+      int word = getId(sentence.get(i));
+      logProbability += score(state, word);
+      state = nextState(state, word);
+    }
+    return logProbability + score(state, stopId);
+  }
+
+}
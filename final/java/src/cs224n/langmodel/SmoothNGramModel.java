@@ -1,9 +1,7 @@
 package cs224n.langmodel;
 
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import cs224n.util.Counter;
@@ -11,40 +9,35 @@ import cs224n.util.Counter;
 public class SmoothNGramModel extends NGram {
 
   private static final int MIN_FREQUENCY_FOR_GT = 20;
-  private static final String MISSING = "<MISSING/>";
   private EmpiricalNGramModel empiricalNGram;
-  private Map<List<String>, Counter<String>> smoothCount;
+  private LogProbabilityTable logProbabilities;
 
   public SmoothNGramModel(int n) {
     super(n);
     empiricalNGram = new EmpiricalNGramModel(n);
-    smoothCount = new HashMap<List<String>, Counter<String>>();
+    logProbabilities = new LogProbabilityTable(empiricalNGram.getCounts(), 1.0);
   }
 
   @Override
   public void train(Collection<List<String>> trainingSentences) {
-    empiricalNGram.train(trainingSentences);
+    resetScorer();
+    empiricalNGram = NGramCountStore.train(empiricalNGram, trainingSentences);
     computeSmoothCounts();
   }
 
   private void computeSmoothCounts() {
-    smoothCount = new HashMap<List<String>, Counter<String>>();
+    NGramCounts counts = empiricalNGram.getCounts();
 
     // Compute maxCount.
     int maxCount = 0;
-    for (List<String> prefix : knownPrefixes()) {
-      Counter<String> prefixCounter = empiricalNGram.getPrefixCounter(prefix);
-      maxCount = Math.max(maxCount,
-          (int) prefixCounter.getCount(prefixCounter.argMax()));
+    for (int i = 0; i < counts.size(); i++) {
+      maxCount = Math.max(maxCount, counts.countAt(i));
     }
 
     // Compute frequencyCount - do the double loop and compute it.
     Counter<Integer> frequencyCount = new Counter<Integer>();
-    for (List<String> prefix : knownPrefixes()) {
-      for (String word : knownWords(prefix)) {
-        frequencyCount.incrementCount(empiricalNGram.getCount(prefix, word),
-            1.0);
-      }
+    for (int i = 0; i < counts.size(); i++) {
+      frequencyCount.incrementCount(counts.countAt(i), 1.0);
     }
 
     // Compute the maxFrequencyForGT
@@ -58,10 +51,7 @@ public class SmoothNGramModel extends NGram {
     }
 
     // Compute totalNGrams
-    int totalNgrams = 0;
-    for (List<String> prefix : knownPrefixes()) {
-      totalNgrams += knownWords(prefix).size();
-    }
+    int totalNgrams = counts.size();
     // Compute missingNGrams
     // Each word can be any in the lexicon, and we allow the last word to be UNKNOWN
     double totalMissingNgrams = Math.pow(lexicon().size(), n - 1) * (lexicon().size() + 1) - totalNgrams;
@@ -69,57 +59,69 @@ public class SmoothNGramModel extends NGram {
     // Compute total count to be distributed to missingNGrams
     double totalMissingNgramsGTCount = frequencyCount.getCount(1);
 
-    // Iterate over the ngrams to compute the smoothed counts.
-    for (List<String> prefix : knownPrefixes()) {
-      smoothCount.put(prefix, new Counter<String>());
-      Counter<String> prefixCounter = empiricalNGram.getPrefixCounter(prefix);
-      Counter<String> smoothedPrefixCounter = smoothCount.get(prefix);
-      for (String word : prefixCounter.keySet()) {
-        int wordFrequency = empiricalNGram.getCount(prefix, word);
+    // Iterate over the ngrams to compute the smoothed counts, and freeze
+    // them as log-probabilities.
+    logProbabilities = new LogProbabilityTable(counts,
+        1.0 / (lexicon().size() + 1));
+    double[] smoothedCount = new double[0];
+    for (int prefix = 0; prefix < counts.numPrefixes(); prefix++) {
+      int start = counts.wordStart(prefix);
+      int numWords = counts.wordEnd(prefix) - start;
+      if (smoothedCount.length < numWords) {
+        smoothedCount = new double[2 * numWords];
+      }
+      double totalCount = 0.0;
+      for (int i = 0; i < numWords; i++) {
+        int wordFrequency = counts.countAt(start + i);
         assert wordFrequency > 0;
         if (wordFrequency <= maxFrequencyForGT) {
-          double wordGTCount = (wordFrequency + 1)
+          smoothedCount[i] = (wordFrequency + 1)
               * frequencyCount.getCount(wordFrequency + 1)
               / frequencyCount.getCount(wordFrequency);
-          smoothedPrefixCounter.setCount(word, wordGTCount);
         } else {
-          smoothedPrefixCounter.setCount(word, wordFrequency);
+          smoothedCount[i] = wordFrequency;
         }
+        totalCount += smoothedCount[i];
       }
-      int prefixMissingNgrams = lexicon().size() - knownWords(prefix).size() + 1;  // +1 for UNKNOWN
+      int prefixMissingNgrams = lexicon().size() - numWords + 1;  // +1 for UNKNOWN
       // TODO: Experiment with different normalizing factor.
-      smoothedPrefixCounter.setCount(MISSING, totalMissingNgramsGTCount
-          * prefixMissingNgrams / totalMissingNgrams);
-      
+      double missingCount = totalMissingNgramsGTCount * prefixMissingNgrams
+          / totalMissingNgrams;
+      totalCount += missingCount;
+
       // Now change smoothed counts to conditional probabilities
-      double totalCount = smoothedPrefixCounter.totalCount();
-      for (String word : smoothedPrefixCounter.keySet()) {
-        smoothedPrefixCounter.setCount(word, smoothedPrefixCounter.getCount(word) / totalCount);
+      for (int i = 0; i < numWords; i++) {
+        logProbabilities.setProbability(start + i, smoothedCount[i] / totalCount);
       }
-      assert Math.abs(1.0-smoothedPrefixCounter.totalCount() ) < 1e-6;
+      logProbabilities.setMissingProbability(prefix, missingCount / totalCount
+          / prefixMissingNgrams);
     }
   }
 
   @Override
   public double getWordProbability(List<String> prefix, String word) {
     assert prefix.size() == n - 1;
-    if (!knownPrefixes().contains(prefix)) {
-      // Missing prefix, give uniform probability.
-      return 1.0 / (lexicon().size() + 1);
-    }
-    Counter<String> smoothedPrefixCounter = smoothCount.get(prefix);
-    if (!knownWords(prefix).contains(word)) {
-      // NOTE We are dealing with UKNOWN by giving it equal weight as the
-      // missing ngrams. An alternative method would be to check if the
-      // word is in the lexicon to differentiate between missing ngram
-      // and unknown word.
-      // Once we add backoff, this does not matter except for the unigram case.
-      int prefixMissingNgrams = lexicon().size() - knownWords(prefix).size()
-          + 1; // +1 for UKNOWN
-      assert prefixMissingNgrams > 0;
-      return smoothedPrefixCounter.getCount(MISSING) / prefixMissingNgrams;
-    }
-    return smoothedPrefixCounter.getCount(word);
+    int prefixIndex = empiricalNGram.prefixIndex(prefix);
+    int position = prefixIndex < 0 ? -1 : empiricalNGram.find(prefixIndex, word);
+    // NOTE We are dealing with UKNOWN by giving it equal weight as the
+    // missing ngrams. An alternative method would be to check if the
+    // word is in the lexicon to differentiate between missing ngram
+    // and unknown word.
+    // Once we add backoff, this does not matter except for the unigram case.
+    return Math.exp(logProbabilities.logProbability(prefixIndex, position));
+  }
+
+  @Override
+  protected double probabilityMass(List<String> prefix) {
+    assert prefix.size() == n - 1;
+    // Every word of the lexicon and UNKNOWN, seen or missing.
+    return logProbabilities.probabilityMass(empiricalNGram.getCounts(),
+        empiricalNGram.prefixIndex(prefix), lexicon().size() + 1);
+  }
+
+  @Override
+  protected NGramScorer createScorer(Vocabulary vocabulary) {
+    return new SmoothScorer(empiricalNGram, vocabulary, logProbabilities);
   }
 
   @Override
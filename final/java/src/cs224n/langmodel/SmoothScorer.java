@@ -0,0 +1,36 @@
+package cs224n.langmodel;
+
+/**
+ * Scorer of SmoothNGramModel and ZipfSmoothNGramModel, reading their
+ * frozen log-probabilities.
+ */
+class SmoothScorer extends CountsScorer {
+
+  private static final double LN_2 = Math.log(2.0);
+
+  private LogProbabilityTable logProbabilities;
+
+  SmoothScorer(EmpiricalNGramModel empiricalNGram, Vocabulary vocabulary,
+      LogProbabilityTable logProbabilities) {
+    super(empiricalNGram, vocabulary);
+    this.logProbabilities = logProbabilities;
+  }
+
+  @Override
+  double probability(int context, int position) {
+    return Math.exp(logProbabilities.logProbability(context, position));
+  }
+
+  @Override
+  double logProbability(int context, int position) {
+    return logProbabilities.logProbability(context, position);
+  }
+
+  @Override
+  public double score(long state, int word) {
+    int context = context(state);
+    int position = context < 0 ? -1 : find(context, word);
+    return logProbabilities.logProbability(context, position) / LN_2;
+  }
+
+}
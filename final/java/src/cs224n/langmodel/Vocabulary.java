@@ -0,0 +1,74 @@
+package cs224n.langmodel;
+
+import java.io.Serializable;
+import java.util.List;
+
+import cs224n.util.Index;
+
+/**
+ * Maps words to dense integer ids (0, 1, 2, ...) in order of first
+ * appearance, so count tables can be keyed by primitive ids instead of
+ * strings.
+ */
+public class Vocabulary implements Serializable {
+
+  private static final long serialVersionUID = 4420936472183551047L;
+  private Index<String> index;
+
+  public Vocabulary() {
+    index = new Index<String>();
+  }
+
+  /**
+   * Returns a vocabulary with the same words and ids, which can then grow
+   * independently of this one.
+   */
+  public Vocabulary copy() {
+    Vocabulary copy = new Vocabulary();
+    copy.index = new Index<String>(index);
+    return copy;
+  }
+
+  /**
+   * Returns the id of the word, adding it to the vocabulary if needed.
+   */
+  public int add(String word) {
+    int id = index.indexOf(word);
+    if (id < 0) {
+      index.add(word);
+      id = index.size() - 1;
+    }
+    return id;
+  }
+
+  /**
+   * Returns the id of the word, or -1 if the word is not in the vocabulary.
+   */
+  public int getId(String word) {
+    return index.indexOf(word);
+  }
+
+  public String getWord(int id) {
+    return index.get(id);
+  }
+
+  public int size() {
+    return index.size();
+  }
+
+  /**
+   * Fills ids with the ids of the words, returning false if any of them is
+   * not in the vocabulary.
+   */
+  public boolean getIds(List<String> words, int[] ids) {
+    assert ids.length >= words.size();
+    for (int i = 0; i < words.size(); i++) {
+      ids[i] = index.indexOf(words.get(i));
+      if (ids[i] < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,178 @@
+package cs224n.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A collection of sentences read from a pre-tokenized binary corpus, the
+ * one-time conversion of a text file read through Sentences. The file holds
+ * <pre>
+ *   MAGIC, VERSION, numWords, numSentences, numTokens   (ints)
+ *   numWords words, each its UTF-8 length (int) and bytes, padded to 4 bytes
+ *   numSentences + 1 sentence offsets into the tokens (ints)
+ *   numTokens word ids (ints)
+ * </pre>
+ * and is memory-mapped, so iterating the sentences neither reads nor splits
+ * lines: each word is decoded once, and sentences are views over the ids.
+ * length and wordId give the ids themselves, without Strings. Files must
+ * be smaller than 2GB.
+ * <p>
+ * Sentences.Reader.readSentences opens files ending in EXTENSION this way.
+ * Convert text files with
+ * <pre>
+ *   java cs224n.util.BinarySentences file...
+ * </pre>
+ * which writes file + EXTENSION next to each file.
+ */
+public class BinarySentences extends AbstractList<List<String>> implements
+    RandomAccess {
+
+  public static final String EXTENSION = ".bin";
+
+  private static final int MAGIC = 0x53454e54;
+  private static final int VERSION = 1;
+
+  private final String[] words;
+  private final int size;
+  private final IntBuffer offsets;
+  private final IntBuffer tokens;
+
+  public BinarySentences(String filename) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(filename, "r");
+    ByteBuffer buffer;
+    try {
+      buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+          file.length());
+    } finally {
+      file.close();
+    }
+    if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+      throw new IOException(filename + " is not a binary corpus");
+    }
+    int numWords = buffer.getInt();
+    this.size = buffer.getInt();
+    int numTokens = buffer.getInt();
+    this.words = new String[numWords];
+    for (int i = 0; i < numWords; i++) {
+      byte[] bytes = new byte[buffer.getInt()];
+      buffer.get(bytes);
+      words[i] = new String(bytes, "UTF-8");
+    }
+    buffer.position((buffer.position() + 3) & ~3);
+    this.offsets = slice(buffer, size + 1);
+    this.tokens = slice(buffer, numTokens);
+  }
+
+  private static IntBuffer slice(ByteBuffer buffer, int length) {
+    IntBuffer ints = buffer.slice().asIntBuffer();
+    ints.limit(length);
+    buffer.position(buffer.position() + 4 * length);
+    return ints;
+  }
+
+  /**
+   * Writes the sentences to a binary corpus file.
+   */
+  public static void write(Collection<List<String>> sentences, String filename)
+      throws IOException {
+    Index<String> index = new Index<String>();
+    EncodedSentences encoded = new EncodedSentences(sentences, index);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(filename), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(index.size());
+      out.writeInt(encoded.size());
+      out.writeInt((int) encoded.numTokens());
+      for (String word : index) {
+        byte[] bytes = word.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+      while (out.size() % 4 != 0) {
+        out.write(0);
+      }
+      int offset = 0;
+      out.writeInt(offset);
+      for (int s = 0; s < encoded.size(); s++) {
+        offset += encoded.length(s);
+        out.writeInt(offset);
+      }
+      for (int s = 0; s < encoded.size(); s++) {
+        for (int i = 0; i < encoded.length(s); i++) {
+          out.writeInt(encoded.wordIndex(s, i));
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  public int numWords() {
+    return words.length;
+  }
+
+  public String getWord(int id) {
+    return words[id];
+  }
+
+  public int length(int sentence) {
+    return offsets.get(sentence + 1) - offsets.get(sentence);
+  }
+
+  /**
+   * Id of the word at the position of the sentence.
+   */
+  public int wordId(int sentence, int position) {
+    return tokens.get(offsets.get(sentence) + position);
+  }
+
+  @Override
+  public List<String> get(int sentence) {
+    if (sentence < 0 || sentence >= size) {
+      throw new IndexOutOfBoundsException("sentence " + sentence);
+    }
+    final int start = offsets.get(sentence);
+    final int length = offsets.get(sentence + 1) - start;
+    return new AbstractList<String>() {
+      @Override
+      public String get(int position) {
+        if (position < 0 || position >= length) {
+          throw new IndexOutOfBoundsException("position " + position);
+        }
+        return words[tokens.get(start + position)];
+      }
+
+      @Override
+      public int size() {
+        return length;
+      }
+    };
+  }
+
+  public static void main(String[] args) throws IOException {
+    for (String filename : args) {
+      long start = System.currentTimeMillis();
+      write(new Sentences(filename), filename + EXTENSION);
+      System.out.println("Wrote " + filename + EXTENSION + " in "
+          + (System.currentTimeMillis() - start) + "ms");
+    }
+  }
+
+}
@@ -0,0 +1,103 @@
+package cs224n.util;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * An in-memory list of sentences stored as the indices of their words in an
+ * Index shared by several collections, all the tokens in one int array.
+ * Reading a corpus this way once lets any number of models train and be
+ * evaluated on it without reading the file again or keeping a String per
+ * token. Sentences are returned as read-only views over the array.
+ * <p>
+ * Once built, a collection and its index may be read by several threads,
+ * as long as no other collection is being added to the same index.
+ */
+public class EncodedSentences extends AbstractList<List<String>> implements
+    RandomAccess {
+
+  private final Index<String> words;
+  private int[] tokens;
+  // Sentence i is tokens[starts[i]] to tokens[starts[i + 1] - 1].
+  private int[] starts;
+  private int size;
+
+  /**
+   * Reads the sentences once, adding their words to the index.
+   */
+  public EncodedSentences(Collection<List<String>> sentences,
+      Index<String> words) {
+    this.words = words;
+    this.tokens = new int[1024];
+    this.starts = new int[1024];
+    this.size = 0;
+    int numTokens = 0;
+    for (List<String> sentence : sentences) {
+      if (numTokens + sentence.size() > tokens.length) {
+        tokens = Arrays.copyOf(tokens, Math.max(2 * tokens.length,
+            numTokens + sentence.size()));
+      }
+      for (String word : sentence) {
+        int index = words.indexOf(word);
+        if (index < 0) {
+          words.add(word);
+          index = words.size() - 1;
+        }
+        tokens[numTokens++] = index;
+      }
+      if (size + 2 > starts.length) {
+        starts = Arrays.copyOf(starts, 2 * starts.length);
+      }
+      starts[++size] = numTokens;
+    }
+  }
+
+  public Index<String> getWords() {
+    return words;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  public long numTokens() {
+    return starts[size];
+  }
+
+  public int length(int sentence) {
+    return starts[sentence + 1] - starts[sentence];
+  }
+
+  /**
+   * Index of the word at the position of the sentence.
+   */
+  public int wordIndex(int sentence, int position) {
+    return tokens[starts[sentence] + position];
+  }
+
+  @Override
+  public List<String> get(final int sentence) {
+    if (sentence < 0 || sentence >= size) {
+      throw new IndexOutOfBoundsException("sentence " + sentence);
+    }
+    return new AbstractList<String>() {
+      @Override
+      public String get(int position) {
+        if (position < 0 || position >= length(sentence)) {
+          throw new IndexOutOfBoundsException("position " + position);
+        }
+        return words.get(wordIndex(sentence, position));
+      }
+
+      @Override
+      public int size() {
+        return length(sentence);
+      }
+    };
+  }
+
+}
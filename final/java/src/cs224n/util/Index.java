@@ -1,5 +1,6 @@
 package cs224n.util;
 
+import java.io.Serializable;
 import java.util.*;
 
 /**
@@ -9,7 +10,8 @@ import java.util.*;
  *
  * @author Dan Klein
  */
-public class Index <E> extends AbstractList<E> {
+public class Index <E> extends AbstractList<E> implements Serializable {
+  static final long serialVersionUID = 1L;
   List<E> objects;
   Map<E, Integer> indexes;
 
@@ -0,0 +1,155 @@
+package cs224n.util;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * The byte offsets of the lines of a text file, as BufferedReader.readLine
+ * splits them ("\n", "\r" or "\r\n"), used by Sentences for size(), get(i)
+ * and ranges of sentences without reading the file.  The index is saved
+ * next to the file as <code>filename + ".idx"</code> and reused as long as
+ * the length and modification time of the file match the ones it was built
+ * for; otherwise it is rebuilt.  If it cannot be saved (e.g. read-only
+ * directory), it is only kept in memory.
+ */
+class LineIndex {
+
+  static final String EXTENSION = ".idx";
+
+  private static final long MAGIC = 0x4c494e45494458L; // "LINEIDX"
+
+  private final long length;
+  private final long lastModified;
+  // offsets[i] is the start of line i; offsets[numLines] is the length.
+  private final long[] offsets;
+
+  private LineIndex(long length, long lastModified, long[] offsets) {
+    this.length = length;
+    this.lastModified = lastModified;
+    this.offsets = offsets;
+  }
+
+  /**
+   * Returns the index of the file, loading it from its .idx file if that
+   * is up to date, or building (and saving) it otherwise.
+   */
+  static LineIndex open(String filename) throws IOException {
+    File file = new File(filename);
+    File indexFile = new File(filename + EXTENSION);
+    long length = file.length();
+    long lastModified = file.lastModified();
+    if (indexFile.exists()) {
+      LineIndex index = read(indexFile);
+      if (index != null && index.length == length
+          && index.lastModified == lastModified) {
+        return index;
+      }
+    }
+    LineIndex index = new LineIndex(length, lastModified, build(file, length));
+    try {
+      index.write(indexFile);
+    } catch (IOException e) {
+      indexFile.delete();
+    }
+    return index;
+  }
+
+  private static long[] build(File file, long length) throws IOException {
+    long[] offsets = new long[1024];
+    int numLines = 0;
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[1 << 16];
+      long position = 0;
+      boolean lineStart = true;
+      boolean afterReturn = false;
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        for (int i = 0; i < read; i++, position++) {
+          byte b = buffer[i];
+          if (afterReturn && b == '\n') {
+            // Second half of "\r\n".
+            afterReturn = false;
+            continue;
+          }
+          afterReturn = false;
+          if (lineStart) {
+            if (numLines + 2 > offsets.length) {
+              offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+            }
+            offsets[numLines++] = position;
+            lineStart = false;
+          }
+          if (b == '\n' || b == '\r') {
+            lineStart = true;
+            afterReturn = (b == '\r');
+          }
+        }
+      }
+    } finally {
+      in.close();
+    }
+    offsets[numLines] = length;
+    return Arrays.copyOf(offsets, numLines + 1);
+  }
+
+  private static LineIndex read(File indexFile) {
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(indexFile), 1 << 16));
+      try {
+        if (in.readLong() != MAGIC) {
+          return null;
+        }
+        long length = in.readLong();
+        long lastModified = in.readLong();
+        long[] offsets = new long[in.readInt() + 1];
+        for (int i = 0; i < offsets.length; i++) {
+          offsets[i] = in.readLong();
+        }
+        return new LineIndex(length, lastModified, offsets);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private void write(File indexFile) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(indexFile), 1 << 16));
+    try {
+      out.writeLong(MAGIC);
+      out.writeLong(length);
+      out.writeLong(lastModified);
+      out.writeInt(numLines());
+      for (long offset : offsets) {
+        out.writeLong(offset);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  int numLines() {
+    return offsets.length - 1;
+  }
+
+  /**
+   * Start of line i; start(numLines()) is the length of the file.
+   */
+  long start(int i) {
+    return offsets[i];
+  }
+
+  /**
+   * Returns the first line starting at or after the offset, numLines() if
+   * there is none.
+   */
+  int lineAt(long offset) {
+    int i = Arrays.binarySearch(offsets, 0, offsets.length - 1, offset);
+    return (i >= 0) ? i : -i - 1;
+  }
+
+}
@@ -0,0 +1,232 @@
+package cs224n.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the sentences of a channel holding UTF-8 text, one
+ * sentence per line, the way Sentences always has: lines end at "\n", "\r"
+ * or "\r\n", words are separated by the whitespace of the regular
+ * expression \s (space, tab, newline, vertical tab, form feed and carriage
+ * return) and lowercased. The bytes are read and decoded in
+ * bulk into a char buffer which is scanned directly, ASCII letters are
+ * lowercased as they are copied, and words are interned through the
+ * TokenInterner, so that each distinct word is a single String; words found
+ * in a small cache of recent words (most tokens) need no String to be
+ * created. The iteration ends at
+ * the end of the channel, or after a given number of bytes, and the channel
+ * is closed then. The buffers and the cache are sized down for reads of a
+ * few bytes, such as a single line.
+ */
+class SentenceTokenizer implements Iterator<List<String>> {
+
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final int RECENT_SIZE = 1 << 16;
+  // Room for any UTF-8 sequence and the chars it decodes to.
+  private static final int MIN_BUFFER_SIZE = 64;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final ReadableByteChannel channel;
+  private long remaining;
+  private final ByteBuffer bytes;
+  private final CharBuffer chars;
+  private final CharsetDecoder decoder;
+  private boolean endOfInput;
+  private boolean finished;
+  // The last character was "\r", so a "\n" right after it ends nothing.
+  private boolean afterReturn;
+
+  // The word being read, which may span several buffers, and its hash code.
+  private char[] word;
+  private int wordLength;
+  private int wordHash;
+  private boolean wordAscii;
+  // Recently interned words by hash code, to find frequent words without
+  // creating a String for them.
+  private final String[] recent;
+
+  private List<String> next;
+
+  /**
+   * Reads the channel up to its end, or up to length bytes if length is not
+   * negative.
+   */
+  SentenceTokenizer(ReadableByteChannel channel, long length) {
+    this.channel = channel;
+    this.remaining = (length < 0) ? Long.MAX_VALUE : length;
+    int size = (length < 0 || length >= BUFFER_SIZE) ? BUFFER_SIZE
+        : Math.max(MIN_BUFFER_SIZE, (int) length);
+    this.bytes = ByteBuffer.allocate(size);
+    this.chars = CharBuffer.allocate(size);
+    this.chars.flip();
+    this.decoder = UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    this.word = new char[64];
+    this.wordAscii = true;
+    // A line of size bytes holds at most size / 2 words.
+    this.recent = new String[Math.min(RECENT_SIZE,
+        Integer.highestOneBit(size))];
+    this.next = readSentence();
+  }
+
+  public boolean hasNext() {
+    return next != null;
+  }
+
+  public List<String> next() {
+    if (next == null) {
+      throw new NoSuchElementException();
+    }
+    List<String> sentence = next;
+    next = readSentence();
+    return sentence;
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Returns the next sentence, or null at the end of the input.
+   */
+  private List<String> readSentence() {
+    List<String> sentence = null;
+    char[] text = chars.array();
+    while (true) {
+      if (!chars.hasRemaining() && !fill()) {
+        break;
+      }
+      int position = chars.position();
+      int limit = chars.limit();
+      while (position < limit) {
+        char c = text[position++];
+        if (afterReturn) {
+          afterReturn = false;
+          if (c == '\n') {
+            continue;
+          }
+        }
+        if (sentence == null) {
+          sentence = new ArrayList<String>();
+        }
+        if (c == '\n' || c == '\r') {
+          afterReturn = (c == '\r');
+          endWord(sentence);
+          chars.position(position);
+          return sentence;
+        }
+        if (c == ' ' || c == '\t' || c == '\013' || c == '\f') {
+          endWord(sentence);
+        } else {
+          if (wordLength == word.length) {
+            char[] longer = new char[2 * word.length];
+            System.arraycopy(word, 0, longer, 0, wordLength);
+            word = longer;
+          }
+          if (c >= 'A' && c <= 'Z') {
+            c += 'a' - 'A';
+          } else if (c >= 0x80) {
+            wordAscii = false;
+          }
+          word[wordLength++] = c;
+          wordHash = 31 * wordHash + c;
+        }
+      }
+      chars.position(position);
+    }
+    if (sentence != null) {
+      endWord(sentence);
+    }
+    return sentence;
+  }
+
+  private void endWord(List<String> sentence) {
+    if (wordLength > 0) {
+      int slot = (wordHash ^ (wordHash >>> 16)) & (recent.length - 1);
+      String string = recent[slot];
+      if (!wordAscii || !matches(string)) {
+        string = new String(word, 0, wordLength);
+        if (!wordAscii) {
+          string = string.toLowerCase();
+        }
+        string = TokenInterner.intern(string);
+        recent[slot] = string;
+      }
+      sentence.add(string);
+      wordLength = 0;
+      wordHash = 0;
+      wordAscii = true;
+    }
+  }
+
+  /**
+   * Returns whether the string is the word being read.
+   */
+  private boolean matches(String string) {
+    if (string == null || string.length() != wordLength) {
+      return false;
+    }
+    for (int i = 0; i < wordLength; i++) {
+      if (string.charAt(i) != word[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Decodes more of the input into chars, returning false at its end.
+   */
+  private boolean fill() {
+    if (finished) {
+      return false;
+    }
+    chars.clear();
+    try {
+      while (true) {
+        if (!endOfInput) {
+          if (bytes.remaining() > remaining) {
+            bytes.limit(bytes.position() + (int) remaining);
+          }
+          int read = channel.read(bytes);
+          if (read < 0 || remaining == 0) {
+            endOfInput = true;
+          } else {
+            remaining -= read;
+          }
+        }
+        bytes.flip();
+        CoderResult result = decoder.decode(bytes, chars, endOfInput);
+        bytes.compact();
+        if (result.isOverflow()) {
+          break;
+        }
+        if (endOfInput) {
+          decoder.flush(chars);
+          finished = true;
+          channel.close();
+          break;
+        }
+        if (chars.position() > 0) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Cannot read sentences: " + e);
+    }
+    chars.flip();
+    return chars.hasRemaining();
+  }
+
+}
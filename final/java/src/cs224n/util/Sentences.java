@@ -1,7 +1,10 @@
 package cs224n.util;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.zip.GZIPInputStream;
 
 /**
  * @author Dan Klein
@@ -10,95 +13,207 @@ import java.util.*;
  /** A <code>Sentences</code> object is a <code>Collection</code> of
    *  sentences backed by a text file containing one sentence per line.  It
    *  provides an iterator over the sentences.  Because the collection is
-   *  disk-backed, any operation other than iterating is likely to be slow.
+   *  disk-backed, any operation other than iterating, size() and get(i)
+   *  (which use a <code>LineIndex</code> of the file) is likely to be slow.
    */
   public class Sentences extends AbstractCollection<List<String>> {
 
-    /** 
-     * An <code>Iterator</code> wrapped around a
-     * <code>BufferedReader</code>.  Each call to <code>next()</code> reads
-     * a line, lowercases it, splits it (on whitespace) into words, and
-     * returns a list of the words.
+    String filename;
+    // Byte range of the file covered by this collection; end is -1 for the
+    // whole file.  Ranges made by split() and range() always start and end
+    // on a line boundary.
+    long start;
+    long end;
+    // Line offsets of the file, loaded on first use.
+    LineIndex index;
+
+    /** Returns an iterator over the sentences in this collection, read by
+     *  a <code>SentenceTokenizer</code>.
      */
-    static class SentenceIterator implements Iterator<List<String>> {
-
-      BufferedReader reader;
+    public Iterator<List<String>> iterator() {
+      return read(start, end < 0 ? -1 : end - start);
+    }
 
-      public boolean hasNext() {
-        try {
-          return reader.ready();
-        } catch (IOException e) {
-          return false;
+    /** Returns a tokenizer reading <code>length</code> bytes of the file
+     *  from <code>from</code> (all of it if <code>length</code> is
+     *  negative).  Gzipped files are decompressed as they are read.
+     */
+    SentenceTokenizer read(long from, long length) {
+      try {
+        FileInputStream in = new FileInputStream(filename);
+        if (isCompressed()) {
+          return new SentenceTokenizer(Channels.newChannel(new GZIPInputStream(
+              in, 1 << 16)), -1);
         }
+        FileChannel channel = in.getChannel();
+        channel.position(from);
+        return new SentenceTokenizer(channel, length);
+      } catch (FileNotFoundException e) {
+        throw new RuntimeException("File not found: " + filename);
+      } catch (IOException e) {
+        throw new RuntimeException("Cannot read " + filename + ": " + e);
       }
+    }
 
-      public List<String> next() {
+    /** Returns whether the file is gzipped (its name ends in .gz), in which
+     *  case it can only be read from the start: it is not indexed nor
+     *  split, and size() and get(i) read the sentences up to the ones they
+     *  need.
+     */
+    public boolean isCompressed() {
+      return filename.endsWith(".gz");
+    }
+
+    /** Returns the line index of the file, loading or building it the
+     *  first time.
+     */
+    synchronized LineIndex index() {
+      if (index == null) {
         try {
-          String line = reader.readLine();
-          String[] words = line.split("\\s+");
-          List<String> sentence = new ArrayList<String>();
-          for (int i = 0; i < words.length; i++) {
-            String word = words[i];
-            if (!word.equals("")) {
-              sentence.add(word.toLowerCase());
-            }
-          }
-          return sentence;
+          index = LineIndex.open(filename);
         } catch (IOException e) {
-          throw new NoSuchElementException();
+          throw new RuntimeException("Cannot read " + filename + ": " + e);
         }
       }
+      return index;
+    }
 
-      public void remove() {
-        throw new UnsupportedOperationException();
-      }
+    /** Returns the line of the file holding the first sentence of this
+     *  collection.
+     */
+    int firstLine() {
+      return index().lineAt(start);
+    }
 
-      public SentenceIterator(BufferedReader reader) {
-        this.reader = reader;
-      }
+    /** Returns the line of the file just after the last sentence of this
+     *  collection.
+     */
+    int lastLine() {
+      return (end < 0) ? index().numLines() : index().lineAt(end);
+    }
 
-    } // end SentenceIterator
+    /** Splits this collection into at most <code>parts</code> collections
+     *  covering consecutive byte ranges of the file of about the same
+     *  length, each holding whole lines.  Iterating over the parts in order
+     *  gives the same sentences as iterating over this collection.  Parts
+     *  can be iterated concurrently.
+     */
+    public List<Sentences> split(int parts) {
+      List<Sentences> split = new ArrayList<Sentences>();
+      if (isCompressed()) {
+        split.add(this);
+        return split;
+      }
+      LineIndex index = index();
+      int first = firstLine();
+      int last = lastLine();
+      long from = index.start(first);
+      long to = index.start(last);
+      for (int i = 1; i <= parts && from < to; i++) {
+        long cut = (i == parts) ? to : index.start(Math.min(last,
+            index.lineAt(from + (to - from) / (parts - i + 1))));
+        if (cut > from) {
+          split.add(new Sentences(filename, from, cut, index));
+          from = cut;
+        }
+      }
+      return split;
+    }
 
-    String filename;
+    /** Returns the sentences <code>from</code> (inclusive) to
+     *  <code>to</code> (exclusive) of this collection, as a collection of
+     *  their own.
+     */
+    public Sentences range(int from, int to) {
+      if (isCompressed()) {
+        throw new UnsupportedOperationException("Cannot index " + filename);
+      }
+      int first = firstLine();
+      if (from < 0 || to < from || first + to > lastLine()) {
+        throw new IndexOutOfBoundsException("range " + from + " to " + to);
+      }
+      LineIndex index = index();
+      return new Sentences(filename, index.start(first + from),
+          index.start(first + to), index);
+    }
 
-    /** Returns an iterator over the sentences in this collection. 
+    /** Returns sentence <code>i</code> of this collection, reading only its
+     *  line.
      */
-    public Iterator<List<String>> iterator() {
-      try {
-        BufferedReader reader = new BufferedReader(new FileReader(filename));
-        return new SentenceIterator(reader);
-      } catch (FileNotFoundException e) {
-        throw new RuntimeException("File not found: " + filename);
+    public List<String> get(int i) {
+      if (isCompressed()) {
+        Iterator<List<String>> sentences = iterator();
+        for (int k = 0; k < i && sentences.hasNext(); k++) {
+          sentences.next();
+        }
+        if (i < 0 || !sentences.hasNext()) {
+          throw new IndexOutOfBoundsException("sentence " + i);
+        }
+        return sentences.next();
       }
+      int line = firstLine() + i;
+      if (i < 0 || line >= lastLine()) {
+        throw new IndexOutOfBoundsException("sentence " + i);
+      }
+      LineIndex index = index();
+      return read(index.start(line), index.start(line + 1) - index.start(line))
+          .next();
+    }
+
+    /** Returns the length in bytes of the part of the file covered by this
+     *  collection.
+     */
+    public long byteLength() {
+      return (end < 0) ? new File(filename).length() - start : end - start;
     }
 
-    /** Returns the numbers of sentences in this collection.  (This
-     *  iterates through all sentences, so it may be slow.)
+    /** Returns the numbers of sentences in this collection, from the line
+     *  index of the file (which is built if needed).
      */
     public int size() {
-      int size = 0;
-      Iterator<List<String>> i = iterator();
-      while (i.hasNext()) {
-        size++;
-        i.next();
+      if (isCompressed()) {
+        int size = 0;
+        Iterator<List<String>> i = iterator();
+        while (i.hasNext()) {
+          size++;
+          i.next();
+        }
+        return size;
       }
-      return size;
+      return lastLine() - firstLine();
     }
 
     /** Constructs a new sentence collection from the name of the file
      *  containing the sentences.
      */
     public Sentences(String filename) {
+      this(filename, 0, -1);
+    }
+
+    Sentences(String filename, long start, long end) {
+      this(filename, start, end, null);
+    }
+
+    Sentences(String filename, long start, long end, LineIndex index) {
       this.filename = filename;
-      iterator();                       // causes error to be thrown if file not readable
+      this.start = start;
+      this.end = end;
+      this.index = index;
+      if (!new File(filename).canRead()) {
+        throw new RuntimeException("File not found: " + filename);
+      }
     }
 
     /** Takes the name of a file containing sentences and returns a new
-     *  <code>SentenceCollection</code> backed by that file.
+     *  <code>SentenceCollection</code> backed by that file, or a
+     *  <code>BinarySentences</code> if it is a binary corpus.
      */
     public static class Reader {
       public static Collection<List<String>> readSentences(String filename)
-        throws FileNotFoundException {
+        throws IOException {
+        if (filename.endsWith(BinarySentences.EXTENSION)) {
+          return new BinarySentences(filename);
+        }
         return new Sentences(filename);
       }
     }
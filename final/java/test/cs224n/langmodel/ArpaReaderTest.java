@@ -0,0 +1,92 @@
+package cs224n.langmodel;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads ARPA files whose highest order n-grams carry a backoff weight,
+ * which has nothing to back off from and must be ignored: the small
+ * fixture top-order-backoff.arpa, checked against probabilities worked out
+ * by hand, and a trigram model with 40000 words, whose ids do not fit in
+ * the words of a 4-gram key. Run from final/java with assertions off or on:
+ * <pre>
+ *   javac -d classes $(find src test -name '*.java')
+ *   java -cp classes cs224n.langmodel.ArpaReaderTest
+ * </pre>
+ */
+public class ArpaReaderTest {
+
+  private static final String FIXTURE =
+      "test/cs224n/langmodel/top-order-backoff.arpa";
+  private static final int WORDS = 40000;
+
+  public static void main(String[] args) throws Exception {
+    BinaryNGramModel model = read(FIXTURE);
+    checkLog10(model, -0.1, NGram.START, "the", "cat");
+    checkLog10(model, -0.2, "the", "cat", NGram.STOP);
+    // Unknown trigram prefix: bow(the) + p(the).
+    checkLog10(model, -0.2 - 0.6, "cat", "the", "the");
+    // Known trigram prefix: bow(<s> the) + bow(the) + p(</s>).
+    checkLog10(model, -0.1 - 0.2 - 0.5, NGram.START, "the", NGram.STOP);
+
+    File large = File.createTempFile("large-", ".arpa");
+    try {
+      writeLarge(large);
+      model = read(large.getPath());
+      String last = "w" + (WORDS - 1);
+      checkLog10(model, -0.1, last, last, last);
+    } finally {
+      large.delete();
+    }
+    System.out.println("ArpaReaderTest: ok");
+  }
+
+  private static BinaryNGramModel read(String arpaFile) throws IOException {
+    File binary = File.createTempFile("arpa-", ".bin");
+    try {
+      return ArpaReader.read(arpaFile, binary.getPath());
+    } finally {
+      // The mappings stay valid after the file is deleted.
+      binary.delete();
+    }
+  }
+
+  /**
+   * A trigram model over w0 ... w39999 whose only trigram, made of the
+   * word with the highest id, has a backoff weight.
+   */
+  private static void writeLarge(File file) throws IOException {
+    Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    try {
+      String last = "w" + (WORDS - 1);
+      out.write("\\data\\\nngram 1=" + (WORDS + 2)
+          + "\nngram 2=1\nngram 3=1\n\n\\1-grams:\n");
+      out.write("-99\t<s>\t-0.3\n-5\t</s>\n");
+      for (int i = 0; i < WORDS; i++) {
+        out.write("-5\tw" + i + "\t-0.2\n");
+      }
+      out.write("\n\\2-grams:\n-0.3\t" + last + " " + last + "\t-0.1\n");
+      out.write("\n\\3-grams:\n-0.1\t" + last + " " + last + " " + last
+          + "\t-0.4\n\n\\end\\\n");
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void checkLog10(NGram model, double expected,
+      String... words) {
+    List<String> prefix = Arrays.asList(words).subList(0, words.length - 1);
+    String word = words[words.length - 1];
+    double actual = Math.log10(model.getWordProbability(prefix, word));
+    if (Math.abs(actual - expected) > 1e-9) {
+      throw new AssertionError("log10 p(" + word + " | " + prefix + "): "
+          + expected + " expected, " + actual + " found");
+    }
+  }
+
+}
@@ -0,0 +1,99 @@
+package cs224n.langmodel;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Trains a composite model twice and checks that each component ends up
+ * with the counts of both corpora once, as if it had been trained on its
+ * own, although the components shared the counts of the first training.
+ * Run with assertions off or on:
+ * <pre>
+ *   javac -d classes $(find src test -name '*.java')
+ *   java -cp classes cs224n.langmodel.NGramCountStoreTest
+ * </pre>
+ */
+public class NGramCountStoreTest {
+
+  public static void main(String[] args) throws Exception {
+    List<List<String>> first = sentences("the cat sat", "the dog sat",
+        "a cat ran");
+    List<List<String>> second = sentences("the cat ran", "a dog sat down");
+
+    List<NGram> components = new ArrayList<NGram>();
+    components.add(new SmoothNGramModel(2));
+    components.add(new ZipfSmoothNGramModel(2));
+    components.add(new SmoothNGramModel(3));
+    ConstantEMInterpolatedNGramModel composite =
+        new ConstantEMInterpolatedNGramModel(components, 3);
+    composite.train(first);
+    check(counts(components.get(0)) == counts(components.get(1)),
+        "the first training shares the bigram counts");
+    composite.train(second);
+
+    for (NGram component : components) {
+      EmpiricalNGramModel expected = new EmpiricalNGramModel(component.getN());
+      expected.train(first);
+      expected.train(second);
+      checkSameCounts(expected, counts(component));
+    }
+    check(counts(components.get(0)) != counts(components.get(1)),
+        "the second training gives each component its own counts");
+
+    boolean rejected = false;
+    NGramCountStore store = NGramCountStore.open(first, 2);
+    try {
+      EmpiricalNGramModel counts = store.getCounts(2);
+      try {
+        counts.train(second);
+      } catch (IllegalStateException e) {
+        rejected = true;
+      }
+    } finally {
+      store.release();
+    }
+    check(rejected, "the counts of a store cannot be trained in place");
+    System.out.println("NGramCountStoreTest: ok");
+  }
+
+  private static List<List<String>> sentences(String... lines) {
+    List<List<String>> sentences = new ArrayList<List<String>>();
+    for (String line : lines) {
+      sentences.add(Arrays.asList(line.split(" ")));
+    }
+    return sentences;
+  }
+
+  private static EmpiricalNGramModel counts(NGram component) throws Exception {
+    Field field = component.getClass().getDeclaredField("empiricalNGram");
+    field.setAccessible(true);
+    return (EmpiricalNGramModel) field.get(component);
+  }
+
+  private static void checkSameCounts(EmpiricalNGramModel expected,
+      EmpiricalNGramModel actual) {
+    check(expected.getN() == actual.getN(), "order");
+    check(expected.getCounts().size() == actual.getCounts().size(),
+        expected.getN() + "-gram count: " + expected.getCounts().size()
+            + " expected, " + actual.getCounts().size() + " found");
+    check(expected.knownPrefixes().equals(actual.knownPrefixes()),
+        expected.getN() + "-gram prefixes");
+    for (List<String> prefix : expected.knownPrefixes()) {
+      for (String word : expected.knownWords(prefix)) {
+        check(expected.getCount(prefix, word) == actual.getCount(prefix, word),
+            "count of " + prefix + " " + word + ": "
+                + expected.getCount(prefix, word) + " expected, "
+                + actual.getCount(prefix, word) + " found");
+      }
+    }
+  }
+
+  private static void check(boolean condition, String message) {
+    if (!condition) {
+      throw new AssertionError(message);
+    }
+  }
+
+}
@@ -3,6 +3,8 @@ package cs224n.assignments;
 import java.util.*;
 import java.io.*;
 
+import cs224n.util.TokenInterner;
+
 /**
  * Represents a Jumble text problem.  Each problem has a correct sentence, 
  * and a list of jumbled sentences. <p/>
@@ -108,7 +110,7 @@ public class JumbleProblem {
         List<String> sentence = new ArrayList<String>();
         for (int i = 0; i < words.length; i++) {
           String word = words[i];
-          sentence.add(word.toLowerCase());
+          sentence.add(TokenInterner.intern(word.toLowerCase()));
         }
         jumbleList.add(sentence);
       }
@@ -141,7 +143,7 @@ public class JumbleProblem {
         List<String> sentence = new ArrayList<String>();
         for (int i = 0; i < words.length; i++) {
           String word = words[i];
-          sentence.add(word.toLowerCase());
+          sentence.add(TokenInterner.intern(word.toLowerCase()));
         }
         correctSentences.add(sentence);
       }
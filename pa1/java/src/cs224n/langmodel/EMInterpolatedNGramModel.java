@@ -1,14 +1,14 @@
 package cs224n.langmodel;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-
-import cs224n.util.Counter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class EMInterpolatedNGramModel extends NGram implements TunableModel {
 
@@ -17,7 +17,10 @@ public class EMInterpolatedNGramModel extends NGram implements TunableModel {
   private List<NGram> models;
   private NGram lastModel;
   private boolean modelTuned;
-  private Map<List<String>, List<Double>> weights;
+  // Index of each tuned prefix in weights, which holds the weights of the
+  // models for prefix p at [p * models.size(), (p + 1) * models.size()).
+  private Map<List<String>, Integer> prefixIndex;
+  private double[] weights;
   private EmpiricalNGramModel ngram;
   private NGram backupModel;
 
@@ -31,7 +34,8 @@ public class EMInterpolatedNGramModel extends NGram implements TunableModel {
     // The last NGram should be of size exactly n.
     assert lastModel.getN() == n;
     modelTuned = false;
-    weights = new HashMap<List<String>, List<Double>>();
+    prefixIndex = new HashMap<List<String>, Integer>();
+    weights = new double[0];
     ngram = new EmpiricalNGramModel(n);
     this.backupModel = backupModel;
   }
@@ -44,93 +48,115 @@ public class EMInterpolatedNGramModel extends NGram implements TunableModel {
       ((TunableModel) backupModel).tune(trainingSentences);
     }
 
-    for (List<String> prefix : ngram.knownPrefixes()) {
-      Set<String> wordSet = ngram.knownWords(prefix);
-
-      // Initialize weights.
-      List<Double> weight = new ArrayList<Double>();
-      weight.addAll(Collections.nCopies(models.size(), 1.0 / models.size()));
-      weights.put(prefix, weight);
-
-      // Initialize intermediate probabilities;
-      // P(word, Y)
-      Map<String, List<Double>> jointProbability = new HashMap<String, List<Double>>();
-      // P(Y | word)
-      Map<String, List<Double>> reverseConditional = new HashMap<String, List<Double>>();
-      for (String word : wordSet) {
-        jointProbability.put(word, new ArrayList<Double>());
-        jointProbability.get(word).addAll(
-            Collections.nCopies(models.size(), 0.0));
-        reverseConditional.put(word, new ArrayList<Double>());
-        reverseConditional.get(word).addAll(
-            Collections.nCopies(models.size(), 0.0));
-      }
+    // The prefixes are independent: their EMs run in parallel.
+    List<List<String>> prefixes = new ArrayList<List<String>>(ngram.knownPrefixes());
+    prefixIndex = new HashMap<List<String>, Integer>();
+    for (int p = 0; p < prefixes.size(); p++) {
+      prefixIndex.put(prefixes.get(p), p);
+    }
+    weights = new double[prefixes.size() * models.size()];
+    ForkJoinPool.commonPool().invoke(new TunePrefixes(prefixes, 0, prefixes.size()));
+  }
 
-      // Initialize the fractional counts;
-      // E[N(word, Y)]
-      List<Counter<String>> fractionalCount = new ArrayList<Counter<String>>();
-      for (int i = 0; i < models.size(); i++) {
-        fractionalCount.add(new Counter<String>());
+  /**
+   * Runs the EM of one prefix, storing its weights at weights[offset...].
+   * The probabilities of its words under each model do not change between
+   * iterations, so they are computed once.
+   */
+  private void tunePrefix(List<String> prefix, int offset) {
+    Set<String> wordSet = ngram.knownWords(prefix);
+    int numModels = models.size();
+
+    // P(word | Y), word by word, and the count of each word.
+    double[] probability = new double[wordSet.size() * numModels];
+    double[] count = new double[wordSet.size()];
+    int w = 0;
+    for (String word : wordSet) {
+      for (int i = 0; i < numModels; i++) {
+        probability[w * numModels + i] = models.get(i).getWordProbability(
+            models.get(i).chopPrefix(prefix), word);
       }
-      
-      double previousEntropy = Double.NEGATIVE_INFINITY;
-      for (int iteration = 0; iteration < NUMBER_ITERATIONS; iteration++) {
-        // E-Step 1- Compute P(word, Y) = P(word|Y) * P(Y)
-        for (String word : wordSet) {
-          for (int i = 0; i < models.size(); i++) {
-            jointProbability.get(word).set(
-                i,
-                models.get(i).getWordProbability(
-                    models.get(i).chopPrefix(prefix), word)
-                    * weight.get(i));
-          }
-        }
+      count[w++] = ngram.getCount(prefix, word);
+    }
+    double prefixCount = ngram.getPrefixCounter(prefix).totalCount();
 
-        // E-step 2- Compute P(Y | word) by normalizing per word.
-        // Compute entropy at the same time: H = SUM(Count(word) * P(word))
-        double entropy = 0.0;
-        for (String word : wordSet) {
-          double total = 0.0;
-          for (int i = 0; i < models.size(); i++) {
-            total += jointProbability.get(word).get(i);
-          }
-          for (int i = 0; i < models.size(); i++) {
-            reverseConditional.get(word).set(i,
-                jointProbability.get(word).get(i) / total);
-          }
-          entropy += ngram.getCount(prefix, word) * Math.log(total);
+    // Initialize weights.
+    double[] weight = new double[numModels];
+    for (int i = 0; i < numModels; i++) {
+      weight[i] = 1.0 / numModels;
+    }
+    // E[N(Y)], the fractional counts summed over the words.
+    double[] fractionalCount = new double[numModels];
+    double[] jointProbability = new double[numModels];
+
+    double previousEntropy = Double.NEGATIVE_INFINITY;
+    for (int iteration = 0; iteration < NUMBER_ITERATIONS; iteration++) {
+      // E-step: P(word, Y) = P(word|Y) * P(Y), normalized per word into
+      // P(Y | word), which distributes the count of the word. Compute
+      // entropy at the same time: H = SUM(Count(word) * P(word))
+      double entropy = 0.0;
+      Arrays.fill(fractionalCount, 0.0);
+      for (w = 0; w < count.length; w++) {
+        double total = 0.0;
+        for (int i = 0; i < numModels; i++) {
+          jointProbability[i] = probability[w * numModels + i] * weight[i];
+          total += jointProbability[i];
         }
-
-        // E-step 3- Distribute observed count according to P(Y| word)
-        for (String word : wordSet) {
-          for (int i = 0; i < models.size(); i++) {
-            fractionalCount.get(i).setCount(
-                word,
-                ngram.getCount(prefix, word)
-                    * reverseConditional.get(word).get(i));
-          }
+        for (int i = 0; i < numModels; i++) {
+          fractionalCount[i] += count[w] * (jointProbability[i] / total);
         }
+        entropy += count[w] * Math.log(total);
+      }
 
-        // M-step- Sum the above per model, divide by total word count.
-        // that is the new P(Y).
-        for (int i = 0; i < models.size(); i++) {
-          weight.set(i, fractionalCount.get(i).totalCount()
-              / ngram.getPrefixCounter(prefix).totalCount());
-        }
+      // M-step- Divide by total word count, that is the new P(Y).
+      for (int i = 0; i < numModels; i++) {
+        weight[i] = fractionalCount[i] / prefixCount;
+      }
+
+      checkWeights(weight);
+
+      if (entropy - previousEntropy < MINIMUM_ENTROPY_STEP) {
+        break;
+      }
+      previousEntropy = entropy;
+    }
+    System.arraycopy(weight, 0, weights, offset, numModels);
+  }
+
+  /**
+   * Tunes a range of prefixes, splitting it in halves while it is large.
+   */
+  private class TunePrefixes extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+    private static final int MIN_PREFIXES = 64;
+    private final List<List<String>> prefixes;
+    private final int from;
+    private final int to;
+
+    TunePrefixes(List<List<String>> prefixes, int from, int to) {
+      this.prefixes = prefixes;
+      this.from = from;
+      this.to = to;
+    }
 
-        checkWeights(weight);
-        
-        if (entropy - previousEntropy < MINIMUM_ENTROPY_STEP) {
-          break;
+    @Override
+    protected void compute() {
+      if (to - from <= MIN_PREFIXES) {
+        for (int p = from; p < to; p++) {
+          tunePrefix(prefixes.get(p), p * models.size());
         }
-        previousEntropy = entropy;
+      } else {
+        int middle = (from + to) >>> 1;
+        invokeAll(new TunePrefixes(prefixes, from, middle),
+            new TunePrefixes(prefixes, middle, to));
       }
     }
   }
 
-  private void checkWeights(List<Double> weightList) {
+  private void checkWeights(double[] weightList) {
     double sum = 0.0;
-    for (Double d : weightList) {
+    for (double d : weightList) {
       assert d > -1E-6;
       assert d < 1 + 1E-6;
       sum += d;
@@ -149,15 +175,17 @@ public class EMInterpolatedNGramModel extends NGram implements TunableModel {
   @Override
   public double getWordProbability(List<String> prefix, String word) {
     assert modelTuned == true;
-    if (!weights.containsKey(prefix)) {
+    Integer index = prefixIndex.get(prefix);
+    if (index == null) {
       return backupModel.getWordProbability(prefix, word);
     }
 
     double probability = 0.0;
+    int offset = index * models.size();
     for (int i = 0; i < models.size(); i++) {
       probability += models.get(i).getWordProbability(
           models.get(i).chopPrefix(prefix), word)
-          * weights.get(prefix).get(i);
+          * weights[offset + i];
     }
     return probability;
   }
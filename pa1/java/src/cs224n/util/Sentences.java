@@ -40,7 +40,7 @@ import java.util.*;
           for (int i = 0; i < words.length; i++) {
             String word = words[i];
             if (!word.equals("")) {
-              sentence.add(word.toLowerCase());
+              sentence.add(TokenInterner.intern(word.toLowerCase()));
             }
           }
           return sentence;
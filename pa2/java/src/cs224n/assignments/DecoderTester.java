@@ -119,6 +119,13 @@ public class DecoderTester {
     options.put("-lmweight",    "0.6");
     options.put("-transweight", "0.4");
     options.put("-lengthweight","1.0");
+    options.put("-decoder",     "greedy"); // or "stack"
+    options.put("-parallel",    "false"); // search each neighborhood in parallel?
+    options.put("-beam",        "50");    // stack decoder beam size
+    options.put("-threshold",   "10");    // stack decoder pruning threshold
+    options.put("-threads",     "1");     // sentences decoded at the same time
+    options.put("-timeout",     "0");     // milliseconds per sentence, 0 for none
+    options.put("-options",     "");      // file caching the translation options
 
     // let command-line options override defaults .........................
     options.putAll(CommandLineUtils.simpleCommandLineParser(args));
@@ -163,13 +170,74 @@ public class DecoderTester {
     String dataPath  = options.get("-path");
     String zfertsFileName = dataPath + "/../java/" + ZFERTS + "." + GetLanguageExtension(languages.getSecond());
 
+    // what the translation options depend on
+    String fingerprint = languages.getFirst() + "-" + languages.getSecond()
+      + " " + wordaligner.getClass().getName() + " " + reverse_wordaligner.getClass().getName()
+      + " " + waTrainingSentencePairs.size() + " sentence pairs";
+    TranslationOptions translationOptions = LoadTranslationOptions(options.get("-options"), fingerprint, wordaligner, reverse_wordaligner);
+
     System.out.println("**********\nCreating / Testing Decoder ...");
-    Decoder decoder = new GreedyDecoder(langmodel, wordaligner, reverse_wordaligner, lmweight, transweight, lengthweight, zfertsFileName);
-    test(decoder, testSentencePairs, languages);
+    // one decoder per thread: they keep state while decoding, but share
+    // the models and the translation options
+    List<Decoder> decoders = new ArrayList<Decoder>();
+    for (int i = 0; i < Integer.parseInt(options.get("-threads")); i++) {
+      if ("stack".equals(options.get("-decoder"))) {
+        StackDecoder decoder = new StackDecoder(langmodel, wordaligner, reverse_wordaligner, lmweight, transweight, lengthweight, zfertsFileName, translationOptions);
+        decoder.setBeamSize(Integer.parseInt(options.get("-beam")));
+        decoder.setThreshold(Double.parseDouble(options.get("-threshold")));
+        decoders.add(decoder);
+      } else {
+        GreedyDecoder decoder = new GreedyDecoder(langmodel, wordaligner, reverse_wordaligner, lmweight, transweight, lengthweight, zfertsFileName, translationOptions);
+        decoder.setParallel("true".equals(options.get("-parallel")));
+        decoders.add(decoder);
+      }
+    }
+    test(decoders, testSentencePairs, languages, Long.parseLong(options.get("-timeout")), options.get("-output"));
     System.out.println("...done\n**********\n");
   }
 
 
+  /* Builds the translation options of the word aligners, or reads them
+   * from fileName if it holds options with the same fingerprint; otherwise
+   * (and if fileName is not empty) saves them there for the next run.  The
+   * fingerprint should identify how the word aligners were trained.
+   */
+  private static TranslationOptions LoadTranslationOptions(String fileName, String fingerprint, WordAligner wordaligner, WordAligner reverse_wordaligner) throws IOException{
+    long start = System.currentTimeMillis();
+    if (fileName.length() > 0 && new File(fileName).exists()) {
+      System.out.print("Reading translation options [" + fileName + "] ...");
+      TranslationOptions translationOptions = null;
+      ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+      try {
+        translationOptions = (TranslationOptions) in.readObject();
+      } catch (InvalidClassException e) {
+        // saved by another version of TranslationOptions
+      } catch (ClassNotFoundException e) {
+        throw new IOException(e);
+      } finally {
+        in.close();
+      }
+      if (translationOptions != null && fingerprint.equals(translationOptions.getFingerprint())) {
+        System.out.println(" Done! " + (System.currentTimeMillis() - start) + "ms ");
+        return translationOptions;
+      }
+      System.out.println(" built for another run, rebuilding");
+      start = System.currentTimeMillis();
+    }
+    System.out.print("Building translation options ...");
+    TranslationOptions translationOptions = new TranslationOptions(wordaligner, reverse_wordaligner, fingerprint);
+    System.out.println(" Done! " + (System.currentTimeMillis() - start) + "ms ");
+    if (fileName.length() > 0) {
+      System.out.print("Saving translation options [" + fileName + "] ...");
+      ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+      out.writeObject(translationOptions);
+      out.close();
+      System.out.println(" Done!");
+    }
+    return translationOptions;
+  }
+
+
   /*  This will run your decoder on the test sentences and compare
     * the output.  It used the EditDistance, which is not a very good measure
     * of the quality of translations - a better choice would have been the BLEU
@@ -180,19 +248,62 @@ public class DecoderTester {
     * (2008) now there's BLEU as well.
     */
 
-  private static void test(Decoder decoder, List<SentencePair> sentencePairs, Pair<String, String> languages){
+  private static void test(List<? extends Decoder> decoders, List<SentencePair> sentencePairs, Pair<String, String> languages, long timeout, String outputFile) throws IOException{
+    List<List<String>> sourceSentences = new ArrayList<List<String>>();
+    for(SentencePair sentPair : sentencePairs){
+      sourceSentences.add(sentPair.getFrenchWords());
+    }
+    TestCollector collector = new TestCollector(sentencePairs, languages,
+        outputFile == null ? null : new BufferedWriter(new FileWriter(outputFile)));
+    BatchDecoder batch = new BatchDecoder(decoders, 2 * decoders.size());
+    BatchDecoder.Result result = batch.decode(sourceSentences, timeout, collector);
+    if (collector.output != null) {
+      collector.output.close();
+    }
+
+    Bleu bleu = collector.bleu;
+    System.out.println("\nWER: "+(collector.totalDistance/collector.totalWords));
+    System.out.println("\nBLEU: "+bleu.score());
+    System.out.print("--> log Ngram Scores: ");
+    double[] scores = bleu.rawNGramScores();
+    for (int i = 0; i < scores.length; i++) {
+      double score = scores[i];
+      System.out.print(score);
+      if (i!=scores.length-1) System.out.print("/");
+    }
+    System.out.println();
+    System.out.println("--> BP: "+bleu.BP()+" (refLen="+bleu.refLen+",hypLen="+bleu.hypLen+")");
+    System.out.println("--> decoded "+result);
+  }
+
+  /* Scores the translations in the order of the test sentences, printing
+   * each with what the decoder printed for it, and writes them one per
+   * line to the output file if there is one.
+   */
+  private static class TestCollector implements BatchDecoder.Collector {
+    final List<SentencePair> sentencePairs;
+    final Pair<String, String> languages;
+    final Writer output;
+    final Bleu bleu = new Bleu();
     double totalDistance = 0;
     double totalWords = 0;
-    Bleu bleu = new Bleu();
     int refLen = 0;
     int hypLen = 0;
-    for(SentencePair sentPair : sentencePairs){
-      List<String> sourceSentence = sentPair.getFrenchWords();
-      List<String> actualTranslation = sentPair.getEnglishWords();
+
+    TestCollector(List<SentencePair> sentencePairs, Pair<String, String> languages, Writer output){
+      this.sentencePairs = sentencePairs;
+      this.languages = languages;
+      this.output = output;
+    }
+
+    public void collect(BatchDecoder.Translation translation){
+      List<String> sourceSentence = translation.source;
+      List<String> actualTranslation = sentencePairs.get(translation.index).getEnglishWords();
       System.out.println(languages.getFirst()+" string:\t"+SentenceToString(sourceSentence)+
                          "\nactual "+languages.getSecond()+" string:\t"+SentenceToString(actualTranslation));
+      System.out.print(translation.log);
 
-      List<String> guessedTranslation = decoder.Decode(sourceSentence);
+      List<String> guessedTranslation = translation.target;
       double dist = EditDistance.getDistance(guessedTranslation,actualTranslation);
       String[] guessed = (String[])guessedTranslation.toArray(new String[guessedTranslation.size()]);
       String[] ref = (String[])actualTranslation.toArray(new String[actualTranslation.size()]);
@@ -210,21 +321,17 @@ public class DecoderTester {
         throw new RuntimeException("ERROR");
       }
 
-
       totalDistance += dist;
       totalWords += actualTranslation.size();
+      if (output != null) {
+        try {
+          output.write(SentenceToString(guessedTranslation).trim());
+          output.write("\n");
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
     }
-    System.out.println("\nWER: "+(totalDistance/totalWords));
-    System.out.println("\nBLEU: "+bleu.score());
-    System.out.print("--> log Ngram Scores: ");
-    double[] scores = bleu.rawNGramScores();
-    for (int i = 0; i < scores.length; i++) {
-      double score = scores[i];
-      System.out.print(score);
-      if (i!=scores.length-1) System.out.print("/");
-    }
-    System.out.println();
-    System.out.println("--> BP: "+bleu.BP()+" (refLen="+bleu.refLen+",hypLen="+bleu.hypLen+")");
   }
 
   private static String SentenceToString(List<String> sentence){
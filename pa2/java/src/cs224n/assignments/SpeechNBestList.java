@@ -3,6 +3,8 @@ package cs224n.assignments;
 import java.util.*;
 import java.io.*;
 
+import cs224n.util.TokenInterner;
+
 /**
  * @author Dan Klein
  */
@@ -124,7 +126,7 @@ class SpeechNBestList {
         List<String> sentence = new ArrayList<String>();
         for (int i = 0; i < words.length; i++) {
           String word = words[i];
-          sentence.add(word.toLowerCase());
+          sentence.add(TokenInterner.intern(word.toLowerCase()));
         }
         sentenceList.add(sentence);
       }
@@ -158,7 +160,7 @@ class SpeechNBestList {
         List<String> sentence = new ArrayList<String>();
         for (int i = 0; i < words.length - 1; i++) {
           String word = words[i];
-          sentence.add(word.toLowerCase());
+          sentence.add(TokenInterner.intern(word.toLowerCase()));
         }
         String idToken = words[words.length - 1].toLowerCase();
         String sentenceID = idToken.substring(1, idToken.length() - 1);
@@ -0,0 +1,121 @@
+package cs224n.decoder;
+
+import cs224n.util.*;
+
+import java.util.Arrays;
+
+
+/* Alignment of a hypothesis: the target position of each source word (-1
+ * for NULL), and the number of source words aligned to each target
+ * position.  It is never changed once built; the edits return a new one,
+ * so copies of a hypothesis share it until they change it, and an edit
+ * only costs a copy of the array.
+ */
+
+class ArrayAlignment {
+  /* target of a source word that has not been aligned yet */
+  public static final int UNALIGNED = -999;
+
+  private final int[] targets;    // per source position
+  private final int[] fertility;  // per target position
+  private final int nullFertility;
+
+  public ArrayAlignment(int sourceLength){
+    targets = new int[sourceLength];
+    Arrays.fill(targets, UNALIGNED);
+    fertility = new int[0];
+    nullFertility = 0;
+  }
+
+  private ArrayAlignment(int[] targets){
+    this.targets = targets;
+    int length = 0;
+    for(int t : targets){
+      length = Math.max(length, t + 1);
+    }
+    fertility = new int[length];
+    int nulls = 0;
+    for(int t : targets){
+      if(t >= 0) fertility[t]++;
+      else if(t == -1) nulls++;
+    }
+    nullFertility = nulls;
+  }
+
+  public int getAlignedTarget(int sourcePosition){
+    if(targets[sourcePosition] == UNALIGNED){
+      System.err.println("nothing aligned with "+sourcePosition);
+    }
+    return targets[sourcePosition];
+  }
+
+  /* number of source words aligned to the target position, or to NULL if -1 */
+  public int getFertility(int targetPosition){
+    if(targetPosition == -1) return nullFertility;
+    return (targetPosition >= 0 && targetPosition < fertility.length) ? fertility[targetPosition] : 0;
+  }
+
+  /* the source word aligned to the target position instead of its current one */
+  public ArrayAlignment align(int targetPosition, int sourcePosition){
+    int[] newTargets = targets.clone();
+    newTargets[sourcePosition] = targetPosition;
+    return new ArrayAlignment(newTargets);
+  }
+
+  /* unaligns the source word, if it is aligned to the target position */
+  public ArrayAlignment unalign(int targetPosition, int sourcePosition){
+    if(targets[sourcePosition] != targetPosition) return this;
+    return align(UNALIGNED, sourcePosition);
+  }
+
+  /* for a target word inserted at the position */
+  public ArrayAlignment insertTarget(int targetPosition){
+    int[] newTargets = targets.clone();
+    for(int j = 0; j < newTargets.length; j++){
+      if(newTargets[j] >= targetPosition) newTargets[j]++;
+    }
+    return new ArrayAlignment(newTargets);
+  }
+
+  /* for the target word at the position deleted: the source words aligned
+   * to it are aligned to changeto (after the deletion) instead */
+  public ArrayAlignment deleteTarget(int targetPosition, int changeto){
+    int[] newTargets = targets.clone();
+    for(int j = 0; j < newTargets.length; j++){
+      if(newTargets[j] == targetPosition) newTargets[j] = changeto;
+      else if(newTargets[j] > targetPosition) newTargets[j]--;
+    }
+    return new ArrayAlignment(newTargets);
+  }
+
+  /* for the target segments i1..i2 and j1..j2 (i2 < j1) swapped */
+  public ArrayAlignment swap(int i1, int i2, int j1, int j2){
+    int diff = (j2-j1) - (i2-i1);
+    int[] newTargets = targets.clone();
+    for(int j = 0; j < newTargets.length; j++){
+      int pos = newTargets[j];
+      if(pos < i1 || pos > j2) continue;
+      if(pos <= i2) newTargets[j] = pos+j2-i2;
+      else if(pos < j1) newTargets[j] = pos+diff;
+      else newTargets[j] = pos-j1+i1;
+    }
+    return new ArrayAlignment(newTargets);
+  }
+
+  /* as an Alignment, for WordAligner.getAlignmentProb */
+  public Alignment toAlignment(){
+    Alignment alignment = new Alignment();
+    for(int j = 0; j < targets.length; j++){
+      if(targets[j] != UNALIGNED) alignment.addAlignment(targets[j], j, true);
+    }
+    return alignment;
+  }
+
+  public String toString(){
+    StringBuilder sb = new StringBuilder();
+    for(int j = 0; j < targets.length; j++){
+      if(targets[j] != UNALIGNED) sb.append("(e" + targets[j] + ", f" + j + "); ");
+    }
+    return sb.toString();
+  }
+}
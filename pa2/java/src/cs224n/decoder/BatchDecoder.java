@@ -0,0 +1,310 @@
+package cs224n.decoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Translates a list of source sentences on a pool of worker threads. A
+ * feeder thread puts the indices of the sentences into a bounded queue,
+ * each worker takes them and decodes them with its own Decoder, and the
+ * calling thread hands the translations to a Collector in the order of the
+ * sentences. The output is thus the same as decoding the sentences one
+ * after another, whatever the number of workers.
+ * <p>
+ * Decoders keep state between calls, so each worker must be given its own;
+ * they may share their language and alignment models, which decoding only
+ * reads. What a decoder prints while decoding a sentence is kept with its
+ * translation instead of going to System.out.
+ */
+public class BatchDecoder {
+
+  private static final int DONE = -1;
+
+  private final List<? extends Decoder> decoders;
+  private final int capacity;
+
+  /**
+   * Receives the translations, in the order of the source sentences.
+   */
+  public interface Collector {
+    void collect(Translation translation);
+  }
+
+  /**
+   * The translation of one source sentence, and how it was obtained.
+   */
+  public static class Translation {
+    public final int index;
+    public final List<String> source;
+    public final List<String> target;
+    /** what the decoder printed while decoding */
+    public final String log;
+    public final long nanos;
+    /** whether the decoder ran out of time and returned its best so far */
+    public final boolean timedOut;
+    private final Throwable error;
+
+    Translation(int index, List<String> source, List<String> target,
+        String log, long nanos, boolean timedOut, Throwable error) {
+      this.index = index;
+      this.source = source;
+      this.target = target;
+      this.log = log;
+      this.nanos = nanos;
+      this.timedOut = timedOut;
+      this.error = error;
+    }
+  }
+
+  /**
+   * Throughput and per-sentence latencies of a batch, and the garbage
+   * collections the JVM ran meanwhile.
+   */
+  public static class Result {
+    public final int numSentences;
+    public final long numWords;
+    public final int numTimedOut;
+    public final long nanos;
+    public final long numCollections;
+    public final long collectionMillis;
+    private final long[] latencies;
+
+    Result(int numSentences, long numWords, int numTimedOut, long nanos,
+        long numCollections, long collectionMillis, long[] latencies) {
+      this.numSentences = numSentences;
+      this.numWords = numWords;
+      this.numTimedOut = numTimedOut;
+      this.nanos = nanos;
+      this.numCollections = numCollections;
+      this.collectionMillis = collectionMillis;
+      this.latencies = latencies.clone();
+      Arrays.sort(this.latencies);
+    }
+
+    public double sentencesPerSecond() {
+      return numSentences * 1e9 / Math.max(nanos, 1);
+    }
+
+    public double wordsPerSecond() {
+      return numWords * 1e9 / Math.max(nanos, 1);
+    }
+
+    /**
+     * The latency in seconds that a fraction p (0 to 1) of the sentences
+     * took at most (nearest rank).
+     */
+    public double latency(double p) {
+      if (latencies.length == 0) {
+        return 0.0;
+      }
+      int rank = (int) Math.ceil(p * latencies.length);
+      return latencies[Math.min(Math.max(rank, 1), latencies.length) - 1] / 1e9;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d sentences in %.1fs: %.3f sentences/s, %.1f"
+          + " source words/s; latency p50 %.2fs, p90 %.2fs, p99 %.2fs, max"
+          + " %.2fs; %d timed out; %d GCs in %.2fs", numSentences,
+          nanos / 1e9, sentencesPerSecond(), wordsPerSecond(), latency(0.5),
+          latency(0.9), latency(0.99), latency(1.0), numTimedOut,
+          numCollections, collectionMillis / 1e3);
+    }
+  }
+
+  /**
+   * The number of garbage collections so far and their total time in
+   * milliseconds, over all the collectors of the JVM.
+   */
+  private static long[] collections() {
+    long[] total = new long[2];
+    for (GarbageCollectorMXBean gc : ManagementFactory
+        .getGarbageCollectorMXBeans()) {
+      total[0] += Math.max(gc.getCollectionCount(), 0);
+      total[1] += Math.max(gc.getCollectionTime(), 0);
+    }
+    return total;
+  }
+
+  /**
+   * A batch decoder running one worker per decoder, with at most capacity
+   * sentences waiting for a worker.
+   */
+  public BatchDecoder(List<? extends Decoder> decoders, int capacity) {
+    if (decoders.isEmpty() || capacity < 1) {
+      throw new IllegalArgumentException("need a decoder and a capacity");
+    }
+    this.decoders = decoders;
+    this.capacity = capacity;
+  }
+
+  /**
+   * Translates the sentences, giving each at most timeout milliseconds
+   * (none if not positive), and returns once the collector has received
+   * all the translations. The timeout is checked between the search
+   * iterations of the decoder, so a sentence can run over it by one
+   * iteration. An exception or error thrown by a decoder is rethrown here
+   * (wrapped in a RuntimeException if checked), once the other decoders
+   * are done with the sentence they were translating. The decoders get
+   * their own output and timeout back before this returns.
+   */
+  public Result decode(final List<List<String>> sources, long timeout,
+      Collector collector) {
+    long start = System.nanoTime();
+    long[] startCollections = collections();
+    final BlockingQueue<Integer> queue = new ArrayBlockingQueue<Integer>(
+        capacity);
+    BlockingQueue<Translation> done = new LinkedBlockingQueue<Translation>();
+    Thread[] threads = new Thread[decoders.size() + 1];
+    for (int i = 0; i < decoders.size(); i++) {
+      threads[i] = new Thread(new Worker(decoders.get(i), timeout, sources,
+          queue, done), "decoder-" + i);
+    }
+    threads[decoders.size()] = new Thread(new Runnable() {
+      public void run() {
+        try {
+          for (int i = 0; i < sources.size(); i++) {
+            queue.put(i);
+          }
+          for (int i = 0; i < decoders.size(); i++) {
+            queue.put(DONE);
+          }
+        } catch (InterruptedException e) {
+          // decoding was abandoned
+        }
+      }
+    }, "decoder-feeder");
+    for (Thread thread : threads) {
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    long[] latencies = new long[sources.size()];
+    long numWords = 0;
+    int numTimedOut = 0;
+    Map<Integer, Translation> pending = new HashMap<Integer, Translation>();
+    int next = 0;
+    try {
+      while (next < sources.size()) {
+        Translation translation = done.take();
+        if (translation.error instanceof RuntimeException) {
+          throw (RuntimeException) translation.error;
+        } else if (translation.error instanceof Error) {
+          throw (Error) translation.error;
+        } else if (translation.error != null) {
+          throw new RuntimeException(translation.error);
+        }
+        pending.put(translation.index, translation);
+        while ((translation = pending.remove(next)) != null) {
+          latencies[next] = translation.nanos;
+          numWords += translation.source.size();
+          if (translation.timedOut) {
+            numTimedOut++;
+          }
+          collector.collect(translation);
+          next++;
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } finally {
+      if (next < sources.size()) {
+        for (Thread thread : threads) {
+          thread.interrupt();
+        }
+      }
+      join(threads);
+    }
+    long[] endCollections = collections();
+    return new Result(sources.size(), numWords, numTimedOut,
+        System.nanoTime() - start, endCollections[0] - startCollections[0],
+        endCollections[1] - startCollections[1], latencies);
+  }
+
+  /**
+   * Waits for the threads to end, keeping the interrupt status of the
+   * calling thread.
+   */
+  private static void join(Thread[] threads) {
+    boolean interrupted = false;
+    for (Thread thread : threads) {
+      while (thread.isAlive()) {
+        try {
+          thread.join();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Decodes the sentences whose indices it takes from the queue until it
+   * takes DONE. The decoder and the buffer its output goes to are used by
+   * this worker only, and the decoder gets its own output and timeout back
+   * when the worker ends.
+   */
+  private static class Worker implements Runnable {
+    private final Decoder decoder;
+    private final List<List<String>> sources;
+    private final BlockingQueue<Integer> queue;
+    private final BlockingQueue<Translation> done;
+    private final long timeout;
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+    Worker(Decoder decoder, long timeout, List<List<String>> sources,
+        BlockingQueue<Integer> queue, BlockingQueue<Translation> done) {
+      this.decoder = decoder;
+      this.sources = sources;
+      this.queue = queue;
+      this.done = done;
+      this.timeout = timeout;
+    }
+
+    public void run() {
+      PrintStream output = decoder.GetOutput();
+      long decoderTimeout = decoder.GetTimeout();
+      decoder.SetOutput(new PrintStream(log, true));
+      decoder.SetTimeout(timeout);
+      try {
+        int index;
+        while ((index = queue.take()) != DONE) {
+          List<String> source = sources.get(index);
+          log.reset();
+          long start = System.nanoTime();
+          List<String> target = null;
+          Throwable error = null;
+          try {
+            target = decoder.Decode(source);
+          } catch (Throwable e) {
+            // Posted whatever it is, or decode would wait for it forever.
+            error = e;
+          }
+          done.put(new Translation(index, source, target, log.toString(),
+              System.nanoTime() - start, decoder.TimedOut(), error));
+          if (error != null) {
+            return;
+          }
+        }
+      } catch (InterruptedException e) {
+        // decoding was abandoned
+      } finally {
+        decoder.SetOutput(output);
+        decoder.SetTimeout(decoderTimeout);
+      }
+    }
+  }
+
+}
@@ -4,8 +4,10 @@ import cs224n.util.*;
 import cs224n.wordaligner.*;
 import cs224n.langmodel.*;
 
+import java.util.HashSet;
 import java.util.Set;
 import java.util.List;
+import java.io.*;
 
 
 /**
@@ -25,18 +27,32 @@ public abstract class Decoder {
   protected WordAligner wordaligner;
   protected WordAligner reverse_wordaligner;
   protected double lmWeight, transWeight, lengthWeight;
-  protected CounterMap<String,String> mostLikelyTargetGivenSource;
-
-  public Decoder(LanguageModel langmodel, WordAligner wordaligner, WordAligner reverse_wordaligner, double lmWeight, double transWeight, double lengthWeight){
+  /* the translations considered for each source word; shared, read only */
+  protected TranslationOptions options;
+
+  /* where Decode reports its progress */
+  protected PrintStream out = System.out;
+  /* if positive, the milliseconds after which Decode stops searching and
+   * returns its best translation so far; timedOut tells if the last
+   * call did. */
+  protected long timeout = 0;
+  protected boolean timedOut = false;
+
+  /* options must have been built from the same word aligners */
+  public Decoder(LanguageModel langmodel, WordAligner wordaligner, WordAligner reverse_wordaligner, double lmWeight, double transWeight, double lengthWeight, TranslationOptions options){
     SetLanguageModel(langmodel);
     SetWordAlignmentModel(wordaligner);
     SetReverseWordAlignmentModel(reverse_wordaligner);
-    mostLikelyTargetGivenSource = GetMostLikely();
+    this.options = options;
     this.lmWeight = lmWeight;
     this.transWeight = transWeight;
     this.lengthWeight = lengthWeight;
   }
 
+  public Decoder(LanguageModel langmodel, WordAligner wordaligner, WordAligner reverse_wordaligner, double lmWeight, double transWeight, double lengthWeight){
+    this(langmodel, wordaligner, reverse_wordaligner, lmWeight, transWeight, lengthWeight, new TranslationOptions(wordaligner, reverse_wordaligner));
+  }
+
   public Decoder(LanguageModel langmodel, WordAligner wordaligner, WordAligner reverse_wordaligner){
     this(langmodel, wordaligner, reverse_wordaligner, 2.0, 1.0, 1.1);
   }
@@ -53,38 +69,48 @@ public abstract class Decoder {
     reverse_wordaligner = wa;
   }
 
-  
-  /*
-   * For each source word s, this method goes through all target words
-   * t, keeping the top N_MOST_LIKELY with values p(s|t).
+  public PrintStream GetOutput(){
+    return out;
+  }
+
+  public void SetOutput(PrintStream out){
+    this.out = out;
+  }
+
+  public long GetTimeout(){
+    return timeout;
+  }
+
+  public void SetTimeout(long milliseconds){
+    timeout = milliseconds;
+  }
+
+  public boolean TimedOut(){
+    return timedOut;
+  }
+
+
+  /* will open passed in file and return all the words
+   * (one per line) in it: the target words that can be inserted with
+   * zero fertility.
    */
-  private CounterMap<String,String> GetMostLikely(){
-    
-    CounterMap<String,String> probSourceGivenTarget = wordaligner.getProbSourceGivenTarget();
-    Set<String> sourceWords = probSourceGivenTarget.keySet();
-    
-    CounterMap<String,String> mostLikelyTargetGivenSource = new CounterMap<String,String>();
-
-    for(String sourceWord : sourceWords){
-      PriorityQueue<String> mostLikely = new PriorityQueue<String>();
-      Counter<String> probGivenTargetWords = probSourceGivenTarget.getCounter(sourceWord);
-      Set<String> targetWords = probGivenTargetWords.keySet();
-
-      for(String targetWord : targetWords){
-        mostLikely.add(targetWord, probGivenTargetWords.getCount(targetWord));
+  protected static Set<String> ReadZFerts(String filename){
+    Set<String> zferts = new HashSet<String>();
+    try{
+      System.out.println(filename);
+      BufferedReader br = new BufferedReader(new FileReader(filename));
+      String line = "";
+      while( (line = br.readLine()) != null){
+        zferts.add(line);
       }
-      
-      for(int i =0; i < N_MOST_LIKELY && mostLikely.hasNext(); i++){
-        double prob = mostLikely.getPriority();
-        String targetWord = mostLikely.next();
-        mostLikelyTargetGivenSource.setCount(sourceWord, targetWord, prob);
-      }
-
+      br.close();
     }
-
-      return mostLikelyTargetGivenSource;
+    catch(Exception e){
+      System.err.println("error reading from file: "+filename);
+    }
+    return zferts;
   }
-  
+
   /*
    * This method must be implemented but children classes.
    */
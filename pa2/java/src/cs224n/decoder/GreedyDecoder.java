@@ -4,10 +4,12 @@ import cs224n.util.*;
 import cs224n.wordaligner.*;
 import cs224n.langmodel.*;
 
+import java.util.ArrayList;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.List;
-import java.io.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 
 /**
@@ -34,74 +36,38 @@ public class GreedyDecoder extends Decoder {
   // stores the set of target words that can be inserted with zero fertility
   Set<String> zferts;
 
+  // whether Decode searches the neighborhood in parallel (searchNeighborhood)
+  private boolean parallel = false;
+
   public GreedyDecoder(LanguageModel lm, WordAligner wa, WordAligner rwa, 
                        double lmweight, double transweight, double lengthweight, String filename){
     super(lm,wa,rwa,lmweight,transweight,lengthweight);
-    populateZFert(filename);
+    zferts = ReadZFerts(filename);
   }
 
-  /* will open passed in file and add all the words
-   * (one per line) to the set.
-   */
-  private void populateZFert(String filename){
-    try{
-      System.out.println(filename);
-      zferts = new HashSet<String>();
-      BufferedReader br = new BufferedReader(new FileReader(filename));
-      String line = "";
-      while( (line = br.readLine()) != null){
-        zferts.add(line);
-      }
-      br.close();
-    }
-    catch(Exception e){
-      System.err.println("error reading from file: "+filename);
-    }
+  public GreedyDecoder(LanguageModel lm, WordAligner wa, WordAligner rwa, 
+                       double lmweight, double transweight, double lengthweight, String filename,
+                       TranslationOptions options){
+    super(lm,wa,rwa,lmweight,transweight,lengthweight,options);
+    zferts = ReadZFerts(filename);
   }
 
-
-  /*
-   * For each source word s, this method goes through all target words
-   * t, keeping the top N_MOST_LIKELY with values p(s|t).
+  /* In parallel mode each iteration of Decode evaluates all the
+   * neighbors of the current hypothesis, for all operators, as tasks on
+   * the common fork/join pool.  The decoded translations are the same as
+   * in serial mode.
    */
-  private CounterMap<String,String> GetMostLikelyInitialization(){
-
-    // Source: English
-    // Target: French
-
-    CounterMap<String,String> probSourceGivenTarget = reverse_wordaligner.getProbSourceGivenTarget();
-    Set<String> englishWords = probSourceGivenTarget.keySet(); //English
-
-    CounterMap<String,String> mostLikelyEnglishGivenFrench = new CounterMap<String,String>();
-    
-    for(String englishWord : englishWords){
-      PriorityQueue<String> mostLikely = new PriorityQueue<String>();
-      Counter<String> probGivenTargetWords = probSourceGivenTarget.getCounter(englishWord);
-      Set<String> frenchWords = probGivenTargetWords.keySet();
-
-      for(String frenchWord : frenchWords){
-        mostLikely.add(frenchWord, probGivenTargetWords.getCount(frenchWord));
-      }
-      
-      for(int i =0; i < N_MOST_LIKELY && mostLikely.hasNext(); i++){
-        double prob = mostLikely.getPriority();
-        String frenchWord = mostLikely.next();
-        mostLikelyEnglishGivenFrench.setCount(frenchWord, englishWord, prob);
-        //System.err.printf(" GMI: %s\t%s\t%e\n", frenchWord, englishWord, prob);
-      }
-    }
-
-    return mostLikelyEnglishGivenFrench;
+  public void setParallel(boolean parallel){
+    this.parallel = parallel;
   }
 
 
 
   private Hypothesis InitializeHypothesis(List<String> sourceSentence){
-    CounterMap<String,String> mostLikelyEnglishGivenFrench = GetMostLikelyInitialization();
     Hypothesis h = new Hypothesis(sourceSentence, langmodel,wordaligner,lmWeight,transWeight,lengthWeight);
     for(int i = 0; i < sourceSentence.size(); i++){
       //System.err.printf("  debugging M2? : sourceSentence.get(i)=%s\n",sourceSentence.get(i));
-      String targetWord = mostLikelyEnglishGivenFrench.getCounter(sourceSentence.get(i)).argMax();
+      String targetWord = options.getInitialTranslation(sourceSentence.get(i));
       //System.err.printf("  debugging M2? : targetWord = %s\n", targetWord);
       if(targetWord!= null && !targetWord.equals(WordAligner.NULL_WORD)) {
         h.addAlignment(h.getTargetSentSize(),i,true);
@@ -174,14 +140,14 @@ public class GreedyDecoder extends Decoder {
     String max_jtarget = null;
     
     for(int i = 0; i < sourceSentence.size(); i++){
-      Set<String> itargetWords = mostLikelyTargetGivenSource.getCounter(sourceSentence.get(i)).keySet();
+      List<String> itargetWords = options.getCandidates(sourceSentence.get(i));
       int ei = currh.getAlignedTarget(i);
-      Set<Integer> ei_produced = currh.getAlignedSources(ei);
+      int ei_produced = currh.getFertility(ei);
       
       for(int j = i+1; j < sourceSentence.size(); j++){
         //System.err.printf("source i = %d ; j = %d\n", i, j);
         //System.err.printf("source wi = %s ; wj = %s\n", sourceSentence.get(i), sourceSentence.get(j));
-        Set<String> jtargetWords = mostLikelyTargetGivenSource.getCounter(sourceSentence.get(j)).keySet();
+        List<String> jtargetWords = options.getCandidates(sourceSentence.get(j));
         int ej = currh.getAlignedTarget(j);
         //System.err.printf("target ei = %d ; ej = %d\n", ei, ej);
         //System.err.printf(" for target ei=%d ",ei);
@@ -197,76 +163,13 @@ public class GreedyDecoder extends Decoder {
           continue;
         }
         
-        Set<Integer> ej_produced = currh.getAlignedSources(ej);
+        int ej_produced = currh.getFertility(ej);
 
         for(String itarget : itargetWords){
           for(String jtarget: jtargetWords){
-            Hypothesis tmph = new Hypothesis(currh);
-            int curr_ej = ej;
-            int curr_ei = ei;
-            boolean changei = true;
-            boolean changej = true;
-
-            if(itarget.equals(WordAligner.NULL_WORD)) {
-              tmph.removeAlignment(curr_ei,i);
-              tmph.addAlignment(-1,i,true);
-              if(ei_produced.size() == 1){
-                tmph.deleteWord(curr_ei,-1);
-                if(curr_ej > curr_ei) curr_ej--; // because curr_ei is deleted
-              }
-              changei = false;
-            }
-
-            if(jtarget.equals(WordAligner.NULL_WORD)){
-              tmph.removeAlignment(curr_ej,j);
-              tmph.addAlignment(-1,j,true);
-              if(ej_produced.size() == 1){
-                tmph.deleteWord(curr_ej,-1);
-                if(curr_ei > curr_ej) curr_ei--; // because curr_ej is deleted
-              }
-              changej = false;
-            }
-
-            if(curr_ei == -1 && changei && curr_ej == -1 && changej){
-              // if candidate itarget is non-NULL, candidate jtarget is non-NULL,
-              // but both the source word we're changing are aligned to NULL,
-              // we'll just skip this case...
-              continue;
-            }
-            else{
-              if(changei){ // if the candidate itarget is a non-NULL
-                if(curr_ei == -1){ // if the source word that we're changing is aligned to target NULL
-                  //insert the candidate word "itarget" to the position that yields highest prob
-                  Pair<Hypothesis, Integer> ret = insertIntoMaxPosition(tmph,itarget, i, sourceSentence);
-                  tmph = ret.getFirst();
-                  if(tmph == null){ throw new RuntimeException("oh no 1"); }
-                  if(curr_ej >= ret.getSecond()){ // if itarget was inserted before curr_ej
-                    curr_ej++;
-                  }
-                }
-                else{ // if the source word was aligned to some word, just replace it with itarget
-                  tmph.setTargetSentence(curr_ei,itarget);
-                }
-              }
-              
-              if(changej){ // if the cadidate jtarget is a non-NULL
-                if(curr_ej == -1){ // if the source word that we're changing is aligned to target NULL
-                  //insert the candidate word "jtarget" to the position that yields highest prob
-                  Pair<Hypothesis, Integer> ret = insertIntoMaxPosition(tmph,jtarget, j, sourceSentence);
-                  tmph = ret.getFirst();
-                  if(tmph == null){ throw new RuntimeException("oh no 2"); }
-                  if(curr_ei >= ret.getSecond()){ // if jtarget was inserted before curr_ei
-                    curr_ei++;
-                  }
-                }
-                else{ // if the source word was aligned to some word, just replace it with jtarget
-                  tmph.setTargetSentence(curr_ej,jtarget);
-                }
-              }
-              
-            }
-            
-            if(tmph == null){ throw new RuntimeException("oh no 3"); }
+            Hypothesis tmph = translateTwoWords(sourceSentence, currh, i, j, ei, ej,
+                                                ei_produced, ej_produced, itarget, jtarget);
+            if(tmph == null) continue;
             if(tmph.getProb() > maxh.getProb()){
               maxh = tmph;
               if (VERBOSE_translateOneOrTwoWords) {
@@ -334,6 +237,83 @@ public class GreedyDecoder extends Decoder {
   }
 
 
+  /* One neighbor of translateOneOrTwoWords: source words i and j, aligned
+   * to ei and ej in currh, are translated to itarget and jtarget.  Returns
+   * null for the case it skips.
+   */
+  private Hypothesis translateTwoWords(List<String> sourceSentence, Hypothesis currh,
+                                       int i, int j, int ei, int ej,
+                                       int ei_produced, int ej_produced,
+                                       String itarget, String jtarget){
+    Hypothesis tmph = new Hypothesis(currh);
+    int curr_ej = ej;
+    int curr_ei = ei;
+    boolean changei = true;
+    boolean changej = true;
+
+    if(itarget.equals(WordAligner.NULL_WORD)) {
+      tmph.removeAlignment(curr_ei,i);
+      tmph.addAlignment(-1,i,true);
+      if(ei_produced == 1){
+        tmph.deleteWord(curr_ei,-1);
+        if(curr_ej > curr_ei) curr_ej--; // because curr_ei is deleted
+      }
+      changei = false;
+    }
+
+    if(jtarget.equals(WordAligner.NULL_WORD)){
+      tmph.removeAlignment(curr_ej,j);
+      tmph.addAlignment(-1,j,true);
+      if(ej_produced == 1){
+        tmph.deleteWord(curr_ej,-1);
+        if(curr_ei > curr_ej) curr_ei--; // because curr_ej is deleted
+      }
+      changej = false;
+    }
+
+    if(curr_ei == -1 && changei && curr_ej == -1 && changej){
+      // if candidate itarget is non-NULL, candidate jtarget is non-NULL,
+      // but both the source word we're changing are aligned to NULL,
+      // we'll just skip this case...
+      return null;
+    }
+    else{
+      if(changei){ // if the candidate itarget is a non-NULL
+        if(curr_ei == -1){ // if the source word that we're changing is aligned to target NULL
+          //insert the candidate word "itarget" to the position that yields highest prob
+          Pair<Hypothesis, Integer> ret = insertIntoMaxPosition(tmph,itarget, i, sourceSentence);
+          tmph = ret.getFirst();
+          if(tmph == null){ throw new RuntimeException("oh no 1"); }
+          if(curr_ej >= ret.getSecond()){ // if itarget was inserted before curr_ej
+            curr_ej++;
+          }
+        }
+        else{ // if the source word was aligned to some word, just replace it with itarget
+          tmph.setTargetSentence(curr_ei,itarget);
+        }
+      }
+      
+      if(changej){ // if the cadidate jtarget is a non-NULL
+        if(curr_ej == -1){ // if the source word that we're changing is aligned to target NULL
+          //insert the candidate word "jtarget" to the position that yields highest prob
+          Pair<Hypothesis, Integer> ret = insertIntoMaxPosition(tmph,jtarget, j, sourceSentence);
+          tmph = ret.getFirst();
+          if(tmph == null){ throw new RuntimeException("oh no 2"); }
+          if(curr_ei >= ret.getSecond()){ // if jtarget was inserted before curr_ei
+            curr_ei++;
+          }
+        }
+        else{ // if the source word was aligned to some word, just replace it with jtarget
+          tmph.setTargetSentence(curr_ej,jtarget);
+        }
+      }
+      
+    }
+    
+    if(tmph == null){ throw new RuntimeException("oh no 3"); }
+    return tmph;
+  }
+
   // OPERATION
   public Hypothesis translateAndInsert(List<String> sourceSentence, Hypothesis currh) {
     
@@ -357,7 +337,7 @@ public class GreedyDecoder extends Decoder {
       Set<String> itargetWords = new HashSet<String>();
       itargetWords.add(currh.getTargetSentence(ei));
         
-      //Set<Integer> ei_produced = currh.getAlignedSources(ei);
+      //int ei_produced = currh.getFertility(ei);
       for(String itarget : itargetWords){
         Pair<Integer, String> checkp = new Pair<Integer,String>(ei,itarget);
         if (checkDup.contains(checkp)) {
@@ -557,8 +537,7 @@ public class GreedyDecoder extends Decoder {
     int del_i = -1;
 
     for(int i = 0; i < currh.getTargetSentSize(); i++){
-      Set<Integer> i_produced = currh.getAlignedSources(i);
-      if(i_produced.size() == 0){
+      if(currh.getFertility(i) == 0){
         Hypothesis tmph = new Hypothesis(currh);
         tmph.deleteWord(i,-1);
         if(tmph.getProb() > maxh.getProb()){
@@ -639,6 +618,169 @@ public class GreedyDecoder extends Decoder {
   }
 
 
+  /* A group of neighbors of the current hypothesis.  visit() passes each
+   * of them to consider() in the order the serial operator would evaluate
+   * them, which keeps the first one with the highest probability above
+   * bestProb.
+   */
+  private abstract class Neighbors {
+    Hypothesis best = null;
+    double bestProb;
+
+    abstract void visit();
+
+    void consider(Hypothesis h){
+      if(h != null && h.getProb() > bestProb){
+        best = h;
+        bestProb = h.getProb();
+      }
+    }
+  }
+
+  /* Evaluates the groups of neighbors in [start, end) and returns the first
+   * best one above minProb (null if there is none): halves are forked,
+   * and on a tie the left half wins, so the result does not depend on the
+   * scheduling.
+   */
+  private static class SearchNeighbors extends RecursiveTask<Hypothesis> {
+    private static final long serialVersionUID = 1L;
+    private final List<Neighbors> neighbors;
+    private final double minProb;
+    private final int start, end;
+
+    SearchNeighbors(List<Neighbors> neighbors, double minProb, int start, int end){
+      this.neighbors = neighbors;
+      this.minProb = minProb;
+      this.start = start;
+      this.end = end;
+    }
+
+    protected Hypothesis compute(){
+      if(end - start == 1){
+        Neighbors group = neighbors.get(start);
+        group.bestProb = minProb;
+        group.visit();
+        return group.best;
+      }
+      int middle = (start + end) >>> 1;
+      SearchNeighbors right = new SearchNeighbors(neighbors, minProb, middle, end);
+      right.fork();
+      Hypothesis left = new SearchNeighbors(neighbors, minProb, start, middle).compute();
+      Hypothesis rightBest = right.join();
+      if(left == null || (rightBest != null && rightBest.getProb() > left.getProb())){
+        return rightBest;
+      }
+      return left;
+    }
+  }
+
+  /* Parallel version of one iteration of Decode: returns the best neighbor
+   * of currh over translateOneOrTwoWords, translateAndInsert, swapSegments,
+   * joinWords and removeWordOfFertilityZero, the first one in that order on
+   * a tie, or a copy of currh if none is better.  The neighbors are
+   * enumerated here; the tasks only read currh and the models.
+   */
+  private Hypothesis searchNeighborhood(final List<String> sourceSentence, final Hypothesis currh){
+    double currProb = currh.getProb();
+    List<Neighbors> neighbors = new ArrayList<Neighbors>();
+
+    // translateOneOrTwoWords
+    for(int i = 0; i < sourceSentence.size(); i++){
+      final List<String> itargetWords = options.getCandidates(sourceSentence.get(i));
+      final int ei = currh.getAlignedTarget(i);
+      final int ei_produced = currh.getFertility(ei);
+      for(int j = i+1; j < sourceSentence.size(); j++){
+        final List<String> jtargetWords = options.getCandidates(sourceSentence.get(j));
+        final int ej = currh.getAlignedTarget(j);
+        if(ej == ei && ei != -1) continue;
+        final int ej_produced = currh.getFertility(ej);
+        final int fi = i, fj = j;
+        neighbors.add(new Neighbors(){
+            void visit(){
+              for(String itarget : itargetWords){
+                for(String jtarget : jtargetWords){
+                  consider(translateTwoWords(sourceSentence, currh, fi, fj, ei, ej,
+                                             ei_produced, ej_produced, itarget, jtarget));
+                }
+              }
+            }
+          });
+      }
+    }
+
+    // translateAndInsert, one group per zero fertility word
+    Set<Pair<Integer, String>> checkDup = new HashSet<Pair<Integer, String>>();
+    for(int i = 0; i < sourceSentence.size(); i++){
+      final int ei = currh.getAlignedTarget(i);
+      if(ei == -1) continue;
+      final String itarget = currh.getTargetSentence(ei);
+      if(!checkDup.add(new Pair<Integer,String>(ei,itarget))) continue;
+      for(final String zfert : zferts){
+        neighbors.add(new Neighbors(){
+            void visit(){
+              Hypothesis tmph = new Hypothesis(currh);
+              tmph.setTargetSentence(ei,itarget);
+              consider(insertIntoMaxPosition(tmph,zfert,-1,sourceSentence).getFirst());
+            }
+          });
+      }
+    }
+
+    // swapSegments
+    final int size = currh.getTargetSentSize();
+    for(int i1 = 0; i1 < size-1; i1++){
+      final int fi1 = i1;
+      neighbors.add(new Neighbors(){
+          void visit(){
+            for(int i2 = fi1; i2 < fi1+3 && i2 < size-1; i2++){
+              for(int j1 = i2+1; j1 < size; j1++){
+                for(int j2 = j1; j2 < j1+3 && j2 < size; j2++){
+                  Hypothesis tmph = new Hypothesis(currh);
+                  tmph.swap(fi1,i2,j1,j2);
+                  consider(tmph);
+                }
+              }
+            }
+          }
+        });
+    }
+
+    // joinWords
+    for(int i = 0; i < size; i++){
+      final int fi = i;
+      neighbors.add(new Neighbors(){
+          void visit(){
+            for(int j = 0; j < size; j++){
+              if(fi == j) continue;
+              Hypothesis tmph = new Hypothesis(currh);
+              tmph.deleteWord(fi,(j > fi ? j-1 : j));
+              consider(tmph);
+            }
+          }
+        });
+    }
+
+    // removeWordOfFertilityZero
+    for(int i = 0; i < size; i++){
+      if(currh.getFertility(i) != 0) continue;
+      final int fi = i;
+      neighbors.add(new Neighbors(){
+          void visit(){
+            Hypothesis tmph = new Hypothesis(currh);
+            tmph.deleteWord(fi,-1);
+            consider(tmph);
+          }
+        });
+    }
+
+    Hypothesis best = null;
+    if(!neighbors.isEmpty()){
+      best = ForkJoinPool.commonPool().invoke(new SearchNeighbors(neighbors, currProb, 0, neighbors.size()));
+    }
+    return (best == null) ? new Hypothesis(currh) : best;
+  }
+
+
   /*
    *  Will generate a translation for the sourceSentence.
    */
@@ -646,6 +788,7 @@ public class GreedyDecoder extends Decoder {
   public List<String> Decode(List<String> sourceSentence){
 
     long start = System.currentTimeMillis();
+    timedOut = false;
     //if(++iter != 6){
     //return new ArrayList<String>();
     //}
@@ -662,7 +805,22 @@ public class GreedyDecoder extends Decoder {
 
     while(true){
       
+      if(timeout > 0 && System.currentTimeMillis() - start >= timeout){
+        // out of time: the current hypothesis is the best so far
+        timedOut = true;
+        maxh = currh;
+        break;
+      }
       iter++;
+      if(parallel){
+        maxh = searchNeighborhood(sourceSentence,currh);
+        out.println("iter="+iter);
+        if(maxh.getProb() == currh.getProb()){
+          break;
+        }
+        currh = maxh;
+        continue;
+      }
       Hypothesis[] hyps = new Hypothesis[5];
 
       hyps[0] = new Hypothesis(currh);
@@ -721,7 +879,7 @@ public class GreedyDecoder extends Decoder {
         maxIdx = 4;
       }
 
-      System.out.println("iter="+iter);
+      out.println("iter="+iter);
 
       maxh = hyps[maxIdx];
 
@@ -762,7 +920,7 @@ public class GreedyDecoder extends Decoder {
     } 
     
     double seconds = (System.currentTimeMillis()-start) / 1000.0;
-    System.out.println("lang prob: "+maxh.getlogLang()+", trans prob:"+maxh.getlogTrans()+
+    out.println("lang prob: "+maxh.getlogLang()+", trans prob:"+maxh.getlogTrans()+
                        ", elen log:"+maxh.getElen()+", "+seconds+" seconds, "+iter+" iterations");
     return maxh.dupTargetSentence();
   }
@@ -11,25 +11,37 @@ import java.io.*;
 
 class Hypothesis {
   boolean recalcNeeded = true;
-  private Alignment alignment;
+  // Neither is changed once set (the edits replace them), so copies share
+  // them and a neighbour only copies what its edit changes.
+  private ArrayAlignment alignment;
 
   private List<String> sourceSentence;
   private LanguageModel lm;
   private WordAligner wa;
 
-  private List<String> targetSentence;
+  private String[] targetSentence;
   private double langlog = 0;   // log of P(e)
   private double translog = 0;  // log of P(f|e)
   private double elen = 0; // log of length(e)
 
   private double lmweight = 0, transweight = 0, lengthweight = 0;
 
+  // What the probabilities were last computed from, so that the neighbours
+  // of a hypothesis only rescore the terms their edit touched. These arrays
+  // are never changed once set, so copies share them.
+  private List<String> scoredStopped;  // stopped target sentence of lmTerms
+  private double[] lmTerms;            // log2 P(word | prefix) per index
+  private int scoredLength = -1;       // target length of transTerms
+  private int[] scoredTargets;         // aligned target per source position
+  private String[] scoredWords;        // and the target word there
+  private double[] transTerms;         // log P(f_j, a_j | e) per source position
+
   public Hypothesis(List<String> sourceSentence, LanguageModel lm , WordAligner wa, double lmweight, double transweight, double lengthweight){
     this.sourceSentence = sourceSentence;
     this.lm = lm;
     this.wa = wa;
-    alignment = new Alignment();
-    targetSentence = new ArrayList<String>();
+    alignment = new ArrayAlignment(sourceSentence.size());
+    targetSentence = new String[0];
     this.lmweight = lmweight;
     this.transweight = transweight;
     this.lengthweight = lengthweight;
@@ -40,8 +52,8 @@ class Hypothesis {
     sourceSentence = h.sourceSentence; // this one should remain unaltered
     wa = h.wa; // this one should remain unaltered
     lm = h.lm; // this one should remain unaltered
-    targetSentence = new ArrayList<String>(h.targetSentence);
-    alignment = new Alignment(h.alignment);
+    targetSentence = h.targetSentence;
+    alignment = h.alignment;
     this.translog = h.translog;
     this.langlog = h.langlog;
     this.elen = h.elen;
@@ -49,11 +61,17 @@ class Hypothesis {
     this.transweight = h.transweight;
     this.lengthweight = h.lengthweight;
     recalcNeeded = h.recalcNeeded;
+    scoredStopped = h.scoredStopped;
+    lmTerms = h.lmTerms;
+    scoredLength = h.scoredLength;
+    scoredTargets = h.scoredTargets;
+    scoredWords = h.scoredWords;
+    transTerms = h.transTerms;
   }
 
 
   public void addAlignment(int englishPosition, int frenchPosition, boolean sure) {
-    alignment.addAlignment(englishPosition, frenchPosition, sure);
+    alignment = alignment.align(englishPosition, frenchPosition);
     recalcNeeded = true;
   }
   
@@ -61,67 +79,80 @@ class Hypothesis {
     return alignment.getAlignedTarget(sourcePosition);
   }
 
-  public Set<Integer> getAlignedSources(int targetPosition){
-    return alignment.getAlignedSources(targetPosition);
+  /* number of source words aligned to the target position (-1 for NULL) */
+  public int getFertility(int targetPosition){
+    return alignment.getFertility(targetPosition);
   }
   
 
   public boolean removeAlignment(int englishPosition, int frenchPosition){
     recalcNeeded = true;
-    return alignment.removeAlignment(englishPosition,frenchPosition);
+    ArrayAlignment removed = alignment.unalign(englishPosition,frenchPosition);
+    boolean changed = (removed != alignment);
+    alignment = removed;
+    return changed;
   }
 
 
   public void setTargetSentence(int i, String str) {
     recalcNeeded = true;
-    targetSentence.set(i,str);
+    targetSentence = targetSentence.clone();
+    targetSentence[i] = str;
   }
 
 
   public List<String> dupTargetSentence() {
-    return new ArrayList<String>(targetSentence);
+    return new ArrayList<String>(Arrays.asList(targetSentence));
   }
 
   public String getTargetSentence(int i) {
-    return targetSentence.get(i);
+    return targetSentence[i];
   }
 
   public void addTargetSentence(String str) {
-    targetSentence.add(str);
+    targetSentence = Arrays.copyOf(targetSentence, targetSentence.length + 1);
+    targetSentence[targetSentence.length - 1] = str;
     recalcNeeded = true;
   }
 
   public int getTargetSentSize() {
-    return targetSentence.size();
+    return targetSentence.length;
   }
 
   public void deleteWord(int index, int changeto){
     if(index == -1) return;
-    targetSentence.remove(index);
-    alignment.shiftAlignmentsDown(index, changeto);
+    String[] newTargetSentence = new String[targetSentence.length - 1];
+    System.arraycopy(targetSentence, 0, newTargetSentence, 0, index);
+    System.arraycopy(targetSentence, index + 1, newTargetSentence, index, newTargetSentence.length - index);
+    targetSentence = newTargetSentence;
+    alignment = alignment.deleteTarget(index, changeto);
     recalcNeeded = true;
   }
 
   public void addWord(String word, int target_index, int source_index){
-    targetSentence.add(target_index, word);
-    alignment.shiftAlignmentsUp(target_index);
+    String[] newTargetSentence = new String[targetSentence.length + 1];
+    System.arraycopy(targetSentence, 0, newTargetSentence, 0, target_index);
+    newTargetSentence[target_index] = word;
+    System.arraycopy(targetSentence, target_index, newTargetSentence, target_index + 1, targetSentence.length - target_index);
+    targetSentence = newTargetSentence;
+    alignment = alignment.insertTarget(target_index);
     if(source_index > -1){
-      alignment.addAlignment(target_index,source_index,true);
+      alignment = alignment.align(target_index,source_index);
     }
     recalcNeeded = true;
   }
     
   public void swap (int i1, int i2, int j1, int j2){
-    List<String> newTargetSentence = new ArrayList<String>();
-    newTargetSentence.addAll(targetSentence.subList(0,i1));
-    newTargetSentence.addAll(targetSentence.subList(j1,j2+1));
-    newTargetSentence.addAll(targetSentence.subList(i2+1,j1));
-    newTargetSentence.addAll(targetSentence.subList(i1,i2+1));
-    newTargetSentence.addAll(targetSentence.subList(j2+1,targetSentence.size()));
-    assert(targetSentence.size() == newTargetSentence.size());
-    //System.out.println(targetSentence.size()+" to "+newTargetSentence.size());
+    String[] newTargetSentence = new String[targetSentence.length];
+    int k = 0;
+    for(int i = 0; i < i1; i++) newTargetSentence[k++] = targetSentence[i];
+    for(int i = j1; i <= j2; i++) newTargetSentence[k++] = targetSentence[i];
+    for(int i = i2+1; i < j1; i++) newTargetSentence[k++] = targetSentence[i];
+    for(int i = i1; i <= i2; i++) newTargetSentence[k++] = targetSentence[i];
+    for(int i = j2+1; i < targetSentence.length; i++) newTargetSentence[k++] = targetSentence[i];
+    assert(k == targetSentence.length);
     targetSentence = newTargetSentence;
-    alignment.swap(i1,i2,j1,j2);
+    alignment = alignment.swap(i1,i2,j1,j2);
     recalcNeeded = true;
   }
 
@@ -164,27 +195,107 @@ class Hypothesis {
 
   private void calcProbs() {
     // NOTE: We use log/log2 for sentence probability, so get back to natural log.
-    langlog = lm.getSentenceProbability(targetSentence) * Math.log(2.0);
+    langlog = sentenceLogProb() * Math.log(2.0);
     //langlog = Math.log(lm.getSentenceProbability(targetSentence))/targetSentence.size()*sourceSentence.size();
-    translog = Math.log(wa.getAlignmentProb(targetSentence, sourceSentence, alignment));
+    translog = Math.log(alignmentProb());
     //translog = wa.getAlignmentLogProb(targetSentence, sourceSentence, alignment);
     //elen = Math.log(targetSentence.size());
-    elen = targetSentence.size();
+    elen = targetSentence.length;
     recalcNeeded = false;
     //System.err.println(" (RECAL) ");
   }
 
+  /* Same as lm.getSentenceProbability(targetSentence), but for an NGram
+   * only the words whose n-gram window changed since the sentence last
+   * scored (the windows not inside the common prefix or suffix of the two)
+   * are rescored.  The terms are summed in the same order, so the result
+   * is exactly the same.
+   */
+  private double sentenceLogProb() {
+    if (!(lm instanceof NGram)) {
+      return lm.getSentenceProbability(Arrays.asList(targetSentence));
+    }
+    NGram ngram = (NGram) lm;
+    int n = ngram.getN();
+    List<String> stopped = ngram.getStoppedSentence(Arrays.asList(targetSentence));
+    int size = stopped.size();
+    int prefix = 0, suffix = 0, shift = 0;
+    if (scoredStopped != null) {
+      int oldSize = scoredStopped.size();
+      int common = Math.min(size, oldSize);
+      while (prefix < common && stopped.get(prefix).equals(scoredStopped.get(prefix))) {
+        prefix++;
+      }
+      while (suffix < common - prefix
+             && stopped.get(size-1-suffix).equals(scoredStopped.get(oldSize-1-suffix))) {
+        suffix++;
+      }
+      shift = oldSize - size;
+    }
+    double[] terms = new double[size];
+    double probability = 0.0;
+    for (int index = n - 1; index < size; index++) {
+      if (index < prefix) {
+        terms[index] = lmTerms[index];
+      } else if (index - n + 1 >= size - suffix) {
+        terms[index] = lmTerms[index + shift];
+      } else {
+        terms[index] = ngram.getWordLogProbability(stopped, index);
+      }
+      probability += terms[index];
+    }
+    scoredStopped = stopped;
+    lmTerms = terms;
+    return probability;
+  }
+
+  /* Same as wa.getAlignmentProb(targetSentence, sourceSentence, alignment),
+   * but for a ModelNWordAligner only the source positions whose aligned
+   * target word changed are rescored, unless the target length changed
+   * (which all the distortions depend on).
+   */
+  private double alignmentProb() {
+    if (!(wa instanceof ModelNWordAligner)) {
+      return wa.getAlignmentProb(Arrays.asList(targetSentence), sourceSentence, alignment.toAlignment());
+    }
+    ModelNWordAligner aligner = (ModelNWordAligner) wa;
+    List<String> sentence = Arrays.asList(targetSentence);
+    int length = targetSentence.length;
+    boolean reuse = (transTerms != null && scoredLength == length);
+    int[] targets = new int[sourceSentence.size()];
+    String[] words = new String[sourceSentence.size()];
+    double[] terms = new double[sourceSentence.size()];
+    double probability = 0;
+    for (int j = 0; j < sourceSentence.size(); j++) {
+      int t = alignment.getAlignedTarget(j);
+      targets[j] = t;
+      words[j] = (t >= 0 && t < length) ? targetSentence[t] : null;
+      if (reuse && t == scoredTargets[j] && (t == -1
+          || (words[j] != null && words[j].equals(scoredWords[j])))) {
+        terms[j] = transTerms[j];
+      } else {
+        terms[j] = aligner.getAlignmentLogProb(sentence, sourceSentence, t, j);
+      }
+      probability += terms[j];
+    }
+    scoredLength = length;
+    scoredTargets = targets;
+    scoredWords = words;
+    transTerms = terms;
+    return Math.exp(probability);
+  }
+
   public String toString(){
     StringBuilder sb = new StringBuilder();
     //for(String word : targetSentence){
-    for(int i = 0; i < targetSentence.size(); i++){
-      String word = targetSentence.get(i);
+    for(int i = 0; i < targetSentence.length; i++){
+      String word = targetSentence[i];
       sb.append("(e"+i+")"+word+" ");
     }
     sb.append("\n");
     sb.append(alignment.toString());
     sb.append("\n");
-    sb.append(targetSentence);
+    sb.append(Arrays.asList(targetSentence));
     return sb.toString();
   }
 }
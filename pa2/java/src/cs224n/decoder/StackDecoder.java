@@ -0,0 +1,332 @@
+package cs224n.decoder;
+
+import cs224n.util.*;
+import cs224n.wordaligner.*;
+import cs224n.langmodel.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+
+/**
+ * Left-to-right stack decoder: a beam search that builds the translation
+ * one target word at a time, covering one source word per step, with the
+ * same language model, alignment model and weights as GreedyDecoder.  Its
+ * cost per sentence is bounded by the beam size, unlike the hill-climbing
+ * of GreedyDecoder.
+ *
+ * A partial translation covers the source words in a coverage bitset, and
+ * is in the stack of its number of covered words.  Each step covers an
+ * uncovered source word j, at most REORDERING_LIMIT past the first one, by
+ *  - aligning it to NULL,
+ *  - aligning it to the last target word (fertility above one),
+ *  - appending one of its N_MOST_LIKELY translations (under P(f|e), and
+ *    under P(e|f) if the reverse aligner is a ModelNWordAligner), or
+ *  - appending a zero fertility word then one of its translations.
+ * Partial translations with the same coverage, language model state (last
+ * n-1 target words), target length and last word score the same from
+ * there on, so only the best is kept.  Each stack keeps the beamSize best and those
+ * within threshold of the best, ranked by score plus an estimate of the
+ * score of the uncovered words at the positions still free, precomputed
+ * from the translation table.
+ *
+ * The alignment model scores distortion against the target length, which
+ * is not known until the end, so the search uses the source length; the
+ * complete translations of the last stack are then realigned and scored
+ * exactly (as Hypothesis does), and the best is returned.
+ */
+public class StackDecoder extends Decoder {
+
+  /* zero fertility words tried before a translation, the best under the LM */
+  public static final int ZFERT_CANDIDATES = 3;
+  /* how far past the first uncovered source word a step may cover */
+  public static final int REORDERING_LIMIT = 3;
+
+  private final NGram ngram;
+  private final ModelNWordAligner aligner;
+  private final Set<String> zferts;
+  private int beamSize = 50;
+  private double threshold = 10.0;
+
+  public StackDecoder(LanguageModel lm, WordAligner wa, WordAligner rwa,
+                      double lmweight, double transweight, double lengthweight, String filename){
+    this(lm,wa,rwa,lmweight,transweight,lengthweight,filename,new TranslationOptions(wa,rwa));
+  }
+
+  public StackDecoder(LanguageModel lm, WordAligner wa, WordAligner rwa,
+                      double lmweight, double transweight, double lengthweight, String filename,
+                      TranslationOptions options){
+    super(lm,wa,rwa,lmweight,transweight,lengthweight,options);
+    if(!(lm instanceof NGram) || !(wa instanceof ModelNWordAligner)){
+      throw new IllegalArgumentException("StackDecoder needs an NGram language model and a ModelNWordAligner");
+    }
+    ngram = (NGram) lm;
+    aligner = (ModelNWordAligner) wa;
+    zferts = ReadZFerts(filename);
+  }
+
+  /* Number of partial translations kept in each stack. */
+  public void setBeamSize(int beamSize){
+    this.beamSize = beamSize;
+  }
+
+  /* Partial translations scoring (with their estimate) more than this
+   * below the best of their stack are dropped. */
+  public void setThreshold(double threshold){
+    this.threshold = threshold;
+  }
+
+  /* A partial translation, as the step from its parent. */
+  private static class State {
+    final State parent;
+    final BitSet coverage;
+    final int length;            // target words so far
+    final List<String> history;  // last n-1 target words, with STARTs
+    final String[] words;        // target words appended by this step
+    final String last;           // last target word, null if none
+    final int source;            // source word covered by this step
+    final int target;            // and its target position, -1 for NULL
+    final double score;
+    final double estimate;       // score + estimate of the rest
+
+    State(State parent, BitSet coverage, int length, List<String> history,
+          String[] words, int source, int target, double score, double future){
+      this.parent = parent;
+      this.coverage = coverage;
+      this.length = length;
+      this.history = history;
+      this.words = words;
+      this.last = (words.length > 0) ? words[words.length-1]
+        : (parent == null) ? null : parent.last;
+      this.source = source;
+      this.target = target;
+      this.score = score;
+      this.estimate = score + future;
+    }
+
+    /* what the rest of the search depends on */
+    List<Object> signature(){
+      return Arrays.<Object>asList(coverage, history, length, last);
+    }
+  }
+
+  private static final Comparator<State> BY_ESTIMATE = new Comparator<State>(){
+    public int compare(State a, State b){
+      return Double.compare(b.estimate, a.estimate);
+    }
+  };
+
+  /* Everything about the sentence being decoded that the steps need. */
+  private class Search {
+    final List<String> sourceSentence;
+    final int J;
+    final String[][] candidates;  // non-NULL translations of each source word
+    // future[j][i]: the best score source word j can add at target position
+    // i or after (or aligned to NULL), ignoring the language model
+    final double[][] future;
+    int expanded = 0;
+
+    Search(List<String> sourceSentence){
+      this.sourceSentence = sourceSentence;
+      J = sourceSentence.size();
+      candidates = new String[J][];
+      future = new double[J][2 * J + 1];
+      for(int j = 0; j < J; j++){
+        Set<String> words = new TreeSet<String>(); // a fixed order, for reproducible ties
+        words.addAll(options.getCandidates(sourceSentence.get(j)));
+        words.addAll(options.getReverseCandidates(sourceSentence.get(j)));
+        words.remove(WordAligner.NULL_WORD);
+        candidates[j] = words.toArray(new String[words.size()]);
+        double best = transWeight * alignLog(WordAligner.NULL_WORD, -1, j);
+        for(int i = future[j].length - 1; i >= 0; i--){
+          for(String word : candidates[j]){
+            best = Math.max(best, transWeight * alignLog(word, i, j) + Math.max(lengthWeight, 0));
+          }
+          future[j][i] = best;
+        }
+      }
+    }
+
+    double alignLog(String word, int position, int j){
+      return aligner.getAlignmentLogProb(J, word, position, sourceSentence, j);
+    }
+
+    /* estimate of what the uncovered words add after length target words */
+    double futureOf(BitSet coverage, int length){
+      // the next word may still be aligned to the last target word
+      int from = Math.min(Math.max(length - 1, 0), 2 * J);
+      double total = 0;
+      for(int j = coverage.nextClearBit(0); j < J; j = coverage.nextClearBit(j+1)){
+        total += future[j][from];
+      }
+      return total;
+    }
+
+    /* Adds the states one step from s to the next stack. */
+    void expand(State s, Map<List<Object>, State> next){
+      expanded++;
+      List<String> zfertsHere = bestZFerts(s.history);
+      int limit = Math.min(J, s.coverage.nextClearBit(0) + REORDERING_LIMIT + 1);
+      for(int j = s.coverage.nextClearBit(0); j < limit; j = s.coverage.nextClearBit(j+1)){
+        BitSet coverage = (BitSet) s.coverage.clone();
+        coverage.set(j);
+        String[] none = new String[0];
+        double future = futureOf(coverage, s.length);
+
+        add(next, new State(s, coverage, s.length, s.history, none, j, -1,
+                            s.score + transWeight * alignLog(WordAligner.NULL_WORD, -1, j), future));
+        if(s.length > 0){
+          add(next, new State(s, coverage, s.length, s.history, none, j, s.length-1,
+                              s.score + transWeight * alignLog(s.last, s.length-1, j), future));
+        }
+        for(String word : candidates[j]){
+          double score = s.score + lmWeight * lmLog(s.history, word) + lengthWeight
+            + transWeight * alignLog(word, s.length, j);
+          add(next, new State(s, coverage, s.length+1, shift(s.history, word),
+                              new String[] {word}, j, s.length, score, futureOf(coverage, s.length+1)));
+          for(String zfert : zfertsHere){
+            List<String> history = shift(s.history, zfert);
+            score = s.score + lmWeight * (lmLog(s.history, zfert) + lmLog(history, word))
+              + 2 * lengthWeight + transWeight * alignLog(word, s.length+1, j);
+            add(next, new State(s, coverage, s.length+2, shift(history, word),
+                                new String[] {zfert, word}, j, s.length+1, score, futureOf(coverage, s.length+2)));
+          }
+        }
+      }
+    }
+
+    /* The zero fertility words best after the history under the LM. */
+    List<String> bestZFerts(List<String> history){
+      PriorityQueue<String> best = new PriorityQueue<String>();
+      for(String zfert : zferts){
+        best.add(zfert, lmLog(history, zfert));
+      }
+      List<String> words = new ArrayList<String>();
+      while(words.size() < ZFERT_CANDIDATES && best.hasNext()){
+        words.add(best.next());
+      }
+      return words;
+    }
+  }
+
+  /* recombination: keeps the best state of each signature */
+  private static void add(Map<List<Object>, State> stack, State state){
+    List<Object> signature = state.signature();
+    State other = stack.get(signature);
+    if(other == null || state.score > other.score){
+      stack.put(signature, state);
+    }
+  }
+
+  private double lmLog(List<String> history, String word){
+    return Math.log(ngram.getWordProbability(history, word));
+  }
+
+  private static List<String> shift(List<String> history, String word){
+    if(history.isEmpty()){
+      return history;
+    }
+    List<String> shifted = new ArrayList<String>(history.subList(1, history.size()));
+    shifted.add(word);
+    return shifted;
+  }
+
+  /* The states of the stack worth expanding, best first. */
+  private List<State> prune(Map<List<Object>, State> stack, int size){
+    List<State> states = new ArrayList<State>(stack.values());
+    Collections.sort(states, BY_ESTIMATE);
+    if(states.size() > size){
+      states = states.subList(0, size);
+    }
+    if(!states.isEmpty()){
+      double floor = states.get(0).estimate - threshold;
+      int keep = 1;
+      while(keep < states.size() && states.get(keep).estimate >= floor){
+        keep++;
+      }
+      states = states.subList(0, keep);
+    }
+    return states;
+  }
+
+  /* The complete translation ending in state s, scored exactly.  Now that
+   * its length is known each source word is aligned to the target word
+   * (or NULL) that scores it best, which the alignment model scores
+   * independently of the other source words; that is at least as good as
+   * the alignment of the search.
+   */
+  private Hypothesis toHypothesis(List<String> sourceSentence, State s){
+    List<String> targetSentence = new ArrayList<String>();
+    List<State> steps = new ArrayList<State>();
+    for(State step = s; step.parent != null; step = step.parent){
+      steps.add(step);
+    }
+    Collections.reverse(steps);
+    Hypothesis h = new Hypothesis(sourceSentence, langmodel, wordaligner, lmWeight, transWeight, lengthWeight);
+    for(State step : steps){
+      for(String word : step.words){
+        h.addTargetSentence(word);
+        targetSentence.add(word);
+      }
+    }
+    for(int j = 0; j < sourceSentence.size(); j++){
+      int best = -1;
+      double bestLog = aligner.getAlignmentLogProb(targetSentence, sourceSentence, -1, j);
+      for(int i = 0; i < targetSentence.size(); i++){
+        double log = aligner.getAlignmentLogProb(targetSentence, sourceSentence, i, j);
+        if(log > bestLog){
+          best = i;
+          bestLog = log;
+        }
+      }
+      h.addAlignment(best, j, true);
+    }
+    return h;
+  }
+
+  public List<String> Decode(List<String> sourceSentence){
+    long start = System.currentTimeMillis();
+    timedOut = false;
+    Search search = new Search(sourceSentence);
+
+    List<String> history = new ArrayList<String>();
+    for(int i = 0; i < ngram.getN() - 1; i++){
+      history.add(NGram.START);
+    }
+    List<State> stack = new ArrayList<State>();
+    stack.add(new State(null, new BitSet(), 0, history, new String[0], -1, -1,
+                        0.0, search.futureOf(new BitSet(), 0)));
+    for(int covered = 0; covered < search.J; covered++){
+      Map<List<Object>, State> next = new LinkedHashMap<List<Object>, State>();
+      for(State s : stack){
+        search.expand(s, next);
+      }
+      if(!timedOut && timeout > 0 && System.currentTimeMillis() - start >= timeout){
+        // out of time: finish with the best state of each stack
+        timedOut = true;
+      }
+      stack = prune(next, timedOut ? 1 : beamSize);
+    }
+
+    Hypothesis best = null;
+    for(State s : stack){
+      Hypothesis h = toHypothesis(sourceSentence, s);
+      if(best == null || h.getProb() > best.getProb()){
+        best = h;
+      }
+    }
+    double seconds = (System.currentTimeMillis()-start) / 1000.0;
+    out.println("lang prob: "+best.getlogLang()+", trans prob:"+best.getlogTrans()+
+                ", elen log:"+best.getElen()+", "+seconds+" seconds, "+search.expanded+" states expanded");
+    return best.dupTargetSentence();
+  }
+
+}
@@ -0,0 +1,198 @@
+package cs224n.decoder;
+
+import cs224n.util.*;
+import cs224n.wordaligner.*;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * The translations a decoder considers for each source word, taken from
+ * the alignment models once and then only read, so that all the decoders
+ * of a test can share one (and it can be serialized to skip building it).
+ * Words are kept as int ids into a target vocabulary, and the options
+ * carry a fingerprint of what they were built from, to tell whether a
+ * saved copy still fits a run.  For each source word it holds
+ *  - its candidates: the Decoder.N_MOST_LIKELY target words t with the
+ *    highest p(s|t) under the word aligner, in the order the decoders
+ *    have always tried them,
+ *  - its initial translation: the target word t with the highest p(t|s)
+ *    under the reverse word aligner among those of which s is one of the
+ *    N_MOST_LIKELY best source words, as GreedyDecoder starts from, and
+ *  - its reverse candidates: the N_MOST_LIKELY target words with the
+ *    highest p(t|s) under the reverse word aligner, if it is a
+ *    ModelNWordAligner.
+ *
+ * @see GreedyDecoder
+ * @see StackDecoder
+ */
+public class TranslationOptions implements Serializable {
+
+  private static final long serialVersionUID = -2815405379114873927L;
+  private static final int[] NONE = new int[0];
+
+  private final String fingerprint;
+  private final Map<String, Integer> sourceIds = new HashMap<String, Integer>();
+  private final String[] targetWords;
+  private final int[][] candidates;
+  private final int[] initial;         // -1 for none
+  private final int[][] reverseCandidates;
+
+  public TranslationOptions(WordAligner wordaligner, WordAligner reverse_wordaligner){
+    this(wordaligner, reverse_wordaligner, "");
+  }
+
+  /* fingerprint describes the training of the word aligners, see
+   * getFingerprint */
+  public TranslationOptions(WordAligner wordaligner, WordAligner reverse_wordaligner, String fingerprint){
+    this.fingerprint = fingerprint;
+    Map<String, Integer> targetIds = new HashMap<String, Integer>();
+    List<String> targets = new ArrayList<String>();
+
+    CounterMap<String,String> mostLikely = MostLikely(wordaligner.getProbSourceGivenTarget(), false);
+    CounterMap<String,String> mostLikelyInitial = MostLikely(reverse_wordaligner.getProbSourceGivenTarget(), true);
+    CounterMap<String,String> mostLikelyReverse = null;
+    if(reverse_wordaligner instanceof ModelNWordAligner){
+      mostLikelyReverse = MostLikely(((ModelNWordAligner) reverse_wordaligner).getTranslationModel().getTranslationModelParams(), false);
+    }
+    for(String sourceWord : mostLikely.keySet()) SourceId(sourceWord);
+    for(String sourceWord : mostLikelyInitial.keySet()) SourceId(sourceWord);
+    if(mostLikelyReverse != null){
+      for(String sourceWord : mostLikelyReverse.keySet()) SourceId(sourceWord);
+    }
+
+    int size = sourceIds.size();
+    candidates = new int[size][];
+    initial = new int[size];
+    reverseCandidates = new int[size][];
+    for(Map.Entry<String, Integer> entry : sourceIds.entrySet()){
+      String sourceWord = entry.getKey();
+      int id = entry.getValue();
+      candidates[id] = NONE;
+      initial[id] = -1;
+      reverseCandidates[id] = NONE;
+
+      if(mostLikely.keySet().contains(sourceWord)){
+        // in the iteration order of the counter, which GreedyDecoder's
+        // choices among equally good neighbors depend on
+        Counter<String> counter = mostLikely.getCounter(sourceWord);
+        candidates[id] = new int[counter.size()];
+        int k = 0;
+        for(String targetWord : counter.keySet()){
+          candidates[id][k++] = TargetId(targetWord, targetIds, targets);
+        }
+      }
+      if(mostLikelyInitial.keySet().contains(sourceWord)){
+        String targetWord = mostLikelyInitial.getCounter(sourceWord).argMax();
+        if(targetWord != null){
+          initial[id] = TargetId(targetWord, targetIds, targets);
+        }
+      }
+      if(mostLikelyReverse != null && mostLikelyReverse.keySet().contains(sourceWord)){
+        Counter<String> counter = mostLikelyReverse.getCounter(sourceWord);
+        PriorityQueue<String> best = new PriorityQueue<String>();
+        for(String targetWord : counter.keySet()){
+          best.add(targetWord, counter.getCount(targetWord));
+        }
+        reverseCandidates[id] = new int[counter.size()];
+        for(int k = 0; best.hasNext(); k++){
+          reverseCandidates[id][k] = TargetId(best.next(), targetIds, targets);
+        }
+      }
+    }
+    targetWords = targets.toArray(new String[targets.size()]);
+  }
+
+  /*
+   * For each key word k of probGiven, keeps the N_MOST_LIKELY words w with
+   * the highest probGiven(k, w): as a map from k to w, or from w to k if
+   * transposed.
+   */
+  private static CounterMap<String,String> MostLikely(CounterMap<String,String> probGiven, boolean transposed){
+    CounterMap<String,String> mostLikely = new CounterMap<String,String>();
+    for(String key : probGiven.keySet()){
+      PriorityQueue<String> queue = new PriorityQueue<String>();
+      Counter<String> probs = probGiven.getCounter(key);
+      for(String word : probs.keySet()){
+        queue.add(word, probs.getCount(word));
+      }
+      for(int i = 0; i < Decoder.N_MOST_LIKELY && queue.hasNext(); i++){
+        double prob = queue.getPriority();
+        String word = queue.next();
+        if(transposed){
+          mostLikely.setCount(word, key, prob);
+        } else {
+          mostLikely.setCount(key, word, prob);
+        }
+      }
+    }
+    return mostLikely;
+  }
+
+  private int SourceId(String sourceWord){
+    Integer id = sourceIds.get(sourceWord);
+    if(id == null){
+      id = sourceIds.size();
+      sourceIds.put(sourceWord, id);
+    }
+    return id;
+  }
+
+  private static int TargetId(String targetWord, Map<String, Integer> targetIds, List<String> targets){
+    Integer id = targetIds.get(targetWord);
+    if(id == null){
+      id = targets.size();
+      targetIds.put(targetWord, id);
+      targets.add(targetWord);
+    }
+    return id;
+  }
+
+  /* What the options were built from, as given to the constructor (empty
+   * if not given): options saved by a run should only be used by a run
+   * with the same fingerprint. */
+  public String getFingerprint(){
+    return fingerprint;
+  }
+
+  /* -1 for a source word without options */
+  public int getSourceId(String sourceWord){
+    Integer id = sourceIds.get(sourceWord);
+    return (id == null) ? -1 : id;
+  }
+
+  public List<String> getCandidates(String sourceWord){
+    int id = getSourceId(sourceWord);
+    return (id < 0) ? Collections.<String>emptyList() : Words(candidates[id]);
+  }
+
+  /* null if none */
+  public String getInitialTranslation(String sourceWord){
+    int id = getSourceId(sourceWord);
+    return (id < 0 || initial[id] < 0) ? null : targetWords[initial[id]];
+  }
+
+  /* best first; empty unless the reverse aligner is a ModelNWordAligner */
+  public List<String> getReverseCandidates(String sourceWord){
+    int id = getSourceId(sourceWord);
+    return (id < 0) ? Collections.<String>emptyList() : Words(reverseCandidates[id]);
+  }
+
+  private List<String> Words(final int[] ids){
+    return new AbstractList<String>(){
+      public String get(int k){
+        return targetWords[ids[k]];
+      }
+      public int size(){
+        return ids.length;
+      }
+    };
+  }
+
+}
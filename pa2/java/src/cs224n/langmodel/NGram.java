@@ -22,16 +22,34 @@ public abstract class NGram implements LanguageModel {
   
   @Override
   public double getSentenceProbability(List<String> sentence) {
+    List<String> stoppedSentence = getStoppedSentence(sentence);
+    double probability = 0.0;
+    for (int index = n - 1; index < stoppedSentence.size(); index++) {
+      probability += getWordLogProbability(stoppedSentence, index);
+    }
+    return probability;
+  }
+
+  /**
+   * Returns the sentence with n-1 STARTs before it and a STOP after it, as
+   * getSentenceProbability scores it.
+   */
+  public List<String> getStoppedSentence(List<String> sentence) {
     List<String> stoppedSentence = new ArrayList<String>(sentence);
     stoppedSentence.add(STOP);
     for (int i = 0; i < n - 1; i++) {
       stoppedSentence.add(0, START);
     }
-    double probability = 0.0;
-    for (int index = n - 1; index < stoppedSentence.size(); index++) {
-      probability += Math.log(getWordProbability(stoppedSentence, index)) / Math.log(2.0);
-    }
-    return probability;
+    return stoppedSentence;
+  }
+
+  /**
+   * Log (base 2) of the probability of the word at the index (at least n-1)
+   * of a stopped sentence; getSentenceProbability is the sum of these in
+   * order of index, so callers summing them the same way get the same bits.
+   */
+  public double getWordLogProbability(List<String> stoppedSentence, int index) {
+    return Math.log(getWordProbability(stoppedSentence, index)) / Math.log(2.0);
   }
 
   public int getN() {
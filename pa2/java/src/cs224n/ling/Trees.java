@@ -1,6 +1,7 @@
 package cs224n.ling;
 
 import cs224n.util.Filter;
+import cs224n.util.TokenInterner;
 
 import java.io.IOException;
 import java.io.PushbackReader;
@@ -141,7 +142,7 @@ public class Trees {
       }
       in.unread(ch);
 //      System.out.println("Read text: ["+sb+"]");
-      return sb.toString().intern();
+      return TokenInterner.intern(sb.toString());
     }
 
     private List<Tree<String>> readChildren() throws IOException {
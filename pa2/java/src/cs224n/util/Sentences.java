@@ -39,7 +39,7 @@ import java.util.*;
           List<String> sentence = new ArrayList<String>();
           for (int i = 0; i < words.length; i++) {
             String word = words[i];
-            sentence.add(word.toLowerCase());
+            sentence.add(TokenInterner.intern(word.toLowerCase()));
           }
           return sentence;
         } catch (IOException e) {
@@ -0,0 +1,42 @@
+package cs224n.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The interner shared by all the corpus readers of the process, so that
+ * each distinct word read is kept as a single String however many times it
+ * occurs and whichever reader or thread read it.  Unlike an Interner, it
+ * may be used by several threads at once.  It is bounded: once MAX_SIZE
+ * distinct words are interned, new words are returned as they are, so an
+ * unusually large vocabulary costs at most that many entries.
+ */
+public class TokenInterner {
+
+  public static final int MAX_SIZE = 1 << 22;
+
+  private static final ConcurrentHashMap<String, String> tokens =
+      new ConcurrentHashMap<String, String>(1 << 16);
+
+  /**
+   * Returns the canonical String equal to the token.
+   */
+  public static String intern(String token) {
+    String canonical = tokens.get(token);
+    if (canonical != null) {
+      return canonical;
+    }
+    if (tokens.size() >= MAX_SIZE) {
+      return token;
+    }
+    canonical = tokens.putIfAbsent(token, token);
+    return (canonical == null) ? token : canonical;
+  }
+
+  /**
+   * Returns the number of distinct tokens interned.
+   */
+  public static int size() {
+    return tokens.size();
+  }
+
+}
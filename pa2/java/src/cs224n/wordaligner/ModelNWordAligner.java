@@ -70,27 +70,45 @@ public class ModelNWordAligner extends WordAligner {
     double probability = 0;
     for (int sourcePosition = 0; sourcePosition < sourceSentence.size(); sourcePosition++) {
       int targetPosition = alignment.getAlignedTarget(sourcePosition);
-      // Distortion can be calculated generally because if it's from the
-      // null word, the bucket function handles that as a special case.
-      double distortion = distortionModel.getProbability(
-          targetSentence.size(), targetPosition, sourceSentence.size(),
-          sourcePosition);
-      double translationProbability;
-      if (targetPosition == -1) {
-        translationProbability = translationModel.getProbability(NULL_WORD,
-            sourceSentence.get(sourcePosition));
-      } else {
-        translationProbability = translationModel.getProbability(
-            targetSentence.get(targetPosition),
-            sourceSentence.get(sourcePosition));
-      }
       // Here, we are computing P(f, a | e). TODO: Should we use P(a | f, e)? Is tha the same as the distortion parameter?
-      probability += Math.log(translationProbability * distortion);
+      probability += getAlignmentLogProb(targetSentence, sourceSentence,
+          targetPosition, sourcePosition);
     }
     // System.err.println(probability);
     return Math.exp(probability);
   }
 
+  /**
+   * Natural log of P(f_j, a_j | e) for the source word at sourcePosition
+   * aligned to targetPosition (-1 for the null word). getAlignmentProb is
+   * the exp of the sum of these in order of source position; the term only
+   * depends on the target length and the aligned target word.
+   */
+  public double getAlignmentLogProb(List<String> targetSentence,
+      List<String> sourceSentence, int targetPosition, int sourcePosition) {
+    String targetWord = (targetPosition == -1) ? NULL_WORD : targetSentence
+        .get(targetPosition);
+    return getAlignmentLogProb(targetSentence.size(), targetWord,
+        targetPosition, sourceSentence, sourcePosition);
+  }
+
+  /**
+   * The same term for a target sentence of targetLength words with
+   * targetWord (NULL_WORD if targetPosition is -1) at targetPosition, which
+   * is all the term depends on; a decoder can score words this way before
+   * the target sentence is complete.
+   */
+  public double getAlignmentLogProb(int targetLength, String targetWord,
+      int targetPosition, List<String> sourceSentence, int sourcePosition) {
+    // Distortion can be calculated generally because if it's from the
+    // null word, the bucket function handles that as a special case.
+    double distortion = distortionModel.getProbability(targetLength,
+        targetPosition, sourceSentence.size(), sourcePosition);
+    double translationProbability = translationModel.getProbability(
+        targetWord, sourceSentence.get(sourcePosition));
+    return Math.log(translationProbability * distortion);
+  }
+
 
   public CounterMap<String, String> getProbSourceGivenTarget() {
     CounterMap<String, String> reversed = new CounterMap<String, String>();
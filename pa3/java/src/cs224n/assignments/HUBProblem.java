@@ -3,6 +3,8 @@ package cs224n.assignments;
 import java.util.*;
 import java.io.*;
 
+import cs224n.util.TokenInterner;
+
 /**
  * Represents a HUB speech recognition problem.  Each problem has a correct
  * sentence, a list of n-best guess sentences, and a score for each of the
@@ -148,7 +150,7 @@ public class HUBProblem {
         List<String> sentence = new ArrayList<String>();
         for (int i = 0; i < words.length; i++) {
           String word = words[i];
-          sentence.add(word.toLowerCase());
+          sentence.add(TokenInterner.intern(word.toLowerCase()));
         }
         guessList.add(sentence);
       }
@@ -204,7 +206,7 @@ public class HUBProblem {
         List<String> sentence = new ArrayList<String>();
         for (int i = 0; i < words.length - 1; i++) {
           String word = words[i];
-          sentence.add(word.toLowerCase());
+          sentence.add(TokenInterner.intern(word.toLowerCase()));
         }
         String idToken = words[words.length - 1].toLowerCase();
         String sentenceID = idToken.substring(1, idToken.length() - 1);